@@ -0,0 +1,182 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides how many PMD workers should be active, from the throughput of the analysis and the pressure on the heap.
+ * The analysis starts with half of the workers it may use. Workers are removed when the old generation fills up or
+ * when the JVM spends too much time in GC, and added when the CPUs are idle.
+ */
+public class PmdConcurrencyController {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdConcurrencyController.class);
+
+  static final double HIGH_HEAP_OCCUPANCY = 0.80;
+  static final double HIGH_GC_RATIO = 0.20;
+  static final double IDLE_CPU_LOAD = 0.75;
+  // The load average of the OS covers the last minute, too long for decisions taken every second
+  private static final Method SYSTEM_CPU_LOAD = systemCpuLoadMethod();
+
+  static class Sample {
+    final double heapOccupancy;
+    final long gcMillis;
+    // Usage of all the CPUs since the previous sample, between 0 and 1, or negative when not available
+    final double cpuLoad;
+
+    Sample(double heapOccupancy, long gcMillis, double cpuLoad) {
+      this.heapOccupancy = heapOccupancy;
+      this.gcMillis = gcMillis;
+      this.cpuLoad = cpuLoad;
+    }
+  }
+
+  private final int maxWorkers;
+  private int workers;
+  private long lastNanos;
+  private long lastGcMillis;
+  private long lastFiles;
+  private double lastThroughput;
+
+  public PmdConcurrencyController(int maxWorkers) {
+    this(maxWorkers, Runtime.getRuntime().availableProcessors());
+  }
+
+  @VisibleForTesting
+  PmdConcurrencyController(int maxWorkers, int processors) {
+    this.maxWorkers = Math.max(1, maxWorkers);
+    this.workers = Math.max(1, Math.min(this.maxWorkers, processors) / 2);
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public void start() {
+    lastNanos = System.nanoTime();
+    lastGcMillis = sample().gcMillis;
+    lastFiles = 0;
+    LOG.info("PMD workers: starting with " + workers + " of at most " + maxWorkers);
+  }
+
+  /**
+   * Returns the number of workers which should be active, given the number of files analysed so far.
+   */
+  public int adjust(long filesDone) {
+    return adjust(filesDone, System.nanoTime(), sample());
+  }
+
+  @VisibleForTesting
+  int adjust(long filesDone, long nanos, Sample sample) {
+    long elapsedMillis = Math.max(1, (nanos - lastNanos) / 1000000);
+    double throughput = (filesDone - lastFiles) * 1000.0 / elapsedMillis;
+    double gcRatio = (double) (sample.gcMillis - lastGcMillis) / elapsedMillis;
+
+    int previous = workers;
+    String reason = null;
+    if (sample.heapOccupancy > HIGH_HEAP_OCCUPANCY && workers > 1) {
+      workers--;
+      reason = "heap pressure";
+    } else if (gcRatio > HIGH_GC_RATIO && workers > 1) {
+      workers--;
+      reason = "GC pressure";
+    } else if (workers < maxWorkers && sample.cpuLoad >= 0 && sample.cpuLoad < IDLE_CPU_LOAD && throughput >= lastThroughput) {
+      workers++;
+      reason = "idle CPU";
+    }
+
+    String state = String.format(Locale.ENGLISH, "heap %.0f%%, GC %.0f%%, CPU %.0f%%, %.1f files/s",
+      sample.heapOccupancy * 100, gcRatio * 100, sample.cpuLoad * 100, throughput);
+    if (reason != null) {
+      LOG.info("PMD workers: " + previous + " -> " + workers + " on " + reason + " (" + state + ")");
+    } else {
+      LOG.debug("PMD workers: keeping " + workers + " (" + state + ")");
+    }
+
+    lastNanos = nanos;
+    lastGcMillis = sample.gcMillis;
+    lastFiles = filesDone;
+    lastThroughput = throughput;
+    return workers;
+  }
+
+  @VisibleForTesting
+  Sample sample() {
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    return new Sample(heapOccupancy(), gcMillis, cpuLoad());
+  }
+
+  private static double cpuLoad() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (SYSTEM_CPU_LOAD != null && SYSTEM_CPU_LOAD.getDeclaringClass().isInstance(os)) {
+      try {
+        return ((Number) SYSTEM_CPU_LOAD.invoke(os)).doubleValue();
+      } catch (Exception e) {
+        LOG.debug("Fail to read the CPU load", e);
+      }
+    }
+    return -1;
+  }
+
+  private static Method systemCpuLoadMethod() {
+    try {
+      // Only available on the JVMs providing com.sun.management, since Java 7
+      return Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getSystemCpuLoad");
+    } catch (Exception e) {
+      LOG.debug("CPU load is not available, PMD workers are not added during the analysis", e);
+      return null;
+    }
+  }
+
+  private static double heapOccupancy() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      String name = pool.getName();
+      if (pool.getType() == MemoryType.HEAP && (name.contains("Old") || name.contains("Tenured"))) {
+        // Usage after the last collection ignores the garbage which is not collected yet
+        MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : pool.getUsage();
+        if (usage != null && usage.getMax() > 0) {
+          return (double) usage.getUsed() / usage.getMax();
+        }
+      }
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+  }
+
+}
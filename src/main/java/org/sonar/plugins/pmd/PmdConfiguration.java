@@ -30,6 +30,7 @@ import net.sourceforge.pmd.renderers.XMLRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.config.Settings;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.utils.SonarException;
@@ -40,6 +41,31 @@ public class PmdConfiguration implements BatchExtension {
 
 	public static final String PROPERTY_GENERATE_XML = "sonar.pmd.generateXml";
 	public static final String PMD_RESULT_XML = "pmd-result.xml";
+	public static final String PROPERTY_RULE_FILTER = "sonar.pmd.ruleFilter";
+	public static final String PROPERTY_THREADS = "sonar.pmd.threads";
+	public static final String PROPERTY_TRACE = "sonar.pmd.trace";
+	public static final String PMD_TRACE_JSON = "pmd-trace.json";
+	public static final String PROPERTY_CACHE_DIR = "sonar.pmd.cacheDir";
+	public static final String PROPERTY_CACHE_MAX_SIZE = "sonar.pmd.cacheMaxSize";
+	public static final String PROPERTY_SHARD_INDEX = "sonar.pmd.shardIndex";
+	public static final String PROPERTY_SHARD_COUNT = "sonar.pmd.shardCount";
+	public static final String PROPERTY_SHARD_DIR = "sonar.pmd.shardDir";
+	public static final String PROPERTY_SHARD_MERGE = "sonar.pmd.shardMerge";
+	public static final String PROPERTY_SKIP_GENERATED = "sonar.pmd.skipGenerated";
+	public static final String PROPERTY_GENERATED_MARKERS = "sonar.pmd.generatedMarkers";
+	public static final String PROPERTY_READ_AHEAD_THREADS = "sonar.pmd.readAheadThreads";
+	public static final String PROPERTY_READ_AHEAD_BUFFER = "sonar.pmd.readAheadBuffer";
+	public static final String PROPERTY_RULE_COST_HISTORY = "sonar.pmd.ruleCostHistory";
+	public static final String PROPERTY_RULE_TIME_BUDGET = "sonar.pmd.ruleTimeBudget";
+	public static final String PROPERTY_PREVIEW_BUDGET = "sonar.pmd.previewBudget";
+	public static final String PROPERTY_PREVIEW_PRIORITIES = "sonar.pmd.previewPriorities";
+	public static final String PMD_PREVIEW_FILES = "pmd-preview-files.txt";
+	public static final String PROPERTY_MAX_VIOLATIONS_PER_FILE = "sonar.pmd.maxViolationsPerFile";
+	public static final String PROPERTY_MAX_VIOLATIONS_PER_MODULE = "sonar.pmd.maxViolationsPerModule";
+	public static final String PROPERTY_PROGRESS_INTERVAL = "sonar.pmd.progressInterval";
+	public static final String PROPERTY_SLOW_FILES = "sonar.pmd.slowFiles";
+	public static final String PMD_SLOW_FILES = "pmd-slow-files.txt";
+	public static final String PROPERTY_RULE_ERROR_THRESHOLD = "sonar.pmd.ruleErrorThreshold";
 
 	private final ProjectFileSystem projectFileSystem;
 	private final Settings settings;
@@ -90,6 +116,73 @@ public class PmdConfiguration implements BatchExtension {
 		}
 	}
 
+	public File dumpTrace(PmdTracer tracer) {
+		if (!tracer.isEnabled()) {
+			return null;
+		}
+
+		try {
+			StringWriter output = new StringWriter();
+			tracer.write(output);
+
+			File traceFile = projectFileSystem.writeToWorkingDirectory(
+					output.toString(), PMD_TRACE_JSON);
+
+			LOG.info("PMD trace: " + traceFile.getAbsolutePath());
+
+			return traceFile;
+		} catch (IOException e) {
+			throw new SonarException("Fail to save the PMD trace", e);
+		}
+	}
+
+	public File dumpPreviewFiles(PmdPreview preview) {
+		StringBuilder content = new StringBuilder();
+		content.append("# Analysed within the budget\n");
+		for (InputFile file : preview.getCoveredFiles()) {
+			content.append(file.relativePath()).append('\n');
+		}
+		content.append("# Not analysed\n");
+		for (InputFile file : preview.getSkippedFiles()) {
+			content.append(file.relativePath()).append('\n');
+		}
+
+		try {
+			File previewFile = projectFileSystem.writeToWorkingDirectory(
+					content.toString(), PMD_PREVIEW_FILES);
+
+			LOG.info("PMD preview files: " + previewFile.getAbsolutePath());
+
+			return previewFile;
+		} catch (IOException e) {
+			throw new SonarException("Fail to save the PMD preview files", e);
+		}
+	}
+
+	public File dumpSlowFiles(PmdSlowFiles slowFiles) {
+		StringBuilder content = new StringBuilder();
+		content.append("# Time (ms)\tSize (bytes)\tLines\tViolations\tDominant rule\tFile\n");
+		for (PmdSlowFiles.Entry entry : slowFiles.getSlowestFiles()) {
+			content.append(entry.getMillis()).append('\t')
+					.append(entry.getBytes()).append('\t')
+					.append(entry.getLines()).append('\t')
+					.append(entry.getViolations()).append('\t')
+					.append(entry.getDominantRule() == null ? "-" : entry.getDominantRule()).append('\t')
+					.append(entry.getPath()).append('\n');
+		}
+
+		try {
+			File slowFilesFile = projectFileSystem.writeToWorkingDirectory(
+					content.toString(), PMD_SLOW_FILES);
+
+			LOG.info("PMD slowest files: " + slowFilesFile.getAbsolutePath());
+
+			return slowFilesFile;
+		} catch (IOException e) {
+			throw new SonarException("Fail to save the PMD slowest files", e);
+		}
+	}
+
 	private static String reportToString(Report report) throws IOException {
 		StringWriter output = new StringWriter();
 
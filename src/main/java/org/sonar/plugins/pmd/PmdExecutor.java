@@ -21,14 +21,22 @@ package org.sonar.plugins.pmd;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
 
 import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
 import net.sourceforge.pmd.RuleContext;
-import net.sourceforge.pmd.RuleSet;
-import net.sourceforge.pmd.RuleSetFactory;
-import net.sourceforge.pmd.RuleSetNotFoundException;
+import net.sourceforge.pmd.RuleViolation;
 import net.sourceforge.pmd.RuleSets;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
 import org.sonar.api.batch.ProjectClasspath;
 import org.sonar.api.batch.fs.FileSystem;
@@ -36,27 +44,54 @@ import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.config.Settings;
 import org.sonar.api.profiles.RulesProfile;
 import org.sonar.api.resources.Project;
-import org.sonar.api.utils.SonarException;
+import org.sonar.api.rules.ActiveRule;
 import org.sonar.api.utils.TimeProfiler;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class PmdExecutor implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdExecutor.class);
+
   private final Project project;
   private final FileSystem projectFileSystem;
+  private final PmdFileIndex fileIndex;
   private final RulesProfile rulesProfile;
   private final PmdProfileExporter pmdProfileExporter;
   private final PmdConfiguration pmdConfiguration;
+  private final PmdRuleSetCache ruleSetCache;
+  private final PmdMetrics metrics;
+  private final PmdTracer tracer;
+  private final PmdResultCache resultCache;
+  private final ProjectClasspath classpath;
+  private final PmdShards shards;
+  private final PmdRuleCosts ruleCosts;
   private final ClassLoader projectClassloader;
   private final Settings settings;
+  // Lines of the analysed files, by repository
+  private final Map<String, Long> analysedLines = Maps.newHashMap();
+  private PmdPreview preview;
 
-  public PmdExecutor(Project project, FileSystem projectFileSystem, RulesProfile rulesProfile,
-    PmdProfileExporter pmdProfileExporter, PmdConfiguration pmdConfiguration, ProjectClasspath classpath, Settings settings) {
+  public PmdExecutor(Project project, FileSystem projectFileSystem, PmdFileIndex fileIndex, RulesProfile rulesProfile,
+    PmdProfileExporter pmdProfileExporter, PmdConfiguration pmdConfiguration, PmdRuleSetCache ruleSetCache, PmdMetrics metrics,
+    PmdTracer tracer, PmdResultCache resultCache, PmdShards shards, PmdRuleCosts ruleCosts, ProjectClasspath classpath, Settings settings) {
     this.project = project;
     this.projectFileSystem = projectFileSystem;
+    this.fileIndex = fileIndex;
     this.rulesProfile = rulesProfile;
     this.pmdProfileExporter = pmdProfileExporter;
     this.pmdConfiguration = pmdConfiguration;
+    this.ruleSetCache = ruleSetCache;
+    this.metrics = metrics;
+    this.tracer = tracer;
+    this.resultCache = resultCache;
+    this.classpath = classpath;
+    this.shards = shards;
+    this.ruleCosts = ruleCosts;
     this.settings = settings;
     this.projectClassloader = classpath.getClassloader();
   }
@@ -76,58 +111,323 @@ public class PmdExecutor implements BatchExtension {
   }
 
   private Report executePmd() {
-    Report report = new Report();
-
-    RuleContext context = new RuleContext();
-    context.setReport(report);
+    Report report = new PmdViolationStore();
 
     PmdTemplate pmdFactory = createPmdTemplate();
-    executeRules(pmdFactory, context, projectFileSystem.inputFiles(new JavaFilePredicate()), PmdConstants.REPOSITORY_KEY);
-    executeRules(pmdFactory, context, projectFileSystem.inputFiles(new JavaTestFilePredicate()), PmdConstants.TEST_REPOSITORY_KEY);
+    analysedLines.clear();
+    preview = PmdPreview.create(settings);
+    if (preview != null) {
+      preview.start();
+    }
+    Map<String, Long> timingsBefore = PmdRuleTimings.snapshot();
+    List<PmdPass> passes = Lists.newArrayList();
+    // A single budget for the rules of both repositories
+    Map<String, Long> linesByRepository = Maps.newHashMap();
+    addLines(linesByRepository, PmdConstants.REPOSITORY_KEY, lines(fileIndex.mainFiles()));
+    addLines(linesByRepository, PmdConstants.TEST_REPOSITORY_KEY, lines(fileIndex.testFiles()));
+    Set<String> rulesOverBudget = ruleCosts.rulesOverBudget(linesByRule(linesByRepository));
+    addPass(passes, fileIndex.mainFiles(), PmdConstants.REPOSITORY_KEY, rulesOverBudget);
+    addPass(passes, fileIndex.testFiles(), PmdConstants.TEST_REPOSITORY_KEY, rulesOverBudget);
+    PmdViolationCaps violationCaps = PmdViolationCaps.create(settings);
+    if (shards.isMerge()) {
+      for (PmdPass pass : passes) {
+        shards.mergePartialReports(pass.getRepositoryKey(), pass.getRulesets(), report, violationCaps);
+      }
+    } else if (!passes.isEmpty()) {
+      analyse(pmdFactory, passes, violationCaps);
+      for (PmdPass pass : passes) {
+        if (shards.isEnabled()) {
+          // Violations of the shard are written to its partial report
+          shards.writePartialReport(pass.getRepositoryKey(), pass.getReport());
+        }
+        report.merge(pass.getReport());
+      }
+    }
+    if (violationCaps != null) {
+      violationCaps.logSummary();
+    }
+    if (preview != null) {
+      preview.logSummary();
+      pmdConfiguration.dumpPreviewFiles(preview);
+    }
+    // Violations replayed from the result cache cost nothing, so they would make the rules look cheaper
+    if (!resultCache.isEnabled()) {
+      ruleCosts.record(timingsSince(timingsBefore), violationsByRule(report), PmdRuleCosts.ruleKeysByName(rulesProfile),
+        linesByRule(analysedLines));
+    }
 
+    PmdTracer.Event dumpEvent = tracer.begin("dumpXmlReport", "report");
     pmdConfiguration.dumpXmlReport(report);
+    dumpEvent.end();
 
     return report;
   }
 
-  public void executeRules(PmdTemplate pmdFactory, RuleContext ruleContext, Iterable<InputFile> files, String repositoryKey) {
-    if (files == null || !files.iterator().hasNext()) {
+  private void addPass(List<PmdPass> passes, Collection<InputFile> files, String repositoryKey, Set<String> rulesOverBudget) {
+    if (files == null || files.isEmpty()) {
       // Nothing to analyze
       return;
     }
 
-    RuleSets rulesets = createRulesets(repositoryKey);
+    PmdTracer.Event rulesetsEvent = tracer.begin("createRulesets", "rulesets").arg("repository", repositoryKey);
+    final String rulesXml = rulesOverBudget.isEmpty() ? pmdProfileExporter.exportProfile(repositoryKey, rulesProfile)
+      : pmdProfileExporter.exportProfile(repositoryKey, rulesProfile, rulesOverBudget);
+    final File ruleSetFile = pmdConfiguration.dumpXmlRuleSet(repositoryKey, rulesXml);
+    RuleSets rulesets = ruleSetCache.getRulesets(rulesXml, ruleSetFile);
+    rulesetsEvent.end();
     if (rulesets.getAllRules().isEmpty()) {
       // No rule
       return;
     }
 
-    rulesets.start(ruleContext);
+    if (!shards.isMerge()) {
+      if (shards.isEnabled()) {
+        files = shards.select(files);
+      }
+      PmdGeneratedFileFilter generatedFileFilter = PmdGeneratedFileFilter.create(settings, projectFileSystem.encoding());
+      if (generatedFileFilter != null) {
+        files = generatedFileFilter.filter(files, repositoryKey);
+      }
+    }
+    Function<Integer, RuleSets> rulesetsBySlot = new Function<Integer, RuleSets>() {
+      @Override
+      public RuleSets apply(Integer slot) {
+        return ruleSetCache.getRulesets(rulesXml, ruleSetFile, slot);
+      }
+    };
+    PmdRuleFilter ruleFilter = settings.getBoolean(PmdConfiguration.PROPERTY_RULE_FILTER) ? PmdRuleFilter.create(rulesets) : null;
+    passes.add(new PmdPass(repositoryKey, files, rulesets, rulesetsBySlot, ruleFilter));
+  }
+
+  /**
+   * Main and test files are scheduled together, so that they share the workers and the warm-up of the rules.
+   */
+  private void analyse(PmdTemplate pmdFactory, List<PmdPass> passes, @Nullable PmdViolationCaps violationCaps) {
+    List<InputFile> files = Lists.newArrayList();
+    Map<InputFile, PmdPass> passByFile = Maps.newHashMap();
+    for (PmdPass pass : passes) {
+      files.addAll(pass.getFiles());
+      for (InputFile file : pass.getFiles()) {
+        passByFile.put(file, pass);
+      }
+    }
+    if (preview != null) {
+      files = preview.schedule(files);
+    }
+    metrics.filesQueued(files.size());
+    for (PmdPass pass : passes) {
+      addLines(analysedLines, pass.getRepositoryKey(), lines(pass.getFiles()));
+    }
+    boolean typeResolution = selectAnalysisPasses(pmdFactory, passes);
+    if (resultCache.isEnabled()) {
+      pmdFactory.useResultCache(resultCache, resultFingerprint(typeResolution));
+    }
+    int maxThreads = settings.getInt(PmdConfiguration.PROPERTY_THREADS);
+    boolean concurrent = maxThreads > 1 && files.size() > 1;
+    if (violationCaps != null) {
+      // Workers find the violations in no set order, so their module cap is applied when their reports are merged
+      pmdFactory.useViolationCaps(concurrent ? violationCaps.withoutModuleCap() : violationCaps);
+    }
+    PmdReadAhead readAhead = PmdReadAhead.create(settings, files);
+    if (readAhead != null) {
+      readAhead.start();
+      pmdFactory.useReadAhead(readAhead);
+    }
+    PmdProgress progress = PmdProgress.create(settings, files, fileIndex);
+    if (progress != null) {
+      progress.start();
+      pmdFactory.useProgress(progress);
+    }
+    PmdSlowFiles slowFiles = PmdSlowFiles.create(settings);
+    if (slowFiles != null) {
+      pmdFactory.useSlowFiles(slowFiles);
+    }
+    PmdRuleBreaker ruleBreaker = PmdRuleBreaker.create(settings);
+    if (ruleBreaker != null) {
+      pmdFactory.useRuleBreaker(ruleBreaker);
+    }
+
+    try {
+      if (concurrent) {
+        new PmdWorkerPool(pmdFactory, passes, new PmdConcurrencyController(maxThreads), preview, violationCaps).execute(files);
+      } else {
+        analyseSerially(pmdFactory, passes, files, passByFile);
+      }
+    } finally {
+      if (readAhead != null) {
+        pmdFactory.useReadAhead(null);
+        readAhead.stop();
+      }
+      if (progress != null) {
+        pmdFactory.useProgress(null);
+        progress.stop();
+      }
+      if (slowFiles != null) {
+        pmdFactory.useSlowFiles(null);
+      }
+      if (ruleBreaker != null) {
+        pmdFactory.useRuleBreaker(null);
+      }
+    }
 
+    if (preview != null) {
+      List<InputFile> skippedFiles = preview.getSkippedFiles(files);
+      metrics.filesQueued(-skippedFiles.size());
+      for (InputFile skippedFile : skippedFiles) {
+        addLines(analysedLines, passByFile.get(skippedFile).getRepositoryKey(), -skippedFile.lines());
+      }
+    }
+    if (ruleBreaker != null) {
+      ruleBreaker.logSummary();
+    }
+    if (slowFiles != null) {
+      slowFiles.logSummary();
+      pmdConfiguration.dumpSlowFiles(slowFiles);
+    }
+    for (PmdPass pass : passes) {
+      if (pass.getRuleFilter() != null) {
+        pass.getRuleFilter().logStatistics(pass.getRepositoryKey());
+      }
+    }
+  }
+
+  private void analyseSerially(PmdTemplate pmdFactory, List<PmdPass> passes, List<InputFile> files, Map<InputFile, PmdPass> passByFile) {
+    Map<PmdPass, RuleContext> contexts = Maps.newHashMap();
+    for (PmdPass pass : passes) {
+      RuleContext context = new RuleContext();
+      context.setReport(pass.getReport());
+      PmdViolationCaps.setRepository(context, pass.getRepositoryKey());
+      pass.getRulesets().start(context);
+      contexts.put(pass, context);
+    }
     for (InputFile file : files) {
-      pmdFactory.process(file, rulesets, ruleContext);
+      if (preview != null && preview.isOver()) {
+        break;
+      }
+      PmdPass pass = passByFile.get(file);
+      if (pass.getRuleFilter() == null) {
+        pmdFactory.process(file, pass.getRulesets(), contexts.get(pass));
+      } else {
+        pmdFactory.process(file, pass.getRuleFilter(), contexts.get(pass));
+      }
+      if (preview != null) {
+        preview.covered(file);
+      }
+    }
+    for (PmdPass pass : passes) {
+      pass.getRulesets().end(contexts.get(pass));
     }
+  }
 
-    rulesets.end(ruleContext);
+  /**
+   * Lines analysed by each active rule: the lines of the repositories the rule is active in.
+   */
+  private Map<String, Long> linesByRule(Map<String, Long> linesByRepository) {
+    Map<String, Long> linesByRule = Maps.newHashMap();
+    for (Map.Entry<String, Long> entry : linesByRepository.entrySet()) {
+      for (ActiveRule activeRule : rulesProfile.getActiveRulesByRepository(entry.getKey())) {
+        addLines(linesByRule, activeRule.getRuleKey(), entry.getValue());
+      }
+    }
+    return linesByRule;
   }
 
-  private RuleSets createRulesets(String repositoryKey) {
-    String rulesXml = pmdProfileExporter.exportProfile(repositoryKey, rulesProfile);
-    File ruleSetFile = pmdConfiguration.dumpXmlRuleSet(repositoryKey, rulesXml);
-    String ruleSetFilePath = ruleSetFile.getAbsolutePath();
-    RuleSetFactory ruleSetFactory = new RuleSetFactory();
-    try {
-      RuleSet ruleSet = ruleSetFactory.createRuleSet(ruleSetFilePath);
-      return new RuleSets(ruleSet);
-    } catch (RuleSetNotFoundException e) {
-      throw new SonarException(e);
+  private static void addLines(Map<String, Long> linesByKey, String key, long lines) {
+    Long previous = linesByKey.get(key);
+    linesByKey.put(key, previous == null ? lines : previous + lines);
+  }
+
+  private static long lines(@Nullable Collection<InputFile> files) {
+    long lines = 0;
+    if (files != null) {
+      for (InputFile file : files) {
+        lines += file.lines();
+      }
     }
+    return lines;
+  }
+
+  private static Map<String, Long> timingsSince(Map<String, Long> timingsBefore) {
+    Map<String, Long> timings = PmdRuleTimings.snapshot();
+    for (Map.Entry<String, Long> entry : timings.entrySet()) {
+      Long before = timingsBefore.get(entry.getKey());
+      if (before != null) {
+        entry.setValue(entry.getValue() - before);
+      }
+    }
+    return timings;
+  }
+
+  private static Map<String, Integer> violationsByRule(Report report) {
+    Map<String, Integer> violations = Maps.newHashMap();
+    for (Iterator<RuleViolation> it = report.iterator(); it.hasNext();) {
+      String ruleName = it.next().getRule().getName();
+      Integer count = violations.get(ruleName);
+      violations.put(ruleName, count == null ? 1 : count + 1);
+    }
+    return violations;
+  }
+
+  /**
+   * PMD only runs data flow analysis and type resolution when a rule uses them. Type resolution is left out as well
+   * when the project has no classpath to resolve the types from.
+   *
+   * @return whether type resolution runs
+   */
+  private boolean selectAnalysisPasses(PmdTemplate pmdFactory, List<PmdPass> passes) {
+    Set<String> dfaRules = Sets.newTreeSet();
+    Set<String> typeResolutionRules = Sets.newTreeSet();
+    for (PmdPass pass : passes) {
+      for (Rule rule : pass.getRulesets().getAllRules()) {
+        if (rule.usesDFA()) {
+          dfaRules.add(rule.getName());
+        }
+        if (rule.usesTypeResolution()) {
+          typeResolutionRules.add(rule.getName());
+        }
+      }
+    }
+
+    if (dfaRules.isEmpty()) {
+      LOG.info("PMD data flow analysis skipped: no active rule uses it");
+    } else {
+      LOG.info("PMD data flow analysis used by: " + Joiner.on(", ").join(dfaRules));
+    }
+    if (typeResolutionRules.isEmpty()) {
+      LOG.info("PMD type resolution skipped: no active rule uses it");
+      return false;
+    }
+    if (!hasUsableClasspath()) {
+      LOG.info("PMD type resolution skipped: the project classpath is empty. Following rules only check the syntax: " + Joiner.on(", ").join(typeResolutionRules));
+      pmdFactory.useTypeResolution(false);
+      return false;
+    }
+    LOG.info("PMD type resolution used by: " + Joiner.on(", ").join(typeResolutionRules));
+    return true;
+  }
+
+  private boolean hasUsableClasspath() {
+    List<File> elements = classpath.getElements();
+    if (elements != null) {
+      for (File element : elements) {
+        if (element.exists()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private String resultFingerprint(boolean typeResolution) {
+    // Rules are compared one by one by the cache. Classpath only has an effect on the rules using type resolution.
+    String classpathFingerprint = typeResolution ? PmdResultCache.classpathFingerprint(classpath.getElements()) : "";
+    return PmdResultCache.fingerprint(PmdVersion.getVersion(), classpathFingerprint);
   }
 
   @VisibleForTesting
   PmdTemplate createPmdTemplate() {
     Charset encoding = projectFileSystem.encoding();
-    return PmdTemplate.create(settings.getString("sonar.java.source"), projectClassloader, encoding);
+    return PmdTemplate.create(settings.getString("sonar.java.source"), projectClassloader, encoding, metrics, tracer);
   }
 
 }
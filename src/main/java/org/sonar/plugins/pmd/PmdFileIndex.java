@@ -0,0 +1,128 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.FilePredicate;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.plugins.java.Java;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Classifies the Java files of the module into main and test files in a single pass over the file system.
+ * The result is computed once and shared by the sensor and the executor. The executor analyses the files matched by
+ * {@link JavaFilePredicate} and {@link JavaTestFilePredicate}, while the sensor runs on the types of files given by
+ * Sonar, as it always did.
+ */
+public class PmdFileIndex implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdFileIndex.class);
+
+  private final FileSystem fileSystem;
+  private final FilePredicate mainFilePredicate = new JavaFilePredicate();
+
+  private List<InputFile> mainFiles;
+  private List<InputFile> testFiles;
+  private final Set<InputFile.Type> types = EnumSet.noneOf(InputFile.Type.class);
+  private final Map<InputFile, Long> bytesByFile = Maps.newHashMap();
+
+  public PmdFileIndex(FileSystem fileSystem) {
+    this.fileSystem = fileSystem;
+  }
+
+  public List<InputFile> mainFiles() {
+    classify();
+    return mainFiles;
+  }
+
+  public List<InputFile> testFiles() {
+    classify();
+    return testFiles;
+  }
+
+  public long mainBytes() {
+    return bytes(mainFiles());
+  }
+
+  public long testBytes() {
+    return bytes(testFiles());
+  }
+
+  /**
+   * Size of the given file, read once for all the users of the index, and only when asked.
+   */
+  public synchronized long bytes(InputFile inputFile) {
+    Long bytes = bytesByFile.get(inputFile);
+    if (bytes == null) {
+      bytes = inputFile.file().length();
+      bytesByFile.put(inputFile, bytes);
+    }
+    return bytes;
+  }
+
+  /**
+   * Whether the module has Java files of the given type, as classified by Sonar.
+   */
+  public synchronized boolean hasFiles(InputFile.Type type) {
+    classify();
+    return types.contains(type);
+  }
+
+  private long bytes(List<InputFile> files) {
+    long bytes = 0;
+    for (InputFile file : files) {
+      bytes += bytes(file);
+    }
+    return bytes;
+  }
+
+  private synchronized void classify() {
+    if (mainFiles != null) {
+      return;
+    }
+
+    List<InputFile> main = new ArrayList<InputFile>();
+    List<InputFile> test = new ArrayList<InputFile>();
+    for (InputFile inputFile : fileSystem.inputFiles(fileSystem.predicates().hasLanguage(Java.KEY))) {
+      // JavaTestFilePredicate is the complement of JavaFilePredicate among Java files
+      if (mainFilePredicate.apply(inputFile)) {
+        main.add(inputFile);
+      } else {
+        test.add(inputFile);
+      }
+      types.add(inputFile.type());
+    }
+    mainFiles = Collections.unmodifiableList(main);
+    testFiles = Collections.unmodifiableList(test);
+
+    LOG.info("PMD files: " + mainFiles.size() + " main, " + testFiles.size() + " test");
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Drops the generated files before PMD parses them, based on a scan of the first bytes of each file for
+ * the <code>@Generated</code> annotation, outside comments and literals, and the markers of
+ * {@link PmdConfiguration#PROPERTY_GENERATED_MARKERS}.
+ */
+public class PmdGeneratedFileFilter {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdGeneratedFileFilter.class);
+
+  @VisibleForTesting
+  static final int HEADER_BYTES = 4096;
+  // Not @GeneratedValue and the like, which are found in hand-written JPA entities
+  private static final Pattern GENERATED_ANNOTATION = Pattern.compile("@(javax\\.annotation\\.(processing\\.)?)?Generated\\b");
+
+  private final String[] markers;
+  private final Charset charset;
+
+  @VisibleForTesting
+  PmdGeneratedFileFilter(String[] markers, Charset charset) {
+    this.markers = markers;
+    this.charset = charset;
+  }
+
+  /**
+   * Returns the filter configured in the settings, or null when generated files are analysed.
+   */
+  @CheckForNull
+  public static PmdGeneratedFileFilter create(Settings settings, Charset charset) {
+    if (!settings.getBoolean(PmdConfiguration.PROPERTY_SKIP_GENERATED)) {
+      return null;
+    }
+    return new PmdGeneratedFileFilter(settings.getStringArray(PmdConfiguration.PROPERTY_GENERATED_MARKERS), charset);
+  }
+
+  public List<InputFile> filter(Collection<InputFile> files, String repositoryKey) {
+    List<InputFile> result = Lists.newArrayListWithCapacity(files.size());
+    int skippedFiles = 0;
+    long skippedBytes = 0;
+    for (InputFile file : files) {
+      if (isGenerated(file.file())) {
+        skippedFiles++;
+        skippedBytes += file.file().length();
+      } else {
+        result.add(file);
+      }
+    }
+    LOG.info("PMD generated files for " + repositoryKey + ": " + skippedFiles + " of " + files.size() + " files skipped ("
+      + skippedBytes / 1024 + " KB)");
+    return result;
+  }
+
+  @VisibleForTesting
+  boolean isGenerated(File file) {
+    String header;
+    InputStream input = null;
+    try {
+      input = new FileInputStream(file);
+      byte[] bytes = new byte[HEADER_BYTES];
+      int length = ByteStreams.read(input, bytes, 0, bytes.length);
+      header = new String(bytes, 0, length, charset);
+    } catch (IOException e) {
+      // PMD reports the file when it can not be read
+      LOG.debug("Fail to read the header of " + file, e);
+      return false;
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    // Markers are usually comments, but an annotation in a comment or a string is not applied
+    if (GENERATED_ANNOTATION.matcher(code(header)).find()) {
+      return true;
+    }
+    for (String marker : markers) {
+      if (header.contains(marker)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the given source without its comments and the content of its string and character literals. A comment or
+   * literal cut by the end of the header runs to the end.
+   */
+  @VisibleForTesting
+  static String code(String source) {
+    StringBuilder code = new StringBuilder(source.length());
+    int i = 0;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (source.startsWith("//", i)) {
+        i = end(source, source.indexOf('\n', i), 0);
+      } else if (source.startsWith("/*", i)) {
+        i = end(source, source.indexOf("*/", i + 2), 2);
+        // Keeps the tokens apart
+        code.append(' ');
+      } else if (c == '"' || c == '\'') {
+        i = endOfLiteral(source, i, c);
+        code.append(c).append(c);
+      } else {
+        code.append(c);
+        i++;
+      }
+    }
+    return code.toString();
+  }
+
+  private static int end(String source, int index, int length) {
+    return index < 0 ? source.length() : index + length;
+  }
+
+  private static int endOfLiteral(String source, int start, char quote) {
+    int i = start + 1;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == quote || c == '\n') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return source.length();
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+/**
+ * Counts the files analysed by PMD during the batch, and exposes these counts as the MBean
+ * {@value #OBJECT_NAME}, so that long analyses can be watched with standard JMX tools.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PmdMetrics implements PmdMetricsMBean, BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdMetrics.class);
+
+  public static final String OBJECT_NAME = "org.sonar.plugins.pmd:type=PmdMetrics";
+  static final int HOT_SPOTS = 10;
+
+  private final AtomicLong filesQueued = new AtomicLong();
+  private final AtomicLong filesInProgress = new AtomicLong();
+  private final AtomicLong filesDone = new AtomicLong();
+  private final AtomicLong lines = new AtomicLong();
+  private final AtomicLong parseFailures = new AtomicLong();
+  private final AtomicLong violations = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+  private ObjectName objectName;
+
+  public void start() {
+    PmdRuleTimings.reset();
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      LOG.warn("Fail to register the PMD metrics in JMX: " + e.getMessage());
+    }
+  }
+
+  public void stop() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOG.debug("Fail to unregister the PMD metrics from JMX", e);
+      }
+      objectName = null;
+    }
+  }
+
+  public void filesQueued(int count) {
+    filesQueued.addAndGet(count);
+  }
+
+  public void fileStarted() {
+    filesQueued.decrementAndGet();
+    filesInProgress.incrementAndGet();
+  }
+
+  public void fileDone(int fileLines, int fileViolations) {
+    filesInProgress.decrementAndGet();
+    filesDone.incrementAndGet();
+    lines.addAndGet(fileLines);
+    violations.addAndGet(fileViolations);
+  }
+
+  public void parseFailed() {
+    parseFailures.incrementAndGet();
+  }
+
+  @Override
+  public long getFilesQueued() {
+    return Math.max(0, filesQueued.get());
+  }
+
+  @Override
+  public long getFilesInProgress() {
+    return filesInProgress.get();
+  }
+
+  @Override
+  public long getFilesDone() {
+    return filesDone.get();
+  }
+
+  @Override
+  public double getFilesPerSecond() {
+    return filesDone.get() / elapsedSeconds();
+  }
+
+  @Override
+  public double getLinesPerSecond() {
+    return lines.get() / elapsedSeconds();
+  }
+
+  @Override
+  public long getParseFailures() {
+    return parseFailures.get();
+  }
+
+  @Override
+  public long getViolations() {
+    return violations.get();
+  }
+
+  @Override
+  public String[] getRuleHotSpots() {
+    return hotSpots(PmdRuleTimings.snapshot());
+  }
+
+  @VisibleForTesting
+  static String[] hotSpots(Map<String, Long> nanosByRule) {
+    List<Map.Entry<String, Long>> entries = Lists.newArrayList(nanosByRule.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> left, Map.Entry<String, Long> right) {
+        return right.getValue().compareTo(left.getValue());
+      }
+    });
+    List<String> hotSpots = Lists.newArrayList();
+    for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(HOT_SPOTS, entries.size()))) {
+      hotSpots.add(entry.getKey() + ": " + entry.getValue() / 1000000 + " ms");
+    }
+    return hotSpots.toArray(new String[hotSpots.size()]);
+  }
+
+  private double elapsedSeconds() {
+    return Math.max(1, System.nanoTime() - startNanos) / 1000000000.0;
+  }
+
+}
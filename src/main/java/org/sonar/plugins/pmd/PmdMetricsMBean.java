@@ -0,0 +1,46 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+/**
+ * Live metrics of the PMD analysis, exposed through JMX.
+ */
+public interface PmdMetricsMBean {
+
+  long getFilesQueued();
+
+  long getFilesInProgress();
+
+  long getFilesDone();
+
+  double getFilesPerSecond();
+
+  double getLinesPerSecond();
+
+  long getParseFailures();
+
+  long getViolations();
+
+  /**
+   * Rules which took the most time so far, slowest first, as "rule: milliseconds".
+   */
+  String[] getRuleHotSpots();
+
+}
@@ -0,0 +1,83 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collection;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleSets;
+
+import org.sonar.api.batch.fs.InputFile;
+
+import com.google.common.base.Function;
+
+/**
+ * The files of one rule repository, with the rule sets they are analysed with. Main and test files are analysed
+ * in a single pass, each file with the rule sets of its repository, and the violations of each repository are kept
+ * in its own report.
+ */
+public class PmdPass {
+  private final String repositoryKey;
+  private final Collection<InputFile> files;
+  private final RuleSets rulesets;
+  private final Function<Integer, RuleSets> rulesetsBySlot;
+  private final PmdRuleFilter ruleFilter;
+  private final Report report = new PmdViolationStore();
+
+  public PmdPass(String repositoryKey, Collection<InputFile> files, RuleSets rulesets, Function<Integer, RuleSets> rulesetsBySlot,
+    @Nullable PmdRuleFilter ruleFilter) {
+    this.repositoryKey = repositoryKey;
+    this.files = files;
+    this.rulesets = rulesets;
+    this.rulesetsBySlot = rulesetsBySlot;
+    this.ruleFilter = ruleFilter;
+  }
+
+  public String getRepositoryKey() {
+    return repositoryKey;
+  }
+
+  public Collection<InputFile> getFiles() {
+    return files;
+  }
+
+  public RuleSets getRulesets() {
+    return rulesets;
+  }
+
+  /**
+   * Rule sets of a worker slot, as rules are not thread-safe.
+   */
+  public RuleSets getRulesets(int slot) {
+    return rulesetsBySlot.apply(slot);
+  }
+
+  @CheckForNull
+  public PmdRuleFilter getRuleFilter() {
+    return ruleFilter;
+  }
+
+  public Report getReport() {
+    return report;
+  }
+}
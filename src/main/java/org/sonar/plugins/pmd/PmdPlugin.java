@@ -21,6 +21,7 @@ package org.sonar.plugins.pmd;
 
 import java.util.List;
 
+import org.sonar.api.PropertyType;
 import org.sonar.api.SonarPlugin;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.config.Settings;
@@ -37,10 +38,177 @@ public class PmdPlugin extends SonarPlugin {
         .name("Generate XML Report")
         .hidden()
         .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_RULE_FILTER)
+        .defaultValue("false")
+        .name("Rule Filter")
+        .description("Skip the rules which can not report any violation on a file, based on a scan of the tokens of the file.")
+        .type(PropertyType.BOOLEAN)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_THREADS)
+        .defaultValue("1")
+        .name("Threads")
+        .description("Maximum number of threads analysing files. The number of active threads is adjusted at runtime "
+          + "according to the throughput, the heap occupancy and the time spent in GC.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_TRACE)
+        .defaultValue("false")
+        .name("Trace")
+        .description("Write a timeline of the analysis to " + PmdConfiguration.PMD_TRACE_JSON
+          + " in the working directory, in the Chrome Trace Event format.")
+        .type(PropertyType.BOOLEAN)
+        .hidden()
+        .build(),
+
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_CACHE_DIR)
+        .name("Result Cache Directory")
+        .description("Directory where the violations found on each file are kept, to be replayed when the same file is analysed "
+          + "again with the same rules, Java version and classpath. It can be shared by several machines. Disabled when empty.")
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_CACHE_MAX_SIZE)
+        .defaultValue("512")
+        .name("Result Cache Maximum Size")
+        .description("Maximum size in MB of the result cache directory. Least recently used entries are removed beyond this size.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SHARD_COUNT)
+        .defaultValue("1")
+        .name("Shard Count")
+        .description("Number of machines sharing the analysis of each module. Each file is analysed by the shard given by a hash of its path.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SHARD_INDEX)
+        .defaultValue("0")
+        .name("Shard Index")
+        .description("Index of the shard analysed by this machine, from 0 to the shard count minus 1.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SHARD_DIR)
+        .name("Shard Directory")
+        .description("Directory shared by the shards, where the partial reports are written. Working directory of the module when empty.")
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SHARD_MERGE)
+        .defaultValue("false")
+        .name("Shard Merge")
+        .description("Merge the partial reports of all the shards instead of analysing files.")
+        .type(PropertyType.BOOLEAN)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SKIP_GENERATED)
+        .defaultValue("false")
+        .name("Skip Generated Files")
+        .description("Skip the files whose first " + PmdGeneratedFileFilter.HEADER_BYTES / 1024 + " KB contain @Generated or one of the generated file markers.")
+        .type(PropertyType.BOOLEAN)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_GENERATED_MARKERS)
+        .defaultValue("DO NOT EDIT")
+        .name("Generated File Markers")
+        .description("Comma-separated texts, besides @Generated, which mark a generated file, such as the header comment of a code generator.")
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_READ_AHEAD_THREADS)
+        .defaultValue("0")
+        .name("Read-Ahead Threads")
+        .description("Number of threads reading the files ahead of the analysis. Files are read by the analysis when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_READ_AHEAD_BUFFER)
+        .defaultValue("16")
+        .name("Read-Ahead Buffer")
+        .description("Maximum size in MB of the files read ahead and not yet analysed.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_PREVIEW_BUDGET)
+        .defaultValue("0")
+        .name("Preview Budget")
+        .description("Wall-clock time in seconds given to the analysis of each module. Files of the priority list are analysed first, "
+          + "then the most recently modified ones, and the analysis stops when the time is over. Only applies to preview, "
+          + "incremental and dry run analyses. No budget when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_PREVIEW_PRIORITIES)
+        .name("Preview Priorities")
+        .description("Comma-separated paths, relative to the module, of the files to analyse first within the preview budget.")
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_RULE_COST_HISTORY)
+        .name("Rule Cost History")
+        .description("File keeping the average cost of each rule across analyses. Defaults to "
+          + PmdRuleCosts.HISTORY_FILE + " in the working directory, which CI builds usually wipe between runs: "
+          + "point it to a path that survives between builds so that the rule time budget can use the history.")
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET)
+        .defaultValue("0")
+        .name("Rule Time Budget")
+        .description("Time in seconds given to the rules in preview analyses. The rules with the highest cost per violation "
+          + "are left out until the expected time fits in the budget. No budget when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_MAX_VIOLATIONS_PER_FILE)
+        .defaultValue("0")
+        .name("Maximum Violations per File")
+        .description("Maximum number of violations of each rule reported on a file. Violations beyond it are only counted "
+          + "and logged as a summary. No cap when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_MAX_VIOLATIONS_PER_MODULE)
+        .defaultValue("0")
+        .name("Maximum Violations per Module")
+        .description("Maximum number of violations of each rule reported on a module. Violations beyond it are only counted "
+          + "and logged as a summary. No cap when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_PROGRESS_INTERVAL)
+        .defaultValue("0")
+        .name("Progress Interval")
+        .description("Interval in seconds between the lines logging the progress of the analysis of a module, "
+          + "with the expected remaining time and the file analysed for longer than the interval. No progress logged when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_SLOW_FILES)
+        .defaultValue("0")
+        .name("Slowest Files")
+        .description("Number of files which took the longest to analyse, logged at the end of the analysis of each module and written to "
+          + PmdConfiguration.PMD_SLOW_FILES + " in the working directory. Each file then keeps its violations apart "
+          + "while it is analysed. None when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
+      PropertyDefinition.builder(PmdConfiguration.PROPERTY_RULE_ERROR_THRESHOLD)
+        .defaultValue("0")
+        .name("Rule Error Threshold")
+        .description("Number of files on which a rule may fail before it is removed from the rest of the analysis of the module. "
+          + "Other rules keep their violations on these files. Rules are never removed when 0.")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .build(),
 
       PmdSensor.class,
       PmdConfiguration.class,
       PmdExecutor.class,
+      PmdFileIndex.class,
+      PmdRuleSetCache.class,
+      PmdMetrics.class,
+      PmdTracer.class,
+      PmdResultCache.class,
+      PmdShards.class,
+      PmdRuleCosts.class,
       PmdRuleRepository.class,
       PmdUnitTestsRuleRepository.class,
       PmdProfileExporter.class,
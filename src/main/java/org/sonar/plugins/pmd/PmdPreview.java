@@ -0,0 +1,175 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Analyses the files within a wall-clock budget, starting with the files of the priority list and then the most
+ * recently modified ones. Analysis stops between two files when the budget is over, so that the report only has
+ * complete files, and the files which were analysed and the ones which were not are recorded.
+ */
+public class PmdPreview {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdPreview.class);
+
+  private final long budgetNanos;
+  private final Map<String, Integer> priorities = Maps.newHashMap();
+  private final Ticker ticker;
+  private final List<InputFile> scheduledFiles = Lists.newArrayList();
+  private final Set<InputFile> coveredFiles = Collections.synchronizedSet(Sets.<InputFile>newHashSet());
+  private long deadline;
+
+  @VisibleForTesting
+  PmdPreview(long budgetMillis, List<String> priorities, Ticker ticker) {
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    this.ticker = ticker;
+    for (String path : priorities) {
+      if (!this.priorities.containsKey(path)) {
+        this.priorities.put(path, this.priorities.size());
+      }
+    }
+    this.deadline = ticker.read() + budgetNanos;
+  }
+
+  /**
+   * Returns the preview configured in the settings, or null when all the files are analysed. Analyses which publish
+   * their results analyse all the files, otherwise the issues of the skipped files would be closed.
+   */
+  @CheckForNull
+  public static PmdPreview create(Settings settings) {
+    long budgetMillis = settings.getLong(PmdConfiguration.PROPERTY_PREVIEW_BUDGET) * 1000;
+    if (budgetMillis <= 0 || !isPreviewAnalysis(settings)) {
+      return null;
+    }
+    return new PmdPreview(budgetMillis, Arrays.asList(settings.getStringArray(PmdConfiguration.PROPERTY_PREVIEW_PRIORITIES)),
+      Ticker.systemTicker());
+  }
+
+  /**
+   * Whether the results of the analysis are not published: preview, incremental and dry run analyses.
+   */
+  public static boolean isPreviewAnalysis(Settings settings) {
+    String mode = settings.getString(CoreProperties.ANALYSIS_MODE);
+    return CoreProperties.ANALYSIS_MODE_PREVIEW.equals(mode) || CoreProperties.ANALYSIS_MODE_INCREMENTAL.equals(mode)
+      || settings.getBoolean(CoreProperties.DRY_RUN);
+  }
+
+  /**
+   * Starts the budget.
+   */
+  public void start() {
+    deadline = ticker.read() + budgetNanos;
+  }
+
+  /**
+   * Returns the files in the order of analysis: files of the priority list first, then the most recently modified.
+   */
+  public List<InputFile> schedule(Collection<InputFile> files) {
+    List<InputFile> ordered = Lists.newArrayList(files);
+    final Map<InputFile, Long> lastModified = Maps.newHashMap();
+    for (InputFile file : ordered) {
+      lastModified.put(file, file.file().lastModified());
+    }
+    Collections.sort(ordered, new Comparator<InputFile>() {
+      @Override
+      public int compare(InputFile left, InputFile right) {
+        int result = priority(left).compareTo(priority(right));
+        if (result == 0) {
+          result = lastModified.get(right).compareTo(lastModified.get(left));
+        }
+        return result == 0 ? left.relativePath().compareTo(right.relativePath()) : result;
+      }
+    });
+    scheduledFiles.addAll(ordered);
+    return ordered;
+  }
+
+  private Integer priority(InputFile file) {
+    Integer priority = priorities.get(file.relativePath());
+    return priority == null ? Integer.MAX_VALUE : priority;
+  }
+
+  public boolean isOver() {
+    return ticker.read() - deadline >= 0;
+  }
+
+  public void covered(InputFile file) {
+    coveredFiles.add(file);
+  }
+
+  public List<InputFile> getCoveredFiles() {
+    List<InputFile> covered = Lists.newArrayList();
+    for (InputFile file : scheduledFiles) {
+      if (coveredFiles.contains(file)) {
+        covered.add(file);
+      }
+    }
+    return covered;
+  }
+
+  /**
+   * Returns the files which were not analysed within the budget, among the given ones.
+   */
+  public List<InputFile> getSkippedFiles(Collection<InputFile> files) {
+    List<InputFile> skipped = Lists.newArrayList();
+    for (InputFile file : files) {
+      if (!coveredFiles.contains(file)) {
+        skipped.add(file);
+      }
+    }
+    return skipped;
+  }
+
+  public List<InputFile> getSkippedFiles() {
+    return getSkippedFiles(scheduledFiles);
+  }
+
+  public void logSummary() {
+    int skipped = getSkippedFiles().size();
+    if (skipped == 0) {
+      LOG.info("PMD preview: all the " + scheduledFiles.size() + " files analysed within the budget");
+    } else {
+      LOG.warn("PMD preview: budget of " + TimeUnit.NANOSECONDS.toSeconds(budgetNanos) + " s is over, " + (scheduledFiles.size() - skipped)
+        + " of " + scheduledFiles.size() + " files analysed");
+    }
+  }
+
+}
@@ -24,6 +24,7 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import net.sourceforge.pmd.lang.Language;
 
@@ -32,11 +33,14 @@ import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.api.profiles.ProfileExporter;
 import org.sonar.api.profiles.RulesProfile;
 import org.sonar.api.rules.ActiveRule;
 import org.sonar.api.rules.ActiveRuleParam;
 import org.sonar.api.utils.SonarException;
+import org.sonar.api.utils.ValidationMessages;
 import org.sonar.plugins.java.Java;
 import org.sonar.plugins.pmd.xml.PmdProperty;
 import org.sonar.plugins.pmd.xml.PmdRule;
@@ -45,10 +49,20 @@ import org.sonar.plugins.pmd.xml.PmdRuleset;
 import com.google.common.annotations.VisibleForTesting;
 
 public class PmdProfileExporter extends ProfileExporter {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdProfileExporter.class);
+
+  private final PmdXPathCostAnalyser xpathCostAnalyser;
+
   public PmdProfileExporter() {
+    this(new PmdXPathCostAnalyser());
+  }
+
+  @VisibleForTesting
+  PmdProfileExporter(PmdXPathCostAnalyser xpathCostAnalyser) {
     super(PmdConstants.REPOSITORY_KEY, PmdConstants.PLUGIN_NAME);
     setSupportedLanguages(Java.KEY);
     setMimeType("application/xml");
+    this.xpathCostAnalyser = xpathCostAnalyser;
   }
 
   @Override
@@ -56,6 +70,7 @@ public class PmdProfileExporter extends ProfileExporter {
     try {
       String xmlModules = exportProfile(PmdConstants.REPOSITORY_KEY, profile);
       writer.append(xmlModules);
+      validateXPathRules(profile);
     } catch (IOException e) {
       throw new SonarException("Fail to export the profile " + profile, e);
     }
@@ -66,6 +81,30 @@ public class PmdProfileExporter extends ProfileExporter {
     return exportPmdRulesetToXml(tree);
   }
 
+  /**
+   * Exports the active rules of the profile, except the rules with the given keys.
+   */
+  public String exportProfile(String repositoryKey, RulesProfile profile, Set<String> excludedRuleKeys) {
+    List<ActiveRule> activeRules = new ArrayList<ActiveRule>();
+    for (ActiveRule activeRule : profile.getActiveRulesByRepository(repositoryKey)) {
+      if (!excludedRuleKeys.contains(activeRule.getRuleKey())) {
+        activeRules.add(activeRule);
+      }
+    }
+    return exportPmdRulesetToXml(createPmdRuleset(repositoryKey, activeRules, profile.getName()));
+  }
+
+  private void validateXPathRules(RulesProfile profile) {
+    ValidationMessages messages = ValidationMessages.create();
+    for (ActiveRule activeRule : profile.getActiveRulesByRepository(PmdConstants.REPOSITORY_KEY)) {
+      String xpath = activeRule.getParameter(PmdConstants.XPATH_EXPRESSION_PARAM);
+      if (PmdConstants.XPATH_CLASS.equals(activeRule.getConfigKey()) && xpath != null) {
+        xpathCostAnalyser.validateStatically(activeRule.getRuleKey(), xpath, messages);
+      }
+    }
+    messages.log(LOG);
+  }
+
   private PmdRuleset createPmdRuleset(String repositoryKey, List<ActiveRule> activeRules, String profileName) {
     PmdRuleset ruleset = new PmdRuleset(profileName);
     for (ActiveRule activeRule : activeRules) {
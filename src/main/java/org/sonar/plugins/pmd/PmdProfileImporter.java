@@ -42,15 +42,24 @@ import org.sonar.plugins.pmd.xml.PmdProperty;
 import org.sonar.plugins.pmd.xml.PmdRule;
 import org.sonar.plugins.pmd.xml.PmdRuleset;
 
+import com.google.common.annotations.VisibleForTesting;
+
 public class PmdProfileImporter extends ProfileImporter {
 
   private final RuleFinder ruleFinder;
+  private final PmdXPathCostAnalyser xpathCostAnalyser;
   private static final Logger LOG = LoggerFactory.getLogger(PmdProfileImporter.class);
 
   public PmdProfileImporter(RuleFinder ruleFinder) {
+    this(ruleFinder, new PmdXPathCostAnalyser());
+  }
+
+  @VisibleForTesting
+  PmdProfileImporter(RuleFinder ruleFinder, PmdXPathCostAnalyser xpathCostAnalyser) {
     super(PmdConstants.REPOSITORY_KEY, PmdConstants.PLUGIN_NAME);
     setSupportedLanguages(Java.KEY);
     this.ruleFinder = ruleFinder;
+    this.xpathCostAnalyser = xpathCostAnalyser;
   }
 
   @Override
@@ -63,6 +72,10 @@ public class PmdProfileImporter extends ProfileImporter {
     RulesProfile profile = RulesProfile.create();
     for (PmdRule pmdRule : pmdRuleset.getPmdRules()) {
       if (PmdConstants.XPATH_CLASS.equals(pmdRule.getClazz())) {
+        PmdProperty xpathExp = pmdRule.getProperty(PmdConstants.XPATH_EXPRESSION_PARAM);
+        if (xpathExp != null && xpathExp.getValue() != null) {
+          xpathCostAnalyser.validate(pmdRule.getName(), xpathExp.getValue(), messages);
+        }
         messages.addWarningText("PMD XPath rule '" + pmdRule.getName()
           + "' can't be imported automatically. The rule must be created manually through the SonarQube web interface.");
         continue;
@@ -126,7 +139,12 @@ public class PmdProfileImporter extends ProfileImporter {
   private void parsePmdProperties(Element eltRule, PmdRule pmdRule, @Nullable Namespace namespace) {
     for (Element eltProperties : getChildren(eltRule, "properties", namespace)) {
       for (Element eltProperty : getChildren(eltProperties, "property", namespace)) {
-        pmdRule.addProperty(new PmdProperty(eltProperty.getAttributeValue("name"), eltProperty.getAttributeValue("value")));
+        String value = eltProperty.getAttributeValue("value");
+        if (value == null) {
+          // XPath expressions are usually given as CDATA in a child element
+          value = eltProperty.getChildText("value", namespace);
+        }
+        pmdRule.addProperty(new PmdProperty(eltProperty.getAttributeValue("name"), value));
       }
     }
   }
@@ -0,0 +1,166 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Logs the progress of the analysis of a module at a regular interval: files and bytes done, throughput, expected
+ * remaining time, and the file analysed for the longest time when it has been running for more than the interval.
+ * This tells a slow analysis from a stuck one without thread dumps.
+ */
+public class PmdProgress {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdProgress.class);
+
+  private final PmdFileIndex fileIndex;
+  private final int totalFiles;
+  private final long totalBytes;
+  private final long intervalNanos;
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong filesDone = new AtomicLong();
+  private final AtomicLong bytesDone = new AtomicLong();
+  private final Map<InputFile, Long> filesInProgress = new ConcurrentHashMap<InputFile, Long>();
+  private final Object lock = new Object();
+  private Thread thread;
+  private boolean stopped;
+
+  @VisibleForTesting
+  PmdProgress(Collection<InputFile> files, PmdFileIndex fileIndex, long intervalNanos) {
+    this.fileIndex = fileIndex;
+    this.totalFiles = files.size();
+    long bytes = 0;
+    for (InputFile file : files) {
+      bytes += fileIndex.bytes(file);
+    }
+    this.totalBytes = bytes;
+    this.intervalNanos = intervalNanos;
+  }
+
+  /**
+   * Returns the progress logging configured in the settings, or null when it is disabled.
+   */
+  @CheckForNull
+  public static PmdProgress create(Settings settings, Collection<InputFile> files, PmdFileIndex fileIndex) {
+    int intervalSeconds = settings.getInt(PmdConfiguration.PROPERTY_PROGRESS_INTERVAL);
+    if (intervalSeconds <= 0 || files.isEmpty()) {
+      return null;
+    }
+    return new PmdProgress(files, fileIndex, TimeUnit.SECONDS.toNanos(intervalSeconds));
+  }
+
+  public void start() {
+    thread = new Thread("PMD progress") {
+      @Override
+      public void run() {
+        logPeriodically();
+      }
+    };
+    // Never prevents the batch from exiting
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    synchronized (lock) {
+      stopped = true;
+      lock.notifyAll();
+    }
+  }
+
+  public void fileStarted(InputFile file) {
+    filesInProgress.put(file, System.nanoTime());
+  }
+
+  public void fileDone(InputFile file) {
+    filesInProgress.remove(file);
+    filesDone.incrementAndGet();
+    bytesDone.addAndGet(fileIndex.bytes(file));
+  }
+
+  private void logPeriodically() {
+    synchronized (lock) {
+      try {
+        long deadline = System.nanoTime() + intervalNanos;
+        while (!stopped) {
+          long waitNanos = deadline - System.nanoTime();
+          if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+          } else {
+            LOG.info(describe(System.nanoTime()));
+            deadline += intervalNanos;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  String describe(long nowNanos) {
+    long done = filesDone.get();
+    double elapsedSeconds = Math.max(1, nowNanos - startNanos) / 1000000000.0;
+    double filesPerSecond = done / elapsedSeconds;
+    StringBuilder message = new StringBuilder("PMD progress: ")
+      .append(done).append('/').append(totalFiles).append(" files (").append(done * 100 / Math.max(1, totalFiles)).append("%), ")
+      .append(bytesDone.get() / 1024).append('/').append(totalBytes / 1024).append(" KB, ")
+      .append(String.format(Locale.ENGLISH, "%.1f", filesPerSecond)).append(" files/sec, ");
+    if (done == 0) {
+      message.append("remaining time unknown");
+    } else {
+      message.append("about ").append(duration((long) ((totalFiles - done) / filesPerSecond))).append(" remaining");
+    }
+
+    InputFile longest = null;
+    long longestStart = nowNanos - intervalNanos;
+    for (Map.Entry<InputFile, Long> entry : filesInProgress.entrySet()) {
+      if (entry.getValue() < longestStart) {
+        longest = entry.getKey();
+        longestStart = entry.getValue();
+      }
+    }
+    if (longest != null) {
+      message.append(", analysing ").append(longest.relativePath()).append(" for ")
+        .append(duration(TimeUnit.NANOSECONDS.toSeconds(nowNanos - longestStart)));
+    }
+    return message.toString();
+  }
+
+  private static String duration(long seconds) {
+    if (seconds < 60) {
+      return seconds + " s";
+    }
+    return seconds / 60 + " min " + seconds % 60 + " s";
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Reads the files to analyse ahead of PMD with a few I/O threads, in the order of the analysis, so that
+ * the analysis does not wait for the file system. The content of the files read and not yet taken by
+ * the analysis is limited to a maximum number of bytes; a larger file is only read when nothing else is buffered.
+ */
+public class PmdReadAhead {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdReadAhead.class);
+
+  private static final byte[] FAILED = new byte[0];
+
+  private final List<InputFile> files;
+  private final int ioThreads;
+  private final long maxBufferedBytes;
+
+  private final Object lock = new Object();
+  private final Set<InputFile> pending;
+  private final Map<InputFile, byte[]> contents = Maps.newHashMap();
+  private final Map<InputFile, Long> reservations = Maps.newHashMap();
+  private final List<Thread> threads = Lists.newArrayList();
+  private int next;
+  private int filesRead;
+  private long bufferedBytes;
+  private long peakBufferedBytes;
+  private long waitNanos;
+  private boolean stopped;
+
+  @VisibleForTesting
+  PmdReadAhead(Collection<InputFile> files, int ioThreads, long maxBufferedBytes) {
+    this.files = ImmutableList.copyOf(files);
+    this.ioThreads = ioThreads;
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.pending = Sets.newHashSet(files);
+  }
+
+  /**
+   * Returns the read-ahead configured in the settings, or null when the files are read by the analysis.
+   */
+  @CheckForNull
+  public static PmdReadAhead create(Settings settings, Collection<InputFile> files) {
+    int ioThreads = settings.getInt(PmdConfiguration.PROPERTY_READ_AHEAD_THREADS);
+    if (ioThreads <= 0 || files.size() <= 1) {
+      return null;
+    }
+    return new PmdReadAhead(files, ioThreads, settings.getLong(PmdConfiguration.PROPERTY_READ_AHEAD_BUFFER) * 1024 * 1024);
+  }
+
+  public void start() {
+    for (int i = 0; i < Math.min(ioThreads, files.size()); i++) {
+      Thread thread = new Thread("PMD read-ahead " + i) {
+        @Override
+        public void run() {
+          readFiles();
+        }
+      };
+      // Never prevents the batch from exiting, even when the analysis fails before taking all the files
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Gives the content of the file to the caller, waiting for it when it is being read, or returns null when
+   * the file is not read ahead, so that the caller reads it itself. Each file is given once.
+   */
+  @CheckForNull
+  public byte[] take(InputFile file) {
+    long start = System.nanoTime();
+    synchronized (lock) {
+      if (!pending.remove(file) || !reservations.containsKey(file)) {
+        // Analysis is ahead of the I/O threads, which skip the file
+        return null;
+      }
+      try {
+        while (!contents.containsKey(file) && !stopped) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      waitNanos += System.nanoTime() - start;
+      byte[] content = contents.remove(file);
+      bufferedBytes -= reservations.remove(file);
+      lock.notifyAll();
+      return content == FAILED ? null : content;
+    }
+  }
+
+  public void stop() {
+    synchronized (lock) {
+      stopped = true;
+      lock.notifyAll();
+      LOG.info("PMD read-ahead: " + filesRead + " files read by " + threads.size() + " threads, peak buffer " + peakBufferedBytes / 1024
+        + " KB, analysis waited " + waitNanos / 1000000 + " ms for I/O");
+    }
+  }
+
+  @VisibleForTesting
+  long getBufferedBytes() {
+    synchronized (lock) {
+      return bufferedBytes;
+    }
+  }
+
+  private void readFiles() {
+    InputFile file;
+    while ((file = reserveNext()) != null) {
+      byte[] content;
+      try {
+        content = Files.toByteArray(file.file());
+      } catch (IOException e) {
+        // Analysis reads the file again and reports the failure
+        LOG.debug("Fail to read ahead " + file.file(), e);
+        content = FAILED;
+      }
+      synchronized (lock) {
+        contents.put(file, content);
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Files are reserved in the order of the analysis, so that the buffer is only held by files which come before
+   * the ones the analysis waits for.
+   */
+  @CheckForNull
+  private InputFile reserveNext() {
+    synchronized (lock) {
+      try {
+        while (!stopped && next < files.size()) {
+          InputFile file = files.get(next);
+          long size = file.file().length();
+          if (!pending.contains(file)) {
+            next++;
+          } else if (bufferedBytes == 0 || bufferedBytes + size <= maxBufferedBytes) {
+            next++;
+            filesRead++;
+            bufferedBytes += size;
+            peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
+            reservations.put(file, size);
+            return file;
+          } else {
+            lock.wait();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.PropertyDescriptor;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Keeps the violations found by PMD on each file in a directory, which can be shared by several machines.
+ * Entries are addressed by a hash of the content of the file and of everything else which has an effect on
+ * the analysis: PMD version, Java version and classpath. Each entry records the fingerprint of every rule it was
+ * analysed with, so that only the rules which were added or re-parameterised since are run again. They are written to a temporary file and then renamed,
+ * so that readers never see a partial entry. When the directory exceeds its maximum size, the least recently
+ * used entries are removed at the end of the batch.
+ * Files which PMD fails to parse are recorded as well, by content, PMD version and Java version, so that they are
+ * not parsed again.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PmdResultCache implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdResultCache.class);
+
+  static final String ENTRY_SUFFIX = ".pmd";
+  static final String PARSE_FAILURE_SUFFIX = ".failed";
+  private static final int FORMAT_VERSION = 2;
+  // Eviction goes below the maximum size, so that it is not needed again by the next batch
+  private static final double EVICTION_RATIO = 0.8;
+
+  private final File directory;
+  private final long maxBytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong partialHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong skippedParseFailures = new AtomicLong();
+
+  public PmdResultCache(Settings settings) {
+    this(directory(settings.getString(PmdConfiguration.PROPERTY_CACHE_DIR)),
+      settings.getLong(PmdConfiguration.PROPERTY_CACHE_MAX_SIZE) * 1024 * 1024);
+  }
+
+  @VisibleForTesting
+  PmdResultCache(@Nullable File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  private static File directory(@Nullable String path) {
+    return StringUtils.isBlank(path) ? null : new File(path);
+  }
+
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  public void stop() {
+    if (skippedParseFailures.get() > 0) {
+      LOG.warn("PMD: " + skippedParseFailures.get() + " files skipped, as they failed to parse before with the same content, PMD version "
+        + "and Java version. Remove the " + PARSE_FAILURE_SUFFIX + " files of " + directory + " to parse them again.");
+    }
+    if (isEnabled() && hits.get() + partialHits.get() + misses.get() > 0) {
+      LOG.info("PMD result cache: " + hits.get() + " hits, " + partialHits.get() + " partial hits, " + misses.get() + " misses");
+      evict();
+    }
+  }
+
+  /**
+   * Returns a hash of the given parts, to be used as the fingerprint of the analysis configuration.
+   */
+  public static String fingerprint(String... parts) {
+    MessageDigest digest = sha1();
+    for (String part : parts) {
+      digest.update(part.getBytes(Charsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return hex(digest.digest());
+  }
+
+  /**
+   * Returns a hash of the names and contents of the classpath elements. Absolute paths are left out, so that
+   * machines with different workspaces share the same entries. Archives are read through the checksums of their
+   * entries, so that only their central directory is read.
+   */
+  public static String classpathFingerprint(List<File> elements) {
+    List<String> parts = Lists.newArrayList();
+    for (File element : elements) {
+      if (element.isDirectory()) {
+        addDirectory(parts, element, element.getName());
+      } else if (element.isFile()) {
+        parts.add(element.getName() + ":" + archiveFingerprint(element));
+      }
+    }
+    return fingerprint(parts.toArray(new String[parts.size()]));
+  }
+
+  private static void addDirectory(List<String> parts, File directory, String path) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addDirectory(parts, file, path + "/" + file.getName());
+      } else {
+        parts.add(path + "/" + file.getName() + ":" + fileFingerprint(file));
+      }
+    }
+  }
+
+  private static String fileFingerprint(File file) {
+    try {
+      return hex(Files.getDigest(file, sha1()));
+    } catch (IOException e) {
+      throw new SonarException("Fail to read the classpath element " + file, e);
+    }
+  }
+
+  private static String archiveFingerprint(File archive) {
+    ZipFile zipFile;
+    try {
+      zipFile = new ZipFile(archive);
+    } catch (IOException e) {
+      // Not an archive
+      return fileFingerprint(archive);
+    }
+    try {
+      List<String> parts = Lists.newArrayList();
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        parts.add(entry.getName() + ":" + entry.getSize() + ":" + entry.getCrc());
+      }
+      return fingerprint(parts.toArray(new String[parts.size()]));
+    } finally {
+      try {
+        zipFile.close();
+      } catch (IOException e) {
+        LOG.debug("Fail to close " + archive, e);
+      }
+    }
+  }
+
+  /**
+   * Returns a hash of everything which has an effect on the violations of the rule: class, name, message and properties.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public static String ruleFingerprint(Rule rule) {
+    List<PropertyDescriptor<?>> descriptors = Lists.newArrayList(rule.getPropertyDescriptors());
+    Collections.sort(descriptors, new Comparator<PropertyDescriptor<?>>() {
+      @Override
+      public int compare(PropertyDescriptor<?> left, PropertyDescriptor<?> right) {
+        return left.name().compareTo(right.name());
+      }
+    });
+    List<String> parts = Lists.newArrayList(rule.getRuleClass(), rule.getName(), StringUtils.defaultString(rule.getMessage()));
+    for (PropertyDescriptor descriptor : descriptors) {
+      Object value = rule.getProperty(descriptor);
+      parts.add(descriptor.name() + "=" + (value == null ? "" : descriptor.asDelimitedString(value)));
+    }
+    return fingerprint(parts.toArray(new String[parts.size()]));
+  }
+
+  /**
+   * Returns the fingerprints of the rules of the rule sets, by rule name.
+   */
+  public static Map<String, String> ruleFingerprints(RuleSets rulesets) {
+    Map<String, String> fingerprints = Maps.newHashMap();
+    for (Rule rule : rulesets.getAllRules()) {
+      fingerprints.put(rule.getName(), ruleFingerprint(rule));
+    }
+    return fingerprints;
+  }
+
+  public static String key(byte[] content, String fingerprint) {
+    MessageDigest digest = sha1();
+    digest.update(content);
+    digest.update(fingerprint.getBytes(Charsets.UTF_8));
+    return hex(digest.digest());
+  }
+
+  /**
+   * Returns the violations recorded for the key, bound to the rules of the given rule sets and to the given file,
+   * with the rules to run again as they changed since, or null when there is no usable entry.
+   */
+  @CheckForNull
+  public Result get(String key, RuleSets rulesets, Map<String, String> ruleFingerprints, String filename) {
+    File entry = entry(key, ENTRY_SUFFIX);
+    if (!entry.isFile()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+      Result result = read(input, rulesets, ruleFingerprints, filename);
+      if (result == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      // Last modification date is the date of last use for the eviction
+      entry.setLastModified(System.currentTimeMillis());
+      if (result.staleRules.isEmpty()) {
+        hits.incrementAndGet();
+      } else {
+        partialHits.incrementAndGet();
+      }
+      return result;
+    } catch (IOException e) {
+      // Entry may be removed by another batch
+      LOG.debug("Fail to read the PMD result cache entry " + entry, e);
+      misses.incrementAndGet();
+      return null;
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+  }
+
+  /**
+   * Records the violations found on a file by the rules with the given fingerprints.
+   */
+  public void put(String key, Map<String, String> ruleFingerprints, Collection<RuleViolation> violations) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      write(new DataOutputStream(bytes), ruleFingerprints, violations);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    store(entry(key, ENTRY_SUFFIX), bytes.toByteArray());
+  }
+
+  /**
+   * Tells whether the file with the given parse failure key failed to parse before.
+   */
+  public boolean isParseFailure(String failureKey, String filename) {
+    File entry = entry(failureKey, PARSE_FAILURE_SUFFIX);
+    if (!entry.isFile()) {
+      return false;
+    }
+    entry.setLastModified(System.currentTimeMillis());
+    skippedParseFailures.incrementAndGet();
+    LOG.debug("PMD: skipping " + filename + ", which failed to parse before");
+    return true;
+  }
+
+  public void putParseFailure(String failureKey, String message) {
+    store(entry(failureKey, PARSE_FAILURE_SUFFIX), StringUtils.defaultString(message).getBytes(Charsets.UTF_8));
+  }
+
+  public long getSkippedParseFailures() {
+    return skippedParseFailures.get();
+  }
+
+  private static void store(File entry, byte[] data) {
+    File temp = null;
+    try {
+      entry.getParentFile().mkdirs();
+      temp = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile());
+      Files.write(data, temp);
+      // Rename is atomic on a same file system. When it fails, another batch already wrote the same entry.
+      if (!temp.renameTo(entry) && !entry.isFile()) {
+        LOG.debug("Fail to write the PMD result cache entry " + entry);
+      }
+    } catch (IOException e) {
+      LOG.debug("Fail to write the PMD result cache entry " + entry, e);
+    } finally {
+      if (temp != null && temp.exists()) {
+        temp.delete();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void evict() {
+    File[] buckets = directory.listFiles();
+    if (buckets == null) {
+      return;
+    }
+    List<File> entries = Lists.newArrayList();
+    long totalBytes = 0;
+    for (File bucket : buckets) {
+      File[] files = bucket.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().endsWith(ENTRY_SUFFIX) || file.getName().endsWith(PARSE_FAILURE_SUFFIX)) {
+            entries.add(file);
+            totalBytes += file.length();
+          }
+        }
+      }
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File left, File right) {
+        return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
+      }
+    });
+    long targetBytes = (long) (maxBytes * EVICTION_RATIO);
+    int evicted = 0;
+    for (File entry : entries) {
+      if (totalBytes <= targetBytes) {
+        break;
+      }
+      long length = entry.length();
+      if (entry.delete()) {
+        totalBytes -= length;
+        evicted++;
+      }
+    }
+    LOG.info("PMD result cache: " + evicted + " entries evicted");
+  }
+
+  private File entry(String key, String suffix) {
+    return new File(new File(directory, key.substring(0, 2)), key + suffix);
+  }
+
+  private static void write(DataOutputStream output, Map<String, String> ruleFingerprints, Collection<RuleViolation> violations)
+    throws IOException {
+    output.writeInt(FORMAT_VERSION);
+    output.writeInt(ruleFingerprints.size());
+    for (Map.Entry<String, String> ruleFingerprint : ruleFingerprints.entrySet()) {
+      output.writeUTF(ruleFingerprint.getKey());
+      output.writeUTF(ruleFingerprint.getValue());
+    }
+    PmdViolationCodec.write(output, violations);
+  }
+
+  @CheckForNull
+  private static Result read(DataInputStream input, RuleSets rulesets, Map<String, String> ruleFingerprints, String filename)
+    throws IOException {
+    if (input.readInt() != FORMAT_VERSION) {
+      return null;
+    }
+    int count = input.readInt();
+    Map<String, String> storedFingerprints = Maps.newHashMapWithExpectedSize(count);
+    for (int i = 0; i < count; i++) {
+      storedFingerprints.put(input.readUTF(), input.readUTF());
+    }
+    Set<String> staleRules = Sets.newHashSet();
+    for (Map.Entry<String, String> ruleFingerprint : ruleFingerprints.entrySet()) {
+      if (!ruleFingerprint.getValue().equals(storedFingerprints.get(ruleFingerprint.getKey()))) {
+        staleRules.add(ruleFingerprint.getKey());
+      }
+    }
+    if (staleRules.size() == ruleFingerprints.size() && !staleRules.isEmpty()) {
+      // Nothing to reuse
+      return null;
+    }
+    // Violations of removed rules are skipped, the ones of the stale rules are found again
+    List<RuleViolation> violations = PmdViolationCodec.read(input, rulesets, filename, true);
+    List<RuleViolation> upToDate = Lists.newArrayListWithCapacity(violations.size());
+    for (RuleViolation violation : violations) {
+      if (!staleRules.contains(violation.getRule().getName())) {
+        upToDate.add(violation);
+      }
+    }
+    return new Result(upToDate, staleRules);
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new SonarException("SHA-1 is not available", e);
+    }
+  }
+
+  /**
+   * Violations of a file replayed from the cache, and the rules to run again on the file.
+   */
+  public static class Result {
+    private final List<RuleViolation> violations;
+    private final Set<String> staleRules;
+
+    Result(List<RuleViolation> violations, Set<String> staleRules) {
+      this.violations = violations;
+      this.staleRules = staleRules;
+    }
+
+    public List<RuleViolation> getViolations() {
+      return violations;
+    }
+
+    /**
+     * Names of the rules which were added or changed since the violations were recorded.
+     */
+    public Set<String> getStaleRules() {
+      return staleRules;
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+}
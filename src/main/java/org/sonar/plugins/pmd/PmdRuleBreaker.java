@@ -0,0 +1,210 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.lang.rule.RuleReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Counts the errors of each rule, and leaves out a rule for the rest of the analysis once it reaches the threshold,
+ * so that a broken rule does not make every file fail. Errors are given to the rules whose code throws them, which
+ * are told apart by running them alone on the file. Thread-safe; the rule sets without the removed rules are used by
+ * the same thread as the rule sets they come from, like their rules.
+ */
+public class PmdRuleBreaker {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdRuleBreaker.class);
+
+  private final int threshold;
+  private final ConcurrentMap<String, AtomicInteger> errors = new ConcurrentHashMap<String, AtomicInteger>();
+  private final ConcurrentMap<String, String> firstErrors = new ConcurrentHashMap<String, String>();
+  private volatile Set<String> removedRules = ImmutableSet.of();
+  private final Map<RuleSets, Subset> subsets = Collections.synchronizedMap(new WeakHashMap<RuleSets, Subset>());
+
+  @VisibleForTesting
+  PmdRuleBreaker(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns the breaker configured in the settings, or null when the rules are never removed.
+   */
+  @CheckForNull
+  public static PmdRuleBreaker create(Settings settings) {
+    int threshold = settings.getInt(PmdConfiguration.PROPERTY_RULE_ERROR_THRESHOLD);
+    return threshold > 0 ? new PmdRuleBreaker(threshold) : null;
+  }
+
+  /**
+   * Same rule sets without the rules removed so far, or the given rule sets when none of their rules was removed.
+   */
+  public RuleSets withoutRemovedRules(RuleSets rulesets) {
+    Set<String> removed = removedRules;
+    if (removed.isEmpty()) {
+      return rulesets;
+    }
+    Subset subset = subsets.get(rulesets);
+    if (subset == null || subset.removed != removed) {
+      subset = new Subset(removed, without(rulesets, removed));
+      subsets.put(rulesets, subset);
+    }
+    return subset.rulesets;
+  }
+
+  /**
+   * Rules whose code is the closest to where the error was thrown, or none when no rule code is part of the stack trace.
+   */
+  public List<Rule> suspects(Throwable error, RuleSets rulesets) {
+    Map<String, List<Rule>> rulesByClass = Maps.newHashMap();
+    for (Rule rule : rulesets.getAllRules()) {
+      String className = implementation(rule).getClass().getName();
+      List<Rule> rules = rulesByClass.get(className);
+      if (rules == null) {
+        rules = Lists.newArrayList();
+        rulesByClass.put(className, rules);
+      }
+      rules.add(rule);
+    }
+    for (Throwable cause : causes(error)) {
+      for (StackTraceElement element : cause.getStackTrace()) {
+        String className = element.getClassName();
+        List<Rule> rules = rulesByClass.get(className);
+        int inner = className.lastIndexOf('$');
+        if (rules == null && inner >= 0) {
+          // Code of the rule in an anonymous or inner class
+          rules = rulesByClass.get(className.substring(0, inner));
+        }
+        if (rules != null) {
+          return rules;
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Records an error of the rule, and removes the rule when it reaches the threshold.
+   */
+  public void ruleFailed(Rule rule, String file, Throwable error) {
+    String ruleName = rule.getName();
+    LOG.debug("PMD rule " + ruleName + " failed on " + file, error);
+    firstErrors.putIfAbsent(ruleName, String.valueOf(error.getCause() == null ? error : error.getCause()));
+    AtomicInteger count = errors.get(ruleName);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = errors.putIfAbsent(ruleName, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    if (count.incrementAndGet() == threshold) {
+      synchronized (this) {
+        removedRules = ImmutableSet.<String>builder().addAll(removedRules).add(ruleName).build();
+      }
+    }
+  }
+
+  public Set<String> getRemovedRules() {
+    return removedRules;
+  }
+
+  /**
+   * Logs a single warning for all the rules which failed, removed or not.
+   */
+  public void logSummary() {
+    if (errors.isEmpty()) {
+      return;
+    }
+    StringBuilder message = new StringBuilder("PMD rules failed during the analysis:");
+    for (Map.Entry<String, AtomicInteger> entry : new TreeMap<String, AtomicInteger>(errors).entrySet()) {
+      String ruleName = entry.getKey();
+      message.append("\n  ").append(ruleName).append(": ").append(entry.getValue().get()).append(" errors")
+        .append(removedRules.contains(ruleName) ? ", removed from the analysis" : "")
+        .append(", first error: ").append(firstErrors.get(ruleName));
+    }
+    LOG.warn(message.toString());
+  }
+
+  /**
+   * Same rule sets without the given rules, sharing the rules of the given rule sets.
+   */
+  static RuleSets without(RuleSets rulesets, Collection<String> ruleNames) {
+    return PmdRuleSubsets.select(rulesets, Predicates.not(PmdRuleSubsets.named(ruleNames)));
+  }
+
+  /**
+   * Same rule sets with the given rule only.
+   */
+  static RuleSets only(RuleSets rulesets, String ruleName) {
+    return PmdRuleSubsets.select(rulesets, PmdRuleSubsets.named(Collections.singleton(ruleName)));
+  }
+
+  private static Rule implementation(Rule rule) {
+    Rule implementation = rule;
+    while (implementation instanceof RuleReference) {
+      implementation = ((RuleReference) implementation).getRule();
+    }
+    return implementation;
+  }
+
+  /**
+   * The root cause first.
+   */
+  private static List<Throwable> causes(Throwable error) {
+    List<Throwable> causes = Lists.newArrayList();
+    for (Throwable cause = error; cause != null && !causes.contains(cause); cause = cause.getCause()) {
+      causes.add(0, cause);
+    }
+    return causes;
+  }
+
+  private static class Subset {
+    private final Set<String> removed;
+    private final RuleSets rulesets;
+
+    Subset(Set<String> removed, RuleSets rulesets) {
+      this.removed = removed;
+      this.rulesets = rulesets;
+    }
+  }
+}
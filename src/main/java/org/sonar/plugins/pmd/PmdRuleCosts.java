@@ -0,0 +1,289 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.config.Settings;
+import org.sonar.api.profiles.RulesProfile;
+import org.sonar.api.rules.ActiveRule;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Keeps a rolling average of the cost of each rule, in milliseconds per thousand lines, and of the violations it
+ * finds, across analyses. Rules are kept by Sonar rule key, which PMD does not know about: its timings and violations
+ * are given by PMD rule name, see {@link #ruleKeysByName(RulesProfile)}. The most expensive rules are logged after each analysis. When
+ * {@link PmdConfiguration#PROPERTY_RULE_TIME_BUDGET} is set, preview analyses leave out the rules with the highest
+ * cost per violation until the expected time of the rules fits in the budget.
+ */
+public class PmdRuleCosts implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdRuleCosts.class);
+
+  static final String HISTORY_FILE = "pmd-rule-costs.properties";
+  // Weight of the last analysis in the rolling average
+  private static final double LAST_WEIGHT = 0.3;
+  private static final int REPORT_SIZE = 10;
+
+  private final File historyFile;
+  private final Settings settings;
+  private Map<String, Cost> history;
+
+  public PmdRuleCosts(FileSystem fileSystem, Settings settings) {
+    this(historyFile(fileSystem, settings), settings);
+  }
+
+  @VisibleForTesting
+  PmdRuleCosts(File historyFile, Settings settings) {
+    this.historyFile = historyFile;
+    this.settings = settings;
+  }
+
+  /**
+   * The working directory is often wiped between CI builds, in which case the default history only lasts one analysis.
+   */
+  private static File historyFile(FileSystem fileSystem, Settings settings) {
+    String path = settings.getString(PmdConfiguration.PROPERTY_RULE_COST_HISTORY);
+    return StringUtils.isBlank(path) ? new File(fileSystem.workDir(), HISTORY_FILE) : new File(path);
+  }
+
+  /**
+   * Returns the Sonar keys of the active PMD rules by PMD rule name. Some rules share their name, like LooseCoupling
+   * with and without type resolution.
+   */
+  public static Multimap<String, String> ruleKeysByName(RulesProfile profile) {
+    Multimap<String, String> ruleKeys = HashMultimap.create();
+    for (String repositoryKey : new String[] {PmdConstants.REPOSITORY_KEY, PmdConstants.TEST_REPOSITORY_KEY}) {
+      for (ActiveRule activeRule : profile.getActiveRulesByRepository(repositoryKey)) {
+        // XPath rules are named after their key by the exporter
+        String configKey = activeRule.getConfigKey();
+        String ruleName = PmdConstants.XPATH_CLASS.equals(configKey) ? activeRule.getRuleKey() : StringUtils.substringAfterLast(configKey, "/");
+        ruleKeys.put(ruleName, activeRule.getRuleKey());
+      }
+    }
+    return ruleKeys;
+  }
+
+  /**
+   * Returns the keys of the rules to leave out, so that the active rules are expected to analyse their lines within
+   * the time budget. The budget applies once to the whole analysis, main and test files together. Rules are only left
+   * out of preview analyses.
+   *
+   * @param linesByRule lines to analyse by each active rule, by rule key
+   */
+  public Set<String> rulesOverBudget(Map<String, Long> linesByRule) {
+    long budgetMillis = settings.getLong(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET) * 1000;
+    if (budgetMillis <= 0 || !PmdPreview.isPreviewAnalysis(settings)) {
+      return Collections.emptySet();
+    }
+    Map<String, Cost> costs = history();
+    List<String> candidates = Lists.newArrayList();
+    double expectedMillis = 0;
+    for (Map.Entry<String, Long> entry : linesByRule.entrySet()) {
+      Cost cost = costs.get(entry.getKey());
+      if (cost != null) {
+        candidates.add(entry.getKey());
+        expectedMillis += cost.millisPerKloc * entry.getValue() / 1000;
+      }
+    }
+    Collections.sort(candidates, new ByCostPerViolation(costs));
+    Set<String> leftOut = Sets.newLinkedHashSet();
+    for (String ruleKey : candidates) {
+      if (expectedMillis <= budgetMillis) {
+        break;
+      }
+      leftOut.add(ruleKey);
+      expectedMillis -= costs.get(ruleKey).millisPerKloc * linesByRule.get(ruleKey) / 1000;
+    }
+    if (!leftOut.isEmpty()) {
+      LOG.warn("PMD rule time budget of " + budgetMillis / 1000 + " s: " + leftOut.size() + " rules left out of this preview analysis "
+        + leftOut);
+    }
+    return leftOut;
+  }
+
+  /**
+   * Adds the time spent by each rule and the violations it found to the history, and logs the most expensive rules.
+   * PMD tells the rules apart by name only, so the cost of a name shared by several rules is split between them.
+   *
+   * @param linesByRule lines analysed by each active rule, by rule key, on the same basis as {@link #rulesOverBudget(Map)}
+   */
+  public void record(Map<String, Long> nanosByRuleName, Map<String, Integer> violationsByRuleName, Multimap<String, String> ruleKeysByName,
+    Map<String, Long> linesByRule) {
+    Map<String, Cost> costs = history();
+    Map<String, Double> violationsByRule = Maps.newHashMap();
+    for (Map.Entry<String, Long> entry : nanosByRuleName.entrySet()) {
+      Collection<String> ruleKeys = ruleKeysByName.get(entry.getKey());
+      Integer violations = violationsByRuleName.get(entry.getKey());
+      double share = 1.0 / ruleKeys.size();
+      for (String ruleKey : ruleKeys) {
+        Long lines = linesByRule.get(ruleKey);
+        if (lines == null || lines <= 0) {
+          continue;
+        }
+        violationsByRule.put(ruleKey, (violations == null ? 0 : violations) * share);
+        Cost last = new Cost(entry.getValue() * share / 1000.0 / lines, violationsByRule.get(ruleKey) * 1000.0 / lines);
+        Cost previous = costs.get(ruleKey);
+        costs.put(ruleKey, previous == null ? last : previous.roll(last));
+      }
+    }
+    if (violationsByRule.isEmpty()) {
+      return;
+    }
+    save(costs);
+    logMostExpensiveRules(costs, violationsByRule);
+  }
+
+  private void logMostExpensiveRules(Map<String, Cost> costs, Map<String, Double> violationsByRule) {
+    List<String> ruleKeys = Lists.newArrayList(costs.keySet());
+    Collections.sort(ruleKeys, new ByCost(costs));
+    StringBuilder report = new StringBuilder("PMD most expensive rules (rolling average of " + historyFile + "):");
+    for (int i = 0; i < Math.min(REPORT_SIZE, ruleKeys.size()); i++) {
+      String ruleKey = ruleKeys.get(i);
+      Double violations = violationsByRule.get(ruleKey);
+      report.append(String.format(Locale.ENGLISH, "%n  %2d. %s: %.2f ms/KLOC, %.0f violations", i + 1, ruleKey,
+        costs.get(ruleKey).millisPerKloc, violations == null ? 0 : violations));
+    }
+    LOG.info(report.toString());
+  }
+
+  private Map<String, Cost> history() {
+    if (history == null) {
+      history = load();
+    }
+    return history;
+  }
+
+  private Map<String, Cost> load() {
+    Map<String, Cost> costs = Maps.newHashMap();
+    if (!historyFile.isFile()) {
+      return costs;
+    }
+    Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(historyFile);
+      properties.load(input);
+      for (String ruleName : properties.stringPropertyNames()) {
+        String[] values = StringUtils.split(properties.getProperty(ruleName), ',');
+        costs.put(ruleName, new Cost(Double.parseDouble(values[0]), Double.parseDouble(values[1])));
+      }
+    } catch (Exception e) {
+      // History is only a hint, a new one is started
+      LOG.warn("Fail to read the PMD rule costs from " + historyFile + ": " + e.getMessage());
+      costs.clear();
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    return costs;
+  }
+
+  private void save(Map<String, Cost> costs) {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Cost> entry : costs.entrySet()) {
+      properties.setProperty(entry.getKey(), entry.getValue().millisPerKloc + "," + entry.getValue().violationsPerKloc);
+    }
+    OutputStream output = null;
+    try {
+      historyFile.getParentFile().mkdirs();
+      output = new FileOutputStream(historyFile);
+      properties.store(output, "PMD rule costs: milliseconds per KLOC, violations per KLOC");
+    } catch (IOException e) {
+      LOG.warn("Fail to save the PMD rule costs to " + historyFile + ": " + e.getMessage());
+    } finally {
+      Closeables.closeQuietly(output);
+    }
+  }
+
+  private static class Cost {
+    private final double millisPerKloc;
+    private final double violationsPerKloc;
+
+    Cost(double millisPerKloc, double violationsPerKloc) {
+      this.millisPerKloc = millisPerKloc;
+      this.violationsPerKloc = violationsPerKloc;
+    }
+
+    Cost roll(Cost last) {
+      return new Cost(millisPerKloc * (1 - LAST_WEIGHT) + last.millisPerKloc * LAST_WEIGHT,
+        violationsPerKloc * (1 - LAST_WEIGHT) + last.violationsPerKloc * LAST_WEIGHT);
+    }
+
+    double millisPerViolation() {
+      return violationsPerKloc == 0 ? Double.POSITIVE_INFINITY : millisPerKloc / violationsPerKloc;
+    }
+  }
+
+  private static class ByCost implements Comparator<String> {
+    private final Map<String, Cost> costs;
+
+    ByCost(Map<String, Cost> costs) {
+      this.costs = costs;
+    }
+
+    @Override
+    public int compare(String left, String right) {
+      return Double.compare(costs.get(right).millisPerKloc, costs.get(left).millisPerKloc);
+    }
+  }
+
+  /**
+   * Highest cost per violation first, and then highest cost for the rules which never find anything.
+   */
+  private static class ByCostPerViolation extends ByCost {
+    private final Map<String, Cost> costs;
+
+    ByCostPerViolation(Map<String, Cost> costs) {
+      super(costs);
+      this.costs = costs;
+    }
+
+    @Override
+    public int compare(String left, String right) {
+      int result = Double.compare(costs.get(right).millisPerViolation(), costs.get(left).millisPerViolation());
+      return result == 0 ? super.compare(left, right) : result;
+    }
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Selects, for a given source, the subset of the rules which can possibly report a violation on it.
+ * A rule declared in {@link #TOKENS_PATH} is skipped when none of its tokens appears in the source.
+ */
+public class PmdRuleFilter {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdRuleFilter.class);
+
+  static final String TOKENS_PATH = "/org/sonar/plugins/pmd/rule-tokens.properties";
+
+  private final RuleSets rulesets;
+  private final Map<String, String[]> ruleTokens;
+  private final List<Rule> filteredRules = new ArrayList<Rule>();
+  private final List<String[]> filteredRuleTokens = new ArrayList<String[]>();
+  private final int ruleCount;
+  private final Map<BitSet, RuleSets> selections = new ConcurrentHashMap<BitSet, RuleSets>();
+  private final AtomicLong ruleVisits;
+  private final AtomicLong skippedRuleVisits;
+
+  public static PmdRuleFilter create(RuleSets rulesets) {
+    return new PmdRuleFilter(rulesets, loadRuleTokens());
+  }
+
+  @VisibleForTesting
+  PmdRuleFilter(RuleSets rulesets, Map<String, String[]> ruleTokens) {
+    this(rulesets, ruleTokens, new AtomicLong(), new AtomicLong());
+  }
+
+  private PmdRuleFilter(RuleSets rulesets, Map<String, String[]> ruleTokens, AtomicLong ruleVisits, AtomicLong skippedRuleVisits) {
+    this.rulesets = rulesets;
+    this.ruleTokens = ruleTokens;
+    this.ruleVisits = ruleVisits;
+    this.skippedRuleVisits = skippedRuleVisits;
+    this.ruleCount = rulesets.getAllRules().size();
+    for (Rule rule : rulesets.getAllRules()) {
+      String[] tokens = ruleTokens.get(rule.getName());
+      if (tokens != null) {
+        filteredRules.add(rule);
+        filteredRuleTokens.add(tokens);
+      }
+    }
+  }
+
+  /**
+   * Creates a filter for another instance of the same rule sets, which shares the statistics of this filter.
+   */
+  public PmdRuleFilter forRulesets(RuleSets otherRulesets) {
+    return new PmdRuleFilter(otherRulesets, ruleTokens, ruleVisits, skippedRuleVisits);
+  }
+
+  /**
+   * Returns all the rules, selected or not.
+   */
+  public RuleSets getRulesets() {
+    return rulesets;
+  }
+
+  public RuleSets select(String source) {
+    BitSet skipped = new BitSet(filteredRules.size());
+    for (int i = 0; i < filteredRules.size(); i++) {
+      if (!containsAny(source, filteredRuleTokens.get(i))) {
+        skipped.set(i);
+      }
+    }
+
+    ruleVisits.addAndGet(ruleCount);
+    if (skipped.isEmpty()) {
+      return rulesets;
+    }
+    skippedRuleVisits.addAndGet(skipped.cardinality());
+
+    RuleSets selection = selections.get(skipped);
+    if (selection == null) {
+      selection = createSelection(skipped);
+      selections.put(skipped, selection);
+    }
+    return selection;
+  }
+
+  public long getRuleVisits() {
+    return ruleVisits.get();
+  }
+
+  public long getSkippedRuleVisits() {
+    return skippedRuleVisits.get();
+  }
+
+  public void logStatistics(String repositoryKey) {
+    LOG.info("PMD rule filter for " + repositoryKey + ": " + skippedRuleVisits.get() + " of " + ruleVisits.get() + " rule visits skipped ("
+      + filteredRules.size() + " of " + ruleCount + " rules filtered by tokens)");
+  }
+
+  private RuleSets createSelection(BitSet skipped) {
+    Set<Rule> skippedRules = Sets.newHashSet();
+    for (int i = skipped.nextSetBit(0); i >= 0; i = skipped.nextSetBit(i + 1)) {
+      skippedRules.add(filteredRules.get(i));
+    }
+    return PmdRuleSubsets.select(rulesets, Predicates.not(Predicates.in(skippedRules)));
+  }
+
+  private static boolean containsAny(String text, String[] tokens) {
+    for (String token : tokens) {
+      if (text.contains(token)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @VisibleForTesting
+  static Map<String, String[]> loadRuleTokens() {
+    Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = PmdRuleFilter.class.getResourceAsStream(TOKENS_PATH);
+      properties.load(input);
+    } catch (IOException e) {
+      throw new SonarException("Fail to load the PMD rule tokens from " + TOKENS_PATH, e);
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+
+    ImmutableMap.Builder<String, String[]> ruleTokens = ImmutableMap.builder();
+    for (String ruleName : properties.stringPropertyNames()) {
+      Iterable<String> tokens = Splitter.on(',').trimResults().omitEmptyStrings().split(properties.getProperty(ruleName));
+      ruleTokens.put(ruleName, Iterables.toArray(tokens, String.class));
+    }
+    return ruleTokens.build();
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSetFactory;
+import net.sourceforge.pmd.RuleSetNotFoundException;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the PMD rule sets created during the batch, so that modules sharing the same quality profile
+ * reuse the same rule instances. In particular the XPath expressions of these rules are compiled only once.
+ * As rules are not thread-safe, each worker thread uses the rule sets of its own slot.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PmdRuleSetCache implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdRuleSetCache.class);
+
+  private static final int MAX_ENTRIES = 8;
+
+  private final Map<String, List<RuleSets>> rulesetsByXml = new LinkedHashMap<String, List<RuleSets>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, List<RuleSets>> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  public RuleSets getRulesets(String rulesXml, File ruleSetFile) {
+    return getRulesets(rulesXml, ruleSetFile, 0);
+  }
+
+  public synchronized RuleSets getRulesets(String rulesXml, File ruleSetFile, int slot) {
+    List<RuleSets> slots = rulesetsByXml.get(rulesXml);
+    if (slots == null) {
+      slots = Lists.newArrayList();
+      rulesetsByXml.put(rulesXml, slots);
+    }
+    while (slots.size() <= slot) {
+      slots.add(createRulesets(ruleSetFile, slots.isEmpty()));
+    }
+    return slots.get(slot);
+  }
+
+  private static RuleSets createRulesets(File ruleSetFile, boolean log) {
+    RuleSetFactory ruleSetFactory = new RuleSetFactory();
+    try {
+      RuleSet ruleSet = ruleSetFactory.createRuleSet(ruleSetFile.getAbsolutePath());
+      RuleSets rulesets = new RuleSets(ruleSet);
+      if (log) {
+        logXPathRules(rulesets);
+      }
+      return rulesets;
+    } catch (RuleSetNotFoundException e) {
+      throw new SonarException(e);
+    }
+  }
+
+  private static void logXPathRules(RuleSets rulesets) {
+    List<String> fullTraversals = Lists.newArrayList();
+    int xpathRules = 0;
+    for (Rule rule : rulesets.getAllRules()) {
+      if (rule instanceof XPathRule) {
+        xpathRules++;
+        // Compiles the expression: rules starting with //NodeName are served by the shared rule chain
+        if (!rule.usesRuleChain()) {
+          fullTraversals.add(rule.getName());
+        }
+      }
+    }
+    if (xpathRules > 0) {
+      LOG.info("PMD XPath rules: " + (xpathRules - fullTraversals.size()) + " on the rule chain, " + fullTraversals.size() + " with a full traversal "
+        + fullTraversals);
+    }
+  }
+
+}
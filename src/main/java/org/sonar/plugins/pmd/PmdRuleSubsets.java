@@ -0,0 +1,73 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collection;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Copies of rule sets with some of their rules. The copies share the rules of the original rule sets.
+ */
+final class PmdRuleSubsets {
+
+  private PmdRuleSubsets() {
+    // only static methods
+  }
+
+  static RuleSets select(RuleSets rulesets, Predicate<Rule> selected) {
+    return select(rulesets.getAllRuleSets(), selected);
+  }
+
+  static RuleSets select(RuleSet[] ruleSets, Predicate<Rule> selected) {
+    RuleSets subset = new RuleSets();
+    for (RuleSet ruleset : ruleSets) {
+      RuleSet selectedRuleset = new RuleSet();
+      selectedRuleset.setName(ruleset.getName());
+      selectedRuleset.setFileName(ruleset.getFileName());
+      selectedRuleset.setIncludePatterns(ruleset.getIncludePatterns());
+      selectedRuleset.setExcludePatterns(ruleset.getExcludePatterns());
+      for (Rule rule : ruleset.getRules()) {
+        if (selected.apply(rule)) {
+          selectedRuleset.addRule(rule);
+        }
+      }
+      subset.addRuleSet(selectedRuleset);
+    }
+    return subset;
+  }
+
+  /**
+   * Selects the rules with the given names.
+   */
+  static Predicate<Rule> named(final Collection<String> ruleNames) {
+    return new Predicate<Rule>() {
+      @Override
+      public boolean apply(Rule rule) {
+        return ruleNames.contains(rule.getName());
+      }
+    };
+  }
+
+}
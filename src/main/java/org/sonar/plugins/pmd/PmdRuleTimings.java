@@ -0,0 +1,95 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import net.sourceforge.pmd.benchmark.Benchmark;
+import net.sourceforge.pmd.benchmark.Benchmarker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Reads the time spent by each rule, as recorded by PMD in {@link Benchmarker} for every file it analyses.
+ * The results of PMD are not public, so they are read by reflection.
+ */
+public final class PmdRuleTimings {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdRuleTimings.class);
+
+  private static Field typeField;
+  private static Method getTime;
+  private static boolean unavailable;
+
+  private PmdRuleTimings() {
+    // only static methods
+  }
+
+  /**
+   * Returns the cumulated time in nanoseconds of each rule, by rule name.
+   */
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> nanosByRule = Maps.newHashMap();
+    synchronized (Benchmarker.class) {
+      for (Map.Entry<String, ?> entry : Benchmarker.values().entrySet()) {
+        Object result = entry.getValue();
+        if (!init(result)) {
+          return ImmutableMap.of();
+        }
+        try {
+          Object type = typeField.get(result);
+          if (type == Benchmark.Rule || type == Benchmark.RuleChainRule) {
+            nanosByRule.put(entry.getKey(), (Long) getTime.invoke(result));
+          }
+        } catch (Exception e) {
+          LOG.debug("Fail to read the PMD benchmark of " + entry.getKey(), e);
+        }
+      }
+    }
+    return nanosByRule;
+  }
+
+  public static void reset() {
+    synchronized (Benchmarker.class) {
+      Benchmarker.reset();
+    }
+  }
+
+  private static synchronized boolean init(Object result) {
+    if (getTime == null && !unavailable) {
+      try {
+        typeField = result.getClass().getField("type");
+        typeField.setAccessible(true);
+        getTime = result.getClass().getMethod("getTime");
+        getTime.setAccessible(true);
+      } catch (Exception e) {
+        LOG.warn("Timings of PMD rules are not available: " + e.getMessage());
+        unavailable = true;
+      }
+    }
+    return !unavailable;
+  }
+
+}
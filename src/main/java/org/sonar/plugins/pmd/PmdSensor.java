@@ -20,61 +20,109 @@
 package org.sonar.plugins.pmd;
 
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
 
 import net.sourceforge.pmd.Report;
 import net.sourceforge.pmd.RuleViolation;
 
 import org.sonar.api.batch.Sensor;
 import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.profiles.RulesProfile;
 import org.sonar.api.resources.Project;
+import org.sonar.api.resources.Resource;
 import org.sonar.api.rules.Violation;
 import org.sonar.api.utils.XmlParserException;
-import org.sonar.plugins.java.Java;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class PmdSensor implements Sensor {
   private final RulesProfile profile;
   private final PmdExecutor executor;
+  private final PmdFileIndex fileIndex;
   private final PmdViolationToRuleViolation pmdViolationToRuleViolation;
+  private final PmdConfiguration pmdConfiguration;
+  private final PmdTracer tracer;
 
-  public PmdSensor(RulesProfile profile, PmdExecutor executor,
-    PmdViolationToRuleViolation pmdViolationToRuleViolation) {
+  public PmdSensor(RulesProfile profile, PmdExecutor executor, PmdFileIndex fileIndex,
+    PmdViolationToRuleViolation pmdViolationToRuleViolation, PmdConfiguration pmdConfiguration, PmdTracer tracer) {
     this.profile = profile;
     this.executor = executor;
+    this.fileIndex = fileIndex;
     this.pmdViolationToRuleViolation = pmdViolationToRuleViolation;
+    this.pmdConfiguration = pmdConfiguration;
+    this.tracer = tracer;
   }
 
   @Override
   public boolean shouldExecuteOnProject(Project project) {
-    return !project.getFileSystem().mainFiles(Java.KEY).isEmpty()
-      && !profile.getActiveRulesByRepository(
-        PmdConstants.REPOSITORY_KEY).isEmpty()
-        || !project.getFileSystem().testFiles(Java.KEY).isEmpty()
-        && !profile.getActiveRulesByRepository(
-          PmdConstants.TEST_REPOSITORY_KEY).isEmpty();
+    // Active rules are checked first so that the file index is only built when needed
+    return !profile.getActiveRulesByRepository(
+      PmdConstants.REPOSITORY_KEY).isEmpty()
+      && fileIndex.hasFiles(InputFile.Type.MAIN)
+      || !profile.getActiveRulesByRepository(
+        PmdConstants.TEST_REPOSITORY_KEY).isEmpty()
+        && fileIndex.hasFiles(InputFile.Type.TEST);
   }
 
   @Override
   public void analyse(Project project, SensorContext context) {
     try {
       Report report = executor.execute();
+      PmdTracer.Event reportEvent = tracer.begin("reportViolations", "report").arg("violations", report.size());
       reportViolations(report.iterator(), context);
+      reportEvent.end();
+      pmdConfiguration.dumpTrace(tracer);
     } catch (Exception e) {
       throw new XmlParserException(e);
     }
   }
 
-  private void reportViolations(Iterator<RuleViolation> violations,
-    SensorContext context) {
+  /**
+   * Saves the violations in one batch per file, after resolving the file once and dropping the duplicates.
+   * Reports give the violations file by file, so that only the violations of one file are held at a time.
+   */
+  private void reportViolations(Iterator<RuleViolation> violations, SensorContext context) {
+    String filename = null;
+    List<RuleViolation> fileViolations = Lists.newArrayList();
     while (violations.hasNext()) {
       RuleViolation pmdViolation = violations.next();
+      if (!pmdViolation.getFilename().equals(filename)) {
+        reportViolations(filename, fileViolations, context);
+        filename = pmdViolation.getFilename();
+        fileViolations.clear();
+      }
+      fileViolations.add(pmdViolation);
+    }
+    reportViolations(filename, fileViolations, context);
+  }
 
-      Violation violation = pmdViolationToRuleViolation.toViolation(
-        pmdViolation, context);
-      if (null != violation) {
-        context.saveViolation(violation);
+  private void reportViolations(@Nullable String filename, List<RuleViolation> fileViolations, SensorContext context) {
+    if (fileViolations.isEmpty()) {
+      return;
+    }
+    Resource resource = pmdViolationToRuleViolation.findResource(filename, context);
+    if (resource != null) {
+      reportViolations(fileViolations, resource, context);
+    }
+  }
+
+  private void reportViolations(List<RuleViolation> fileViolations, Resource resource, SensorContext context) {
+    List<Violation> batch = Lists.newArrayListWithCapacity(fileViolations.size());
+    Set<String> keys = Sets.newHashSet();
+    for (RuleViolation pmdViolation : fileViolations) {
+      Violation violation = pmdViolationToRuleViolation.toViolation(pmdViolation, resource);
+      if (null != violation && keys.add(violation.getRule().getKey() + ':' + violation.getLineId() + ':' + violation.getMessage())) {
+        batch.add(violation);
       }
     }
+    if (!batch.isEmpty()) {
+      context.saveViolations(batch);
+    }
   }
 
   @Override
@@ -0,0 +1,220 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Project;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Splits the analysis of a module across several machines. Each shard analyses the files assigned to it by
+ * a stable hash of their path, and writes its violations to a partial report. The analysis run with
+ * {@value PmdConfiguration#PROPERTY_SHARD_MERGE} reads the partial reports of all the shards instead of analysing files.
+ */
+public class PmdShards implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdShards.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  private final Project project;
+  private final FileSystem fileSystem;
+  private final Settings settings;
+
+  public PmdShards(Project project, FileSystem fileSystem, Settings settings) {
+    this.project = project;
+    this.fileSystem = fileSystem;
+    this.settings = settings;
+  }
+
+  public boolean isEnabled() {
+    return getShardCount() > 1;
+  }
+
+  public boolean isMerge() {
+    return isEnabled() && settings.getBoolean(PmdConfiguration.PROPERTY_SHARD_MERGE);
+  }
+
+  public int getShardCount() {
+    return settings.getInt(PmdConfiguration.PROPERTY_SHARD_COUNT);
+  }
+
+  public int getShardIndex() {
+    int shardIndex = settings.getInt(PmdConfiguration.PROPERTY_SHARD_INDEX);
+    if (shardIndex < 0 || shardIndex >= getShardCount()) {
+      throw new SonarException("PMD shard index must be between 0 and " + (getShardCount() - 1) + ": " + shardIndex);
+    }
+    return shardIndex;
+  }
+
+  /**
+   * Returns the files of the current shard, or all the files when sharding is disabled.
+   */
+  public List<InputFile> select(Collection<InputFile> files) {
+    if (!isEnabled()) {
+      return Lists.newArrayList(files);
+    }
+    int shardIndex = getShardIndex();
+    List<InputFile> selected = Lists.newArrayList();
+    for (InputFile file : files) {
+      if (shardOf(file.relativePath(), getShardCount()) == shardIndex) {
+        selected.add(file);
+      }
+    }
+    LOG.info("PMD shard " + shardIndex + "/" + getShardCount() + ": " + selected.size() + " of " + files.size() + " files");
+    return selected;
+  }
+
+  /**
+   * Same shard on every machine, as the hash of a string is specified by the JDK.
+   */
+  @VisibleForTesting
+  static int shardOf(String relativePath, int shardCount) {
+    return (relativePath.replace('\\', '/').hashCode() & Integer.MAX_VALUE) % shardCount;
+  }
+
+  public File writePartialReport(String repositoryKey, Report report) {
+    SortedMap<String, List<RuleViolation>> violationsByFile = Maps.newTreeMap();
+    for (RuleViolation violation : report) {
+      String relativePath = relativePath(violation.getFilename());
+      List<RuleViolation> violations = violationsByFile.get(relativePath);
+      if (violations == null) {
+        violations = Lists.newArrayList();
+        violationsByFile.put(relativePath, violations);
+      }
+      violations.add(violation);
+    }
+
+    File partialReport = partialReport(repositoryKey, getShardIndex());
+    File temp = new File(partialReport.getPath() + ".tmp");
+    DataOutputStream output = null;
+    try {
+      partialReport.getParentFile().mkdirs();
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      output.writeInt(FORMAT_VERSION);
+      output.writeInt(violationsByFile.size());
+      for (Map.Entry<String, List<RuleViolation>> entry : violationsByFile.entrySet()) {
+        output.writeUTF(entry.getKey());
+        PmdViolationCodec.write(output, entry.getValue());
+      }
+      output.close();
+      output = null;
+      if (partialReport.exists() && !partialReport.delete() || !temp.renameTo(partialReport)) {
+        throw new IOException("Fail to rename " + temp + " to " + partialReport);
+      }
+    } catch (IOException e) {
+      throw new SonarException("Fail to save the PMD partial report " + partialReport, e);
+    } finally {
+      Closeables.closeQuietly(output);
+    }
+    LOG.info("PMD partial report: " + partialReport.getAbsolutePath());
+    return partialReport;
+  }
+
+  /**
+   * Adds the violations of the partial reports of all the shards to the report, in the order of the shards, within
+   * the given caps.
+   */
+  public void mergePartialReports(String repositoryKey, RuleSets rulesets, Report report, @Nullable PmdViolationCaps caps) {
+    // Lines suppressed with NOPMD are already left out of the partial reports
+    report.suppress(Collections.<Integer, String>emptyMap());
+    for (int shardIndex = 0; shardIndex < getShardCount(); shardIndex++) {
+      File partialReport = partialReport(repositoryKey, shardIndex);
+      if (!partialReport.isFile()) {
+        throw new SonarException("Missing PMD partial report of shard " + shardIndex + ": " + partialReport);
+      }
+      DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(partialReport)));
+        if (input.readInt() != FORMAT_VERSION) {
+          throw new SonarException("Unsupported format of PMD partial report " + partialReport);
+        }
+        int fileCount = input.readInt();
+        for (int i = 0; i < fileCount; i++) {
+          String filename = new File(fileSystem.baseDir(), input.readUTF()).getAbsolutePath();
+          List<RuleViolation> violations = PmdViolationCodec.read(input, rulesets, filename);
+          if (violations == null) {
+            throw new SonarException("PMD partial report " + partialReport + " was created with other rules");
+          }
+          Iterable<RuleViolation> merged = violations;
+          if (caps != null) {
+            Report fileReport = new Report();
+            for (RuleViolation violation : violations) {
+              fileReport.addRuleViolation(violation);
+            }
+            merged = caps.cap(fileReport, repositoryKey);
+          }
+          for (RuleViolation violation : merged) {
+            report.addRuleViolation(violation);
+          }
+        }
+      } catch (IOException e) {
+        throw new SonarException("Fail to read the PMD partial report " + partialReport, e);
+      } finally {
+        Closeables.closeQuietly(input);
+      }
+    }
+    LOG.info("PMD partial reports of " + getShardCount() + " shards merged");
+  }
+
+  private String relativePath(String filename) {
+    String baseDir = fileSystem.baseDir().getAbsolutePath();
+    String path = StringUtils.removeStart(filename, baseDir);
+    return StringUtils.removeStart(path.replace('\\', '/'), "/");
+  }
+
+  @VisibleForTesting
+  File partialReport(String repositoryKey, int shardIndex) {
+    String directory = settings.getString(PmdConfiguration.PROPERTY_SHARD_DIR);
+    File shardDir = StringUtils.isBlank(directory) ? fileSystem.workDir() : new File(directory, project.getKey().replace(':', '_'));
+    return new File(shardDir, "pmd-shard-" + repositoryKey + "-" + shardIndex + "-of-" + getShardCount() + ".bin");
+  }
+
+}
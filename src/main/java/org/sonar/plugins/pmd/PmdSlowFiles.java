@@ -0,0 +1,183 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps the files which took the longest to analyse, with their size, lines, violations and the rule with the most
+ * violations on each of them, to tell which files to exclude or refactor. Thread-safe.
+ */
+public class PmdSlowFiles {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdSlowFiles.class);
+
+  private static final Comparator<Entry> FASTEST_FIRST = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry left, Entry right) {
+      return left.nanos < right.nanos ? -1 : (left.nanos == right.nanos ? 0 : 1);
+    }
+  };
+
+  private final int maxFiles;
+  private final PriorityQueue<Entry> slowest;
+
+  @VisibleForTesting
+  PmdSlowFiles(int maxFiles) {
+    this.maxFiles = maxFiles;
+    this.slowest = new PriorityQueue<Entry>(maxFiles, FASTEST_FIRST);
+  }
+
+  /**
+   * Returns the report of the slowest files configured in the settings, or null when it is disabled.
+   */
+  @CheckForNull
+  public static PmdSlowFiles create(Settings settings) {
+    int maxFiles = settings.getInt(PmdConfiguration.PROPERTY_SLOW_FILES);
+    return maxFiles > 0 ? new PmdSlowFiles(maxFiles) : null;
+  }
+
+  /**
+   * Records the time taken by the analysis of a file. The violations are only counted when the file is among the slowest.
+   */
+  public void record(InputFile file, long nanos, Report fileReport) {
+    synchronized (slowest) {
+      if (slowest.size() >= maxFiles && slowest.peek().nanos >= nanos) {
+        return;
+      }
+    }
+    Map<String, Integer> violationsByRule = Maps.newHashMap();
+    int violations = 0;
+    String dominantRule = null;
+    int dominantViolations = 0;
+    for (RuleViolation violation : fileReport) {
+      String ruleName = violation.getRule().getName();
+      Integer count = violationsByRule.get(ruleName);
+      count = count == null ? 1 : count + 1;
+      violationsByRule.put(ruleName, count);
+      violations++;
+      if (count > dominantViolations) {
+        dominantRule = ruleName;
+        dominantViolations = count;
+      }
+    }
+    Entry entry = new Entry(file.relativePath(), nanos, file.file().length(), file.lines(), violations, dominantRule);
+    synchronized (slowest) {
+      slowest.add(entry);
+      if (slowest.size() > maxFiles) {
+        slowest.poll();
+      }
+    }
+  }
+
+  /**
+   * Slowest files first.
+   */
+  public List<Entry> getSlowestFiles() {
+    List<Entry> entries;
+    synchronized (slowest) {
+      entries = Lists.newArrayList(slowest);
+    }
+    Collections.sort(entries, Collections.reverseOrder(FASTEST_FIRST));
+    return entries;
+  }
+
+  public void logSummary() {
+    List<Entry> entries = getSlowestFiles();
+    if (entries.isEmpty()) {
+      return;
+    }
+    LOG.info("PMD slowest files:");
+    for (Entry entry : entries) {
+      LOG.info("  " + entry);
+    }
+  }
+
+  public static class Entry {
+    private final String path;
+    private final long nanos;
+    private final long bytes;
+    private final int lines;
+    private final int violations;
+    private final String dominantRule;
+
+    Entry(String path, long nanos, long bytes, int lines, int violations, @Nullable String dominantRule) {
+      this.path = path;
+      this.nanos = nanos;
+      this.bytes = bytes;
+      this.lines = lines;
+      this.violations = violations;
+      this.dominantRule = dominantRule;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public int getLines() {
+      return lines;
+    }
+
+    public int getViolations() {
+      return violations;
+    }
+
+    /**
+     * Rule with the most violations on the file, or null without violations.
+     */
+    @CheckForNull
+    public String getDominantRule() {
+      return dominantRule;
+    }
+
+    @Override
+    public String toString() {
+      return path + ": " + getMillis() + " ms, " + bytes + " bytes, " + lines + " lines, " + violations + " violations"
+        + (dominantRule == null ? "" : ", mostly " + dominantRule);
+    }
+  }
+}
@@ -20,19 +20,35 @@
 package org.sonar.plugins.pmd;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
 
 import net.sourceforge.pmd.PMDConfiguration;
 import net.sourceforge.pmd.PMDException;
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
 import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
 import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
 import net.sourceforge.pmd.SourceCodeProcessor;
 import net.sourceforge.pmd.lang.Language;
 import net.sourceforge.pmd.lang.LanguageVersion;
+import net.sourceforge.pmd.lang.ast.Node;
+import net.sourceforge.pmd.lang.ast.ParseException;
+import net.sourceforge.pmd.lang.ast.TokenMgrError;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +57,13 @@ import org.sonar.api.utils.SonarException;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 
 public class PmdTemplate {
 
@@ -59,20 +80,46 @@ public class PmdTemplate {
 
   private final SourceCodeProcessor processor;
   private final PMDConfiguration configuration;
+  private final PmdMetrics metrics;
+  private final PmdTracer tracer;
+  private final Map<RuleSets, TracedRuleSets> tracedRulesets = Collections.synchronizedMap(new WeakHashMap<RuleSets, TracedRuleSets>());
+  private final Map<RuleSets, RuleSetsFingerprints> rulesetsFingerprints =
+    Collections.synchronizedMap(new WeakHashMap<RuleSets, RuleSetsFingerprints>());
+  private volatile PmdResultCache resultCache;
+  private volatile String resultFingerprint;
+  private volatile String parseFailureFingerprint;
+  private volatile PmdReadAhead readAhead;
+  private volatile boolean typeResolution = true;
+  private volatile PmdViolationCaps violationCaps;
+  private volatile PmdProgress progress;
+  private volatile PmdSlowFiles slowFiles;
+  private volatile PmdRuleBreaker ruleBreaker;
+  private final Map<RuleSets, RuleSets> rulesetsWithoutTypeResolution = Collections.synchronizedMap(new WeakHashMap<RuleSets, RuleSets>());
 
   public static PmdTemplate create(String javaVersion, ClassLoader classloader, Charset charset) {
+    return create(javaVersion, classloader, charset, new PmdMetrics(), new PmdTracer(false));
+  }
+
+  public static PmdTemplate create(String javaVersion, ClassLoader classloader, Charset charset, PmdMetrics metrics, PmdTracer tracer) {
     PMDConfiguration configuration = new PMDConfiguration();
     configuration.setDefaultLanguageVersion(languageVersion(javaVersion));
     configuration.setClassLoader(classloader);
     configuration.setSourceEncoding(charset.name());
     SourceCodeProcessor processor = new SourceCodeProcessor(configuration);
-    return new PmdTemplate(configuration, processor);
+    return new PmdTemplate(configuration, processor, metrics, tracer);
   }
 
   @VisibleForTesting
   PmdTemplate(PMDConfiguration configuration, SourceCodeProcessor processor) {
+    this(configuration, processor, new PmdMetrics(), new PmdTracer(false));
+  }
+
+  @VisibleForTesting
+  PmdTemplate(PMDConfiguration configuration, SourceCodeProcessor processor, PmdMetrics metrics, PmdTracer tracer) {
     this.configuration = configuration;
     this.processor = processor;
+    this.metrics = metrics;
+    this.tracer = tracer;
   }
 
   @VisibleForTesting
@@ -80,22 +127,308 @@ public class PmdTemplate {
     return configuration;
   }
 
+  /**
+   * Replays the violations of the files already analysed with the same rules, Java version and classpath, and only
+   * runs the rules which changed since. The fingerprint identifies the PMD version and the classpath; the Java version
+   * is added here, and the rules are compared one by one. Files which failed to parse with the same PMD and Java versions are skipped, whatever the rules.
+   */
+  public void useResultCache(@Nullable PmdResultCache resultCache, @Nullable String fingerprint) {
+    this.resultCache = resultCache;
+    if (resultCache == null || fingerprint == null) {
+      this.resultFingerprint = null;
+      this.parseFailureFingerprint = null;
+    } else {
+      LanguageVersion languageVersion = configuration.getLanguageVersionDiscoverer().getDefaultLanguageVersion(Language.JAVA);
+      this.resultFingerprint = PmdResultCache.fingerprint(fingerprint, languageVersion.getTerseName());
+      this.parseFailureFingerprint = PmdResultCache.fingerprint(PmdVersion.getVersion(), languageVersion.getTerseName());
+    }
+  }
+
+  /**
+   * Takes the content of the files from the given read-ahead, when it has them.
+   */
+  public void useReadAhead(@Nullable PmdReadAhead readAhead) {
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Without type resolution, the rules which use it only see the syntax, as when the classes of the project cannot be found.
+   * PMD still skips it on its own when no rule uses it.
+   */
+  public void useTypeResolution(boolean typeResolution) {
+    this.typeResolution = typeResolution;
+  }
+
+  /**
+   * Leaves out the violations of each file beyond the caps. The result cache still keeps all the violations of the file.
+   */
+  public void useViolationCaps(@Nullable PmdViolationCaps violationCaps) {
+    this.violationCaps = violationCaps;
+  }
+
+  /**
+   * Tells the given progress when each file starts and ends.
+   */
+  public void useProgress(@Nullable PmdProgress progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Records the time taken by each file in the given report of the slowest files.
+   */
+  public void useSlowFiles(@Nullable PmdSlowFiles slowFiles) {
+    this.slowFiles = slowFiles;
+  }
+
+  /**
+   * Leaves out the rules removed by the given breaker, and gives it the errors of the rules. A file on which some rules
+   * fail keeps the violations of the other rules.
+   */
+  public void useRuleBreaker(@Nullable PmdRuleBreaker ruleBreaker) {
+    this.ruleBreaker = ruleBreaker;
+  }
+
   public void process(InputFile inputFile, RuleSets rulesets, RuleContext ruleContext) {
+    process(inputFile, rulesets, null, ruleContext);
+  }
+
+  /**
+   * Processes the file with the rules selected by the filter from the content of the file.
+   */
+  public void process(InputFile inputFile, PmdRuleFilter ruleFilter, RuleContext ruleContext) {
+    process(inputFile, null, ruleFilter, ruleContext);
+  }
+
+  private void process(InputFile inputFile, @Nullable RuleSets rulesets, @Nullable PmdRuleFilter ruleFilter, RuleContext ruleContext) {
     File file = inputFile.file();
     ruleContext.setSourceCodeFilename(file.getAbsolutePath());
     InputStream inputStream = null;
+    int violationsBefore = violations(ruleContext);
+    metrics.fileStarted();
+    PmdProgress currentProgress = progress;
+    if (currentProgress != null) {
+      currentProgress.fileStarted(inputFile);
+    }
+    TracedRuleSets traced = null;
+    String fingerprint = resultFingerprint;
+    String failureFingerprint = parseFailureFingerprint;
+    Report report = ruleContext.getReport();
+    String failureKey = null;
+    RuleSetsFingerprints ruleFingerprints = null;
+    PmdReadAhead currentReadAhead = readAhead;
+    PmdViolationCaps caps = violationCaps;
+    PmdSlowFiles currentSlowFiles = slowFiles;
+    PmdRuleBreaker breaker = ruleBreaker;
+    RuleSets applied = null;
+    List<RuleViolation> replayed = null;
+    byte[] content = null;
+    long startNanos = System.nanoTime();
     try {
-      inputStream = new BufferedInputStream(new FileInputStream(file));
-      processor.processSourceCode(inputStream, rulesets, ruleContext);
+      content = currentReadAhead == null ? null : currentReadAhead.take(inputFile);
+      String cacheKey = null;
+      if (caps != null && fingerprint == null) {
+        // Violations beyond the caps are only counted, unless the result cache needs all of them
+        ruleContext.setReport(caps.newFileReport(PmdViolationCaps.getRepository(ruleContext)));
+      } else if (report instanceof PmdViolationStore || caps != null || currentSlowFiles != null || breaker != null) {
+        // Lines suppressed with NOPMD are only checked by plain reports, and the others need the violations of the file apart
+        ruleContext.setReport(new Report());
+      }
+      if (fingerprint != null) {
+        if (content == null) {
+          content = Files.toByteArray(file);
+        }
+        failureKey = PmdResultCache.key(content, failureFingerprint);
+        if (resultCache.isParseFailure(failureKey, inputFile.relativePath())) {
+          metrics.parseFailed();
+          return;
+        }
+        cacheKey = PmdResultCache.key(content, fingerprint);
+        RuleSets cachedRulesets = ruleFilter == null ? rulesets : ruleFilter.getRulesets();
+        ruleFingerprints = fingerprints(cachedRulesets);
+        if (ruleContext.getReport() == report) {
+          // Violations of the file are recorded apart, to be saved in the cache
+          ruleContext.setReport(new Report());
+        }
+        PmdResultCache.Result cached = resultCache.get(cacheKey, cachedRulesets, ruleFingerprints.byRule, ruleContext.getSourceCodeFilename());
+        if (cached != null) {
+          replayed = cached.getViolations();
+          replay(replayed, ruleContext);
+          if (cached.getStaleRules().isEmpty()) {
+            return;
+          }
+          // Only the rules which changed are run again, without the filter which is meant for the whole rule sets
+          rulesets = ruleFingerprints.subset(cached.getStaleRules());
+          ruleFilter = null;
+        }
+      }
+
+      if (ruleFilter == null) {
+        inputStream = content == null ? new BufferedInputStream(new FileInputStream(file)) : new ByteArrayInputStream(content);
+        applied = breaker == null ? rulesets : breaker.withoutRemovedRules(rulesets);
+        RuleSets withTypeResolution = withTypeResolution(applied);
+        traced = traced(withTypeResolution, inputFile);
+        processor.processSourceCode(inputStream, traced == null ? withTypeResolution : traced, ruleContext);
+      } else {
+        Charset charset = Charset.forName(configuration.getSourceEncoding());
+        if (content == null) {
+          content = Files.toByteArray(file);
+        }
+        String source = new String(content, charset);
+        applied = breaker == null ? ruleFilter.select(source) : breaker.withoutRemovedRules(ruleFilter.select(source));
+        RuleSets selection = withTypeResolution(applied);
+        traced = traced(selection, inputFile);
+        processor.processSourceCode(new StringReader(source), traced == null ? selection : traced, ruleContext);
+      }
+
+      if (cacheKey != null) {
+        // Violations of the removed rules are missing, so the entry leaves them out and they run again on the next analysis
+        Map<String, String> fingerprintsOfRulesRun = breaker == null ? ruleFingerprints.byRule
+          : Maps.filterKeys(ruleFingerprints.byRule, Predicates.not(Predicates.in(breaker.getRemovedRules())));
+        resultCache.put(cacheKey, fingerprintsOfRulesRun, Lists.newArrayList(ruleContext.getReport()));
+      }
     } catch (PMDException e) {
+      if (breaker != null && applied != null && !isParseError(e.getCause()) && isolateFailingRules(breaker, inputFile, content, applied, replayed, e, ruleContext)) {
+        return;
+      }
+      metrics.parseFailed();
       LOG.error("Fail to execute PMD. Following file is ignored: " + file, e.getCause());
+      if (failureKey != null && isParseError(e.getCause())) {
+        resultCache.putParseFailure(failureKey, e.getCause().getMessage());
+      }
     } catch (Exception e) {
+      metrics.parseFailed();
       LOG.error("Fail to execute PMD. Following file is ignored: " + file, e);
     } finally {
       Closeables.closeQuietly(inputStream);
+      if (currentSlowFiles != null) {
+        currentSlowFiles.record(inputFile, System.nanoTime() - startNanos, ruleContext.getReport());
+      }
+      if (ruleContext.getReport() != report) {
+        report.merge(caps == null ? ruleContext.getReport() : caps.cap(ruleContext.getReport(), PmdViolationCaps.getRepository(ruleContext)));
+        ruleContext.setReport(report);
+      }
+      endTrace(traced);
+      metrics.fileDone(inputFile.lines(), violations(ruleContext) - violationsBefore);
+      if (currentProgress != null) {
+        currentProgress.fileDone(inputFile);
+      }
     }
   }
 
+  /**
+   * Runs the rules again without the ones suspected of the error, then each suspected rule alone, so that the errors
+   * are given to the failing rules only and the violations of the other rules are kept.
+   *
+   * @return whether the violations of the rules which did not fail are kept
+   */
+  private boolean isolateFailingRules(PmdRuleBreaker breaker, InputFile inputFile, @Nullable byte[] content, RuleSets applied,
+    @Nullable List<RuleViolation> replayed, PMDException error, RuleContext ruleContext) {
+    List<Rule> suspects = breaker.suspects(error, applied);
+    if (suspects.isEmpty()) {
+      return false;
+    }
+    Set<String> suspectNames = Sets.newHashSet();
+    for (Rule suspect : suspects) {
+      suspectNames.add(suspect.getName());
+    }
+    try {
+      byte[] source = content == null ? Files.toByteArray(inputFile.file()) : content;
+      // Violations found before the error are dropped
+      ruleContext.setReport(new Report());
+      if (replayed != null) {
+        replay(replayed, ruleContext);
+      }
+      RuleSets others = PmdRuleBreaker.without(applied, suspectNames);
+      if (!others.getAllRules().isEmpty()) {
+        processor.processSourceCode(new ByteArrayInputStream(source), withTypeResolution(others), ruleContext);
+      }
+      for (Rule suspect : suspects) {
+        RuleContext alone = new RuleContext();
+        alone.setSourceCodeFilename(ruleContext.getSourceCodeFilename());
+        alone.setSourceCodeFile(ruleContext.getSourceCodeFile());
+        alone.setLanguageVersion(ruleContext.getLanguageVersion());
+        alone.setReport(new Report());
+        try {
+          processor.processSourceCode(new ByteArrayInputStream(source), withTypeResolution(PmdRuleBreaker.only(applied, suspect.getName())), alone);
+          ruleContext.getReport().merge(alone.getReport());
+        } catch (PMDException e) {
+          breaker.ruleFailed(suspect, inputFile.relativePath(), e);
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      LOG.debug("Fail to isolate the failing PMD rules on " + inputFile.relativePath(), e);
+      return false;
+    }
+  }
+
+  private static void replay(List<RuleViolation> violations, RuleContext ruleContext) {
+    Report report = ruleContext.getReport();
+    // Lines suppressed with NOPMD in the last parsed file do not apply here
+    report.suppress(Collections.<Integer, String>emptyMap());
+    for (RuleViolation violation : violations) {
+      report.addRuleViolation(violation);
+    }
+  }
+
+  private RuleSetsFingerprints fingerprints(RuleSets rulesets) {
+    RuleSetsFingerprints fingerprints = rulesetsFingerprints.get(rulesets);
+    if (fingerprints == null) {
+      fingerprints = new RuleSetsFingerprints(rulesets);
+      rulesetsFingerprints.put(rulesets, fingerprints);
+    }
+    return fingerprints;
+  }
+
+  private RuleSets withTypeResolution(RuleSets rulesets) {
+    if (typeResolution || !rulesets.usesTypeResolution(Language.JAVA)) {
+      return rulesets;
+    }
+    RuleSets withoutTypeResolution = rulesetsWithoutTypeResolution.get(rulesets);
+    if (withoutTypeResolution == null) {
+      withoutTypeResolution = new RuleSetsWithoutTypeResolution(rulesets);
+      rulesetsWithoutTypeResolution.put(rulesets, withoutTypeResolution);
+    }
+    return withoutTypeResolution;
+  }
+
+  private static boolean isParseError(@Nullable Throwable cause) {
+    return cause instanceof ParseException || cause instanceof TokenMgrError;
+  }
+
+  @Nullable
+  private TracedRuleSets traced(RuleSets rulesets, InputFile inputFile) {
+    if (!tracer.isEnabled()) {
+      return null;
+    }
+    TracedRuleSets traced = tracedRulesets.get(rulesets);
+    if (traced == null) {
+      traced = new TracedRuleSets(rulesets, tracer);
+      tracedRulesets.put(rulesets, traced);
+    }
+    // Started here, so that files replayed from the cache or skipped have no parse event
+    traced.file = inputFile.relativePath();
+    traced.parseEvent = tracer.begin("parse", "file").arg("file", traced.file);
+    traced.rulesEvent = null;
+    return traced;
+  }
+
+  private static void endTrace(@Nullable TracedRuleSets traced) {
+    if (traced == null) {
+      return;
+    }
+    if (traced.rulesEvent != null) {
+      traced.rulesEvent.end();
+    } else {
+      traced.parseEvent.end();
+    }
+  }
+
+  private static int violations(RuleContext ruleContext) {
+    Report report = ruleContext.getReport();
+    return report == null ? 0 : report.size();
+  }
+
   @VisibleForTesting
   static LanguageVersion languageVersion(String javaVersion) {
     String version = normalize(javaVersion);
@@ -111,4 +444,79 @@ public class PmdTemplate {
     return Functions.forMap(JAVA_VERSIONS, version).apply(version);
   }
 
+  /**
+   * Fingerprints of the rules of some rule sets, and the subsets of these rule sets made of the rules which changed.
+   * Subsets share the rules of the rule sets, so they are used by the same thread.
+   */
+  private static class RuleSetsFingerprints {
+    // Rule sets are not kept, as they are the weak keys of the fingerprints
+    private final RuleSet[] ruleSets;
+    private final Map<String, String> byRule;
+    private final Map<Set<String>, RuleSets> subsets = new ConcurrentHashMap<Set<String>, RuleSets>();
+
+    RuleSetsFingerprints(RuleSets rulesets) {
+      this.ruleSets = rulesets.getAllRuleSets();
+      this.byRule = PmdResultCache.ruleFingerprints(rulesets);
+    }
+
+    RuleSets subset(Set<String> ruleNames) {
+      RuleSets subset = subsets.get(ruleNames);
+      if (subset == null) {
+        subset = PmdRuleSubsets.select(ruleSets, PmdRuleSubsets.named(ruleNames));
+        subsets.put(ruleNames, subset);
+      }
+      return subset;
+    }
+  }
+
+  /**
+   * Same rules as the given rule sets, which tells when PMD is done with the parsing and starts applying the rules.
+   * Each instance is used by one thread at a time, like the rule sets it copies.
+   */
+  private static class TracedRuleSets extends RuleSets {
+    private final PmdTracer tracer;
+    private String file;
+    private PmdTracer.Event parseEvent;
+    private PmdTracer.Event rulesEvent;
+
+    // Not the rule sets themselves, which are the key of the weak map holding this instance
+    private final boolean typeResolution;
+
+    TracedRuleSets(RuleSets rulesets, PmdTracer tracer) {
+      this.tracer = tracer;
+      this.typeResolution = rulesets.usesTypeResolution(Language.JAVA);
+      for (RuleSet ruleSet : rulesets.getAllRuleSets()) {
+        addRuleSet(ruleSet);
+      }
+    }
+
+    @Override
+    public void apply(List<Node> acuList, RuleContext ctx, Language language) {
+      parseEvent.end();
+      rulesEvent = tracer.begin("rules", "file").arg("file", file);
+      super.apply(acuList, ctx, language);
+    }
+
+    @Override
+    public boolean usesTypeResolution(Language language) {
+      return typeResolution && super.usesTypeResolution(language);
+    }
+  }
+
+  /**
+   * Same rules, but PMD does not run the type resolution visitor before them. Holds no state, so it can be shared by threads.
+   */
+  private static class RuleSetsWithoutTypeResolution extends RuleSets {
+    RuleSetsWithoutTypeResolution(RuleSets rulesets) {
+      for (RuleSet ruleSet : rulesets.getAllRuleSets()) {
+        addRuleSet(ruleSet);
+      }
+    }
+
+    @Override
+    public boolean usesTypeResolution(Language language) {
+      return false;
+    }
+  }
+
 }
@@ -0,0 +1,157 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.config.Settings;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Records the phases of the analysis as a timeline in the Chrome Trace Event format, which can be loaded
+ * in chrome://tracing or any compatible trace viewer. Disabled unless {@value PmdConfiguration#PROPERTY_TRACE} is set.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PmdTracer implements BatchExtension {
+  private static final Event NO_EVENT = new Event(null, null, null, 0);
+
+  private final boolean enabled;
+  private final long originNanos = System.nanoTime();
+  private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+  private final ConcurrentMap<Long, String> threadNames = Maps.newConcurrentMap();
+
+  public PmdTracer(Settings settings) {
+    this(settings.getBoolean(PmdConfiguration.PROPERTY_TRACE));
+  }
+
+  PmdTracer(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts an event on the current thread. The event is recorded when it ends.
+   */
+  public Event begin(String name, String category) {
+    if (!enabled) {
+      return NO_EVENT;
+    }
+    Thread thread = Thread.currentThread();
+    threadNames.putIfAbsent(thread.getId(), thread.getName());
+    return new Event(this, name, category, System.nanoTime());
+  }
+
+  /**
+   * Writes the events recorded since the previous call, so that each module gets its own trace.
+   */
+  public void write(Writer writer) throws IOException {
+    Map<Long, String> threads = Maps.newHashMap(threadNames);
+    for (Map.Entry<Long, String> thread : threads.entrySet()) {
+      threadNames.remove(thread.getKey(), thread.getValue());
+    }
+    List<Event> written = Lists.newArrayList();
+    for (Event event = events.poll(); event != null; event = events.poll()) {
+      written.add(event);
+    }
+
+    writer.write("{\"traceEvents\":[");
+    String separator = "";
+    for (Map.Entry<Long, String> thread : threads.entrySet()) {
+      writer.write(separator);
+      writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+        + ",\"args\":{\"name\":" + quote(thread.getValue()) + "}}");
+      separator = ",";
+    }
+    for (Event event : written) {
+      writer.write(separator);
+      writer.write("{\"name\":" + quote(event.name) + ",\"cat\":" + quote(event.category) + ",\"ph\":\"X\""
+        + ",\"ts\":" + (event.startNanos - originNanos) / 1000 + ",\"dur\":" + (event.endNanos - event.startNanos) / 1000
+        + ",\"pid\":1,\"tid\":" + event.threadId + ",\"args\":{");
+      String argSeparator = "";
+      for (Map.Entry<String, String> arg : event.args.entrySet()) {
+        writer.write(argSeparator + quote(arg.getKey()) + ":" + quote(arg.getValue()));
+        argSeparator = ",";
+      }
+      writer.write("}}");
+      separator = ",";
+    }
+    writer.write("],\"displayTimeUnit\":\"ms\"}");
+    writer.flush();
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  public static class Event {
+    private final PmdTracer tracer;
+    private final String name;
+    private final String category;
+    private final long startNanos;
+    private final long threadId = Thread.currentThread().getId();
+    private final Map<String, String> args = Maps.newLinkedHashMap();
+    private long endNanos;
+
+    Event(PmdTracer tracer, String name, String category, long startNanos) {
+      this.tracer = tracer;
+      this.name = name;
+      this.category = category;
+      this.startNanos = startNanos;
+    }
+
+    public Event arg(String key, Object value) {
+      if (tracer != null) {
+        args.put(key, String.valueOf(value));
+      }
+      return this;
+    }
+
+    public void end() {
+      if (tracer != null) {
+        endNanos = System.nanoTime();
+        tracer.events.add(this);
+      }
+    }
+  }
+
+}
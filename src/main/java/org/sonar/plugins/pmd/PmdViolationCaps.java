@@ -0,0 +1,283 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleViolation;
+import net.sourceforge.pmd.stat.Metric;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Limits the number of violations of each rule, on each file and on the whole module, so that a noisy rule does not
+ * fill the memory and the database. Violations beyond the caps are only counted, and logged at the end of the analysis.
+ * Main and test files have their own module cap, which keeps the first violations in the order of the files: with
+ * several workers, it is applied when their reports are merged. Thread-safe.
+ */
+public class PmdViolationCaps {
+  private static final Logger LOG = LoggerFactory.getLogger(PmdViolationCaps.class);
+  private static final String REPOSITORY_ATTRIBUTE = PmdViolationCaps.class.getName() + ".repository";
+
+  private final int maxPerFile;
+  private final int maxPerModule;
+  private final ConcurrentMap<String, AtomicInteger> moduleViolations = new ConcurrentHashMap<String, AtomicInteger>();
+  private final ConcurrentMap<String, AtomicInteger> droppedViolations;
+
+  @VisibleForTesting
+  PmdViolationCaps(int maxPerFile, int maxPerModule) {
+    this(maxPerFile, maxPerModule, new ConcurrentHashMap<String, AtomicInteger>());
+  }
+
+  private PmdViolationCaps(int maxPerFile, int maxPerModule, ConcurrentMap<String, AtomicInteger> droppedViolations) {
+    this.maxPerFile = maxPerFile;
+    this.maxPerModule = maxPerModule;
+    this.droppedViolations = droppedViolations;
+  }
+
+  /**
+   * Returns the caps configured in the settings, or null when the violations are not capped.
+   */
+  @CheckForNull
+  public static PmdViolationCaps create(Settings settings) {
+    int maxPerFile = settings.getInt(PmdConfiguration.PROPERTY_MAX_VIOLATIONS_PER_FILE);
+    int maxPerModule = settings.getInt(PmdConfiguration.PROPERTY_MAX_VIOLATIONS_PER_MODULE);
+    if (maxPerFile <= 0 && maxPerModule <= 0) {
+      return null;
+    }
+    return new PmdViolationCaps(maxPerFile, maxPerModule);
+  }
+
+  /**
+   * Returns the same cap per file, without the module cap, which is left to {@link #merge}. The violations left out are
+   * counted together.
+   */
+  public PmdViolationCaps withoutModuleCap() {
+    return new PmdViolationCaps(maxPerFile, 0, droppedViolations);
+  }
+
+  /**
+   * Tells the repository of the files analysed with the given context.
+   */
+  public static void setRepository(RuleContext context, String repositoryKey) {
+    context.setAttribute(REPOSITORY_ATTRIBUTE, repositoryKey);
+  }
+
+  @CheckForNull
+  public static String getRepository(RuleContext context) {
+    return (String) context.getAttribute(REPOSITORY_ATTRIBUTE);
+  }
+
+  /**
+   * Returns a report for the violations of a single file, which only counts the violations beyond the cap per file, or
+   * beyond the module cap when it is already reached, rather than keeping them until {@link #cap}.
+   */
+  public Report newFileReport(@Nullable String repositoryKey) {
+    return new FileReport(repositoryKey);
+  }
+
+  /**
+   * Returns the report of a single file within the caps: the report itself when all its violations are kept, otherwise
+   * a copy without the violations beyond the caps.
+   */
+  public Report cap(Report fileReport, @Nullable String repositoryKey) {
+    Map<String, Integer> fileViolations = Maps.newHashMap();
+    List<RuleViolation> kept = null;
+    int index = 0;
+    for (RuleViolation violation : fileReport) {
+      boolean accepted = accept(ruleKey(repositoryKey, violation), fileViolations);
+      if (kept == null && !accepted) {
+        // Violations are only copied from the first one beyond the caps
+        kept = Lists.newArrayList(Iterators.limit(fileReport.iterator(), index));
+      }
+      if (kept != null && accepted) {
+        kept.add(violation);
+      }
+      index++;
+    }
+    if (kept == null) {
+      return fileReport;
+    }
+    Report capped = new Report();
+    mergeAllButViolations(fileReport, capped);
+    for (RuleViolation violation : kept) {
+      capped.addRuleViolation(violation);
+    }
+    return capped;
+  }
+
+  /**
+   * Merges the reports of several workers into the given report, file by file in the given order, so that the violations
+   * kept under the module cap do not depend on the worker which analysed each file. The cap per file is already applied.
+   */
+  public void merge(List<PmdViolationStore> workerReports, List<String> filenames, @Nullable String repositoryKey, Report report) {
+    for (PmdViolationStore workerReport : workerReports) {
+      mergeAllButViolations(workerReport, report);
+    }
+    for (String filename : filenames) {
+      for (PmdViolationStore workerReport : workerReports) {
+        for (Iterator<RuleViolation> violations = workerReport.iterator(filename); violations.hasNext();) {
+          RuleViolation violation = violations.next();
+          String ruleKey = ruleKey(repositoryKey, violation);
+          if (maxPerModule > 0 && increment(moduleViolations, ruleKey) > maxPerModule) {
+            drop(ruleKey);
+          } else {
+            report.addRuleViolation(violation);
+          }
+        }
+      }
+    }
+  }
+
+  private static void mergeAllButViolations(Report from, Report to) {
+    for (Iterator<Report.ProcessingError> errors = from.errors(); errors.hasNext();) {
+      to.addError(errors.next());
+    }
+    for (Iterator<Metric> metrics = from.metrics(); metrics.hasNext();) {
+      to.addMetric(metrics.next());
+    }
+    to.getSuppressedRuleViolations().addAll(from.getSuppressedRuleViolations());
+  }
+
+  private static String ruleKey(@Nullable String repositoryKey, RuleViolation violation) {
+    String ruleName = violation.getRule().getName();
+    return repositoryKey == null ? ruleName : repositoryKey + ':' + ruleName;
+  }
+
+  private boolean moduleCapReached(String ruleKey) {
+    if (maxPerModule <= 0) {
+      return false;
+    }
+    AtomicInteger count = moduleViolations.get(ruleKey);
+    return count != null && count.get() >= maxPerModule;
+  }
+
+  private boolean accept(String ruleKey, Map<String, Integer> fileViolations) {
+    Integer inFile = fileViolations.get(ruleKey);
+    int count = inFile == null ? 1 : inFile + 1;
+    fileViolations.put(ruleKey, count);
+    if (maxPerFile > 0 && count > maxPerFile) {
+      return drop(ruleKey);
+    }
+    if (maxPerModule > 0 && increment(moduleViolations, ruleKey) > maxPerModule) {
+      return drop(ruleKey);
+    }
+    return true;
+  }
+
+  private boolean drop(String ruleKey) {
+    increment(droppedViolations, ruleKey);
+    return false;
+  }
+
+  private static int increment(ConcurrentMap<String, AtomicInteger> counts, String ruleKey) {
+    AtomicInteger count = counts.get(ruleKey);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = counts.putIfAbsent(ruleKey, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    return count.incrementAndGet();
+  }
+
+  /**
+   * Number of violations left out, by repository and rule.
+   */
+  public Map<String, Integer> getDroppedViolations() {
+    Map<String, Integer> dropped = Maps.newTreeMap();
+    for (Map.Entry<String, AtomicInteger> entry : droppedViolations.entrySet()) {
+      dropped.put(entry.getKey(), entry.getValue().get());
+    }
+    return dropped;
+  }
+
+  public void logSummary() {
+    Map<String, Integer> dropped = getDroppedViolations();
+    if (dropped.isEmpty()) {
+      return;
+    }
+    int total = 0;
+    StringBuilder rules = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : dropped.entrySet()) {
+      total += entry.getValue();
+      rules.append(rules.length() == 0 ? "" : ", ").append(entry.getKey()).append(" (").append(entry.getValue()).append(')');
+    }
+    LOG.warn(total + " PMD violations not reported, beyond " + describe(maxPerFile, "file") + " and "
+      + describe(maxPerModule, "module") + ": " + rules);
+  }
+
+  private class FileReport extends Report {
+    private final String repositoryKey;
+    private final Map<String, Integer> fileViolations = Maps.newHashMap();
+    private Map<Integer, String> linesToSuppress = Collections.emptyMap();
+
+    FileReport(@Nullable String repositoryKey) {
+      this.repositoryKey = repositoryKey;
+    }
+
+    @Override
+    public void suppress(Map<Integer, String> lines) {
+      super.suppress(lines);
+      linesToSuppress = lines;
+    }
+
+    @Override
+    public void addRuleViolation(RuleViolation violation) {
+      if (violation.isSuppressed() || linesToSuppress.containsKey(violation.getBeginLine())) {
+        // Kept apart by the report, and not counted
+        super.addRuleViolation(violation);
+        return;
+      }
+      String ruleKey = ruleKey(repositoryKey, violation);
+      Integer inFile = fileViolations.get(ruleKey);
+      int count = inFile == null ? 1 : inFile + 1;
+      fileViolations.put(ruleKey, count);
+      if ((maxPerFile > 0 && count > maxPerFile) || moduleCapReached(ruleKey)) {
+        drop(ruleKey);
+      } else {
+        super.addRuleViolation(violation);
+      }
+    }
+  }
+
+  private static String describe(int max, String scope) {
+    return max > 0 ? max + " per rule and " + scope : "no cap per rule and " + scope;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Binary form of the violations of a file, as stored by the result cache and the partial reports of shards.
+ * Violations are stored with the name of their rule, and bound again to a rule of the current rule sets when read.
+ */
+public final class PmdViolationCodec {
+
+  private PmdViolationCodec() {
+    // only static methods
+  }
+
+  public static void write(DataOutput output, Collection<RuleViolation> violations) throws IOException {
+    output.writeInt(violations.size());
+    for (RuleViolation violation : violations) {
+      output.writeUTF(violation.getRule().getName());
+      output.writeUTF(StringUtils.defaultString(violation.getDescription()));
+      output.writeInt(violation.getBeginLine());
+      output.writeInt(violation.getBeginColumn());
+      output.writeInt(violation.getEndLine());
+      output.writeInt(violation.getEndColumn());
+      output.writeUTF(StringUtils.defaultString(violation.getPackageName()));
+      output.writeUTF(StringUtils.defaultString(violation.getClassName()));
+      output.writeUTF(StringUtils.defaultString(violation.getMethodName()));
+      output.writeUTF(StringUtils.defaultString(violation.getVariableName()));
+    }
+  }
+
+  /**
+   * Returns the violations bound to the rules of the given rule sets and to the given file,
+   * or null when a rule is not in the rule sets.
+   */
+  @CheckForNull
+  public static List<RuleViolation> read(DataInput input, RuleSets rulesets, String filename) throws IOException {
+    return read(input, rulesets, filename, false);
+  }
+
+  /**
+   * Same as {@link #read(DataInput, RuleSets, String)}, except that the violations of the rules which are not in
+   * the rule sets are skipped when <code>skipUnknownRules</code> is true.
+   */
+  @CheckForNull
+  public static List<RuleViolation> read(DataInput input, RuleSets rulesets, String filename, boolean skipUnknownRules) throws IOException {
+    int count = input.readInt();
+    List<RuleViolation> violations = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      Rule rule = rulesets.getRuleByName(input.readUTF());
+      if (rule == null && !skipUnknownRules) {
+        return null;
+      }
+      StoredViolation violation = new StoredViolation(rule, filename);
+      violation.description = input.readUTF();
+      violation.beginLine = input.readInt();
+      violation.beginColumn = input.readInt();
+      violation.endLine = input.readInt();
+      violation.endColumn = input.readInt();
+      violation.packageName = input.readUTF();
+      violation.className = input.readUTF();
+      violation.methodName = input.readUTF();
+      violation.variableName = input.readUTF();
+      if (rule != null) {
+        violations.add(violation);
+      }
+    }
+    return violations;
+  }
+
+  private static class StoredViolation implements RuleViolation {
+    private final Rule rule;
+    private final String filename;
+    private String description;
+    private int beginLine;
+    private int beginColumn;
+    private int endLine;
+    private int endColumn;
+    private String packageName;
+    private String className;
+    private String methodName;
+    private String variableName;
+
+    StoredViolation(Rule rule, String filename) {
+      this.rule = rule;
+      this.filename = filename;
+    }
+
+    @Override
+    public Rule getRule() {
+      return rule;
+    }
+
+    @Override
+    public String getDescription() {
+      return description;
+    }
+
+    @Override
+    public boolean isSuppressed() {
+      // Suppressed violations are not stored
+      return false;
+    }
+
+    @Override
+    public String getFilename() {
+      return filename;
+    }
+
+    @Override
+    public int getBeginLine() {
+      return beginLine;
+    }
+
+    @Override
+    public int getBeginColumn() {
+      return beginColumn;
+    }
+
+    @Override
+    public int getEndLine() {
+      return endLine;
+    }
+
+    @Override
+    public int getEndColumn() {
+      return endColumn;
+    }
+
+    @Override
+    public String getPackageName() {
+      return packageName;
+    }
+
+    @Override
+    public String getClassName() {
+      return className;
+    }
+
+    @Override
+    public String getMethodName() {
+      return methodName;
+    }
+
+    @Override
+    public String getVariableName() {
+      return variableName;
+    }
+  }
+
+}
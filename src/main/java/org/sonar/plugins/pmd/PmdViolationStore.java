@@ -0,0 +1,325 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleViolation;
+import net.sourceforge.pmd.stat.Metric;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A report keeping its violations in arrays of ints rather than one {@link RuleViolation} per violation, with tables of
+ * the file names, rules and other strings, which are shared by many violations. Descriptions equal to the message of
+ * their rule are not kept, and are read from the rule. Violations are read through views, file by file, in the order
+ * of the first violation of each file, whatever the order in which they were added.
+ * <p>
+ * Violations are added one at a time, or from other reports. Lines suppressed with NOPMD are not checked here, so the
+ * files are analysed into a plain report first, which is then merged. PMD's violation tree is not kept either.
+ * Not thread-safe, like {@link Report}.
+ */
+public class PmdViolationStore extends Report {
+  private static final int FILE = 0;
+  private static final int RULE = 1;
+  private static final int DESCRIPTION = 2;
+  private static final int BEGIN_LINE = 3;
+  private static final int END_LINE = 4;
+  private static final int BEGIN_COLUMN = 5;
+  private static final int END_COLUMN = 6;
+  private static final int PACKAGE = 7;
+  private static final int CLASS = 8;
+  private static final int METHOD = 9;
+  private static final int VARIABLE = 10;
+  // Next violation of the same file
+  private static final int NEXT = 11;
+  private static final int FIELDS = 12;
+
+  private static final int NONE = -1;
+  private static final int RULE_MESSAGE = -2;
+
+  private final List<String> strings = Lists.newArrayList();
+  private final Map<String, Integer> stringIds = Maps.newHashMap();
+  private final List<Rule> rules = Lists.newArrayList();
+  private final Map<Rule, Integer> ruleIds = new IdentityHashMap<Rule, Integer>();
+  // First and last violations of each file, by the string id of the file name
+  private final List<int[]> fileViolations = Lists.newArrayList();
+  // In the order of their first violation
+  private final List<Integer> files = Lists.newArrayList();
+  private int[] data = new int[16 * FIELDS];
+  private int size;
+
+  @Override
+  public void addRuleViolation(RuleViolation violation) {
+    if (violation.isSuppressed()) {
+      // Suppressed violations are not reported
+      return;
+    }
+    if ((size + 1) * FIELDS > data.length) {
+      data = Arrays.copyOf(data, data.length * 3 / 2);
+    }
+    int offset = size * FIELDS;
+    int file = intern(violation.getFilename());
+    Rule rule = violation.getRule();
+    data[offset + FILE] = file;
+    data[offset + RULE] = ruleId(rule);
+    String description = violation.getDescription();
+    data[offset + DESCRIPTION] = description != null && description.equals(rule.getMessage()) ? RULE_MESSAGE : intern(description);
+    data[offset + BEGIN_LINE] = violation.getBeginLine();
+    data[offset + END_LINE] = violation.getEndLine();
+    data[offset + BEGIN_COLUMN] = violation.getBeginColumn();
+    data[offset + END_COLUMN] = violation.getEndColumn();
+    data[offset + PACKAGE] = intern(violation.getPackageName());
+    data[offset + CLASS] = intern(violation.getClassName());
+    data[offset + METHOD] = intern(violation.getMethodName());
+    data[offset + VARIABLE] = intern(violation.getVariableName());
+    data[offset + NEXT] = NONE;
+
+    while (fileViolations.size() <= file) {
+      fileViolations.add(null);
+    }
+    int[] firstAndLast = fileViolations.get(file);
+    if (firstAndLast == null) {
+      fileViolations.set(file, new int[] {size, size});
+      files.add(file);
+    } else {
+      data[firstAndLast[1] * FIELDS + NEXT] = size;
+      firstAndLast[1] = size;
+    }
+    size++;
+  }
+
+  @Override
+  public void merge(Report report) {
+    for (Iterator<ProcessingError> errors = report.errors(); errors.hasNext();) {
+      addError(errors.next());
+    }
+    for (Iterator<Metric> metrics = report.metrics(); metrics.hasNext();) {
+      addMetric(metrics.next());
+    }
+    getSuppressedRuleViolations().addAll(report.getSuppressedRuleViolations());
+    for (RuleViolation violation : report) {
+      addRuleViolation(violation);
+    }
+  }
+
+  /**
+   * Violations file by file.
+   */
+  @Override
+  public Iterator<RuleViolation> iterator() {
+    final Iterator<Integer> fileIterator = files.iterator();
+    return new Iterator<RuleViolation>() {
+      private FileIterator current = new FileIterator(NONE);
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && fileIterator.hasNext()) {
+          current = new FileIterator(fileViolations.get(fileIterator.next())[0]);
+        }
+        return current.hasNext();
+      }
+
+      @Override
+      public RuleViolation next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return current.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Violations of the given file.
+   */
+  public Iterator<RuleViolation> iterator(String filename) {
+    Integer file = stringIds.get(filename);
+    if (file == null || file >= fileViolations.size() || fileViolations.get(file) == null) {
+      return Iterators.emptyIterator();
+    }
+    return new FileIterator(fileViolations.get(file)[0]);
+  }
+
+  @Override
+  public Iterator<RuleViolation> treeIterator() {
+    return iterator();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int treeSize() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0 && !hasErrors();
+  }
+
+  @Override
+  public boolean treeIsEmpty() {
+    return size == 0;
+  }
+
+  private int intern(@Nullable String string) {
+    if (string == null) {
+      return NONE;
+    }
+    Integer id = stringIds.get(string);
+    if (id == null) {
+      id = strings.size();
+      strings.add(string);
+      stringIds.put(string, id);
+    }
+    return id;
+  }
+
+  private int ruleId(Rule rule) {
+    Integer id = ruleIds.get(rule);
+    if (id == null) {
+      id = rules.size();
+      rules.add(rule);
+      ruleIds.put(rule, id);
+    }
+    return id;
+  }
+
+  private String string(int index, int field) {
+    int id = data[index * FIELDS + field];
+    return id == NONE ? null : strings.get(id);
+  }
+
+  private class FileIterator implements Iterator<RuleViolation> {
+    private int next;
+
+    FileIterator(int first) {
+      this.next = first;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != NONE;
+    }
+
+    @Override
+    public RuleViolation next() {
+      if (next == NONE) {
+        throw new NoSuchElementException();
+      }
+      RuleViolation violation = new StoredViolation(next);
+      next = data[next * FIELDS + NEXT];
+      return violation;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private class StoredViolation implements RuleViolation {
+    private final int index;
+
+    StoredViolation(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public Rule getRule() {
+      return rules.get(data[index * FIELDS + RULE]);
+    }
+
+    @Override
+    public String getDescription() {
+      return data[index * FIELDS + DESCRIPTION] == RULE_MESSAGE ? getRule().getMessage() : string(index, DESCRIPTION);
+    }
+
+    @Override
+    public boolean isSuppressed() {
+      return false;
+    }
+
+    @Override
+    public String getFilename() {
+      return string(index, FILE);
+    }
+
+    @Override
+    public int getBeginLine() {
+      return data[index * FIELDS + BEGIN_LINE];
+    }
+
+    @Override
+    public int getBeginColumn() {
+      return data[index * FIELDS + BEGIN_COLUMN];
+    }
+
+    @Override
+    public int getEndLine() {
+      return data[index * FIELDS + END_LINE];
+    }
+
+    @Override
+    public int getEndColumn() {
+      return data[index * FIELDS + END_COLUMN];
+    }
+
+    @Override
+    public String getPackageName() {
+      return string(index, PACKAGE);
+    }
+
+    @Override
+    public String getClassName() {
+      return string(index, CLASS);
+    }
+
+    @Override
+    public String getMethodName() {
+      return string(index, METHOD);
+    }
+
+    @Override
+    public String getVariableName() {
+      return string(index, VARIABLE);
+    }
+  }
+}
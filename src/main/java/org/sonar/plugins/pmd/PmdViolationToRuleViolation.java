@@ -19,6 +19,10 @@
  */
 package org.sonar.plugins.pmd;
 
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
 import net.sourceforge.pmd.RuleViolation;
 import org.sonar.api.BatchExtension;
 import org.sonar.api.batch.SensorContext;
@@ -29,9 +33,13 @@ import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.RuleFinder;
 import org.sonar.api.rules.Violation;
 
+import com.google.common.collect.Maps;
+
 public class PmdViolationToRuleViolation implements BatchExtension {
   private final Project project;
   private final RuleFinder ruleFinder;
+  // Rules by PMD name, null when not enabled
+  private final Map<String, Rule> rules = Maps.newHashMap();
 
   public PmdViolationToRuleViolation(Project project, RuleFinder ruleFinder) {
     this.project = project;
@@ -39,12 +47,31 @@ public class PmdViolationToRuleViolation implements BatchExtension {
   }
 
   public Violation toViolation(RuleViolation pmdViolation, SensorContext context) {
-    Resource resource = findResourceFor(pmdViolation);
+    Resource resource = findResource(pmdViolation.getFilename(), context);
+    if (resource == null) {
+      return null;
+    }
+    return toViolation(pmdViolation, resource);
+  }
+
+  /**
+   * Returns the resource of the file, or null when violations can not be saved on it.
+   */
+  @CheckForNull
+  public Resource findResource(String filename, SensorContext context) {
+    Resource resource = findResourceFor(filename);
     if (context.getResource(resource) == null) {
       // Save violations only for existing resources
       return null;
     }
+    return resource;
+  }
 
+  /**
+   * Converts a violation on a resource already returned by {@link #findResource(String, SensorContext)}.
+   */
+  @CheckForNull
+  public Violation toViolation(RuleViolation pmdViolation, Resource resource) {
     Rule rule = findRuleFor(pmdViolation);
     if (rule == null) {
       // Save violations only for enabled rules
@@ -57,12 +84,19 @@ public class PmdViolationToRuleViolation implements BatchExtension {
     return Violation.create(rule, resource).setLineId(lineId).setMessage(message);
   }
 
-  private Resource findResourceFor(RuleViolation violation) {
-    return File.fromIOFile(new java.io.File(violation.getFilename()), project);
+  private Resource findResourceFor(String filename) {
+    return File.fromIOFile(new java.io.File(filename), project);
   }
 
   private Rule findRuleFor(RuleViolation violation) {
     String ruleKey = violation.getRule().getName();
+    if (!rules.containsKey(ruleKey)) {
+      rules.put(ruleKey, findRuleByKey(ruleKey));
+    }
+    return rules.get(ruleKey);
+  }
+
+  private Rule findRuleByKey(String ruleKey) {
     Rule rule = ruleFinder.findByKey(PmdConstants.REPOSITORY_KEY, ruleKey);
     if (rule != null) {
       return rule;
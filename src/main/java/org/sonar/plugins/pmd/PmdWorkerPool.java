@@ -0,0 +1,242 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSets;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Analyses files with several threads. The files of all the {@link PmdPass}es share the same workers. Each worker has
+ * its own rule sets and report for every pass, and the reports are merged into the report of the pass at the end
+ * in the order of the workers, or file by file in the order of the files when the violations are capped. The number
+ * of active workers is driven by a {@link PmdConcurrencyController}.
+ * With a {@link PmdPreview}, workers stop taking files when its budget is over.
+ */
+public class PmdWorkerPool {
+  static final long ADJUST_INTERVAL_MILLIS = 1000;
+
+  private final PmdTemplate pmdFactory;
+  private final List<PmdPass> passes;
+  private final Map<InputFile, PmdPass> passByFile = Maps.newHashMap();
+  private final PmdConcurrencyController controller;
+  private final PmdPreview preview;
+  private final PmdViolationCaps violationCaps;
+
+  private final Queue<InputFile> queue = new ConcurrentLinkedQueue<InputFile>();
+  private final AtomicLong filesDone = new AtomicLong();
+  private final ResizableSemaphore permits = new ResizableSemaphore();
+  private volatile Throwable failure;
+
+  public PmdWorkerPool(PmdTemplate pmdFactory, List<PmdPass> passes, PmdConcurrencyController controller, @Nullable PmdPreview preview,
+    @Nullable PmdViolationCaps violationCaps) {
+    this.pmdFactory = pmdFactory;
+    this.passes = passes;
+    for (PmdPass pass : passes) {
+      for (InputFile file : pass.getFiles()) {
+        passByFile.put(file, pass);
+      }
+    }
+    this.controller = controller;
+    this.preview = preview;
+    this.violationCaps = violationCaps;
+  }
+
+  /**
+   * Files are taken in the given order, whatever their pass.
+   */
+  public void execute(Collection<InputFile> files) {
+    queue.addAll(files);
+    controller.start();
+    int activeWorkers = controller.getWorkers();
+    permits.release(activeWorkers);
+
+    List<Worker> workers = Lists.newArrayList();
+    for (int slot = 0; slot < Math.min(controller.getMaxWorkers(), files.size()); slot++) {
+      Worker worker = new Worker(slot);
+      workers.add(worker);
+      worker.start();
+    }
+
+    try {
+      for (Worker worker : workers) {
+        worker.join(ADJUST_INTERVAL_MILLIS);
+        while (worker.isAlive()) {
+          activeWorkers = resize(activeWorkers, controller.adjust(filesDone.get()));
+          worker.join(ADJUST_INTERVAL_MILLIS);
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Worker worker : workers) {
+        worker.interrupt();
+      }
+      Thread.currentThread().interrupt();
+      throw new SonarException("Interrupted while executing PMD", e);
+    }
+
+    if (failure instanceof Error) {
+      // Same as the serial analysis, which does not catch errors like StackOverflowError
+      throw (Error) failure;
+    }
+    if (failure != null) {
+      throw new SonarException("Fail to execute PMD", failure);
+    }
+    for (PmdPass pass : passes) {
+      List<PmdViolationStore> workerReports = Lists.newArrayList();
+      for (Worker worker : workers) {
+        WorkerPass workerPass = worker.workerPasses.get(pass);
+        if (workerPass != null) {
+          workerReports.add(workerPass.report);
+        }
+      }
+      if (violationCaps == null) {
+        for (PmdViolationStore workerReport : workerReports) {
+          pass.getReport().merge(workerReport);
+        }
+      } else {
+        violationCaps.merge(workerReports, filenames(files, pass), pass.getRepositoryKey(), pass.getReport());
+      }
+    }
+  }
+
+  private List<String> filenames(Collection<InputFile> files, PmdPass pass) {
+    List<String> filenames = Lists.newArrayList();
+    for (InputFile file : files) {
+      if (passByFile.get(file) == pass) {
+        filenames.add(file.file().getAbsolutePath());
+      }
+    }
+    return filenames;
+  }
+
+  public long getFilesDone() {
+    return filesDone.get();
+  }
+
+  private int resize(int activeWorkers, int targetWorkers) {
+    if (targetWorkers > activeWorkers) {
+      permits.release(targetWorkers - activeWorkers);
+    } else if (targetWorkers < activeWorkers) {
+      permits.reduce(activeWorkers - targetWorkers);
+    }
+    return targetWorkers;
+  }
+
+  private class Worker extends Thread {
+    private final int slot;
+    private final Map<PmdPass, WorkerPass> workerPasses = Maps.newHashMap();
+
+    Worker(int slot) {
+      super("PMD worker " + slot);
+      this.slot = slot;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (process()) {
+          filesDone.incrementAndGet();
+        }
+        for (WorkerPass workerPass : workerPasses.values()) {
+          workerPass.rulesets.end(workerPass.context);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Throwable e) {
+        // Otherwise the files left in the queue would be missing from the reports without notice
+        failure = e;
+        queue.clear();
+      }
+    }
+
+    private boolean process() throws InterruptedException {
+      permits.acquire();
+      try {
+        if (preview != null && preview.isOver()) {
+          return false;
+        }
+        InputFile file = queue.poll();
+        if (file == null) {
+          return false;
+        }
+        PmdPass pass = passByFile.get(file);
+        WorkerPass workerPass = workerPasses.get(pass);
+        if (workerPass == null) {
+          workerPass = new WorkerPass(pass, slot);
+          workerPasses.put(pass, workerPass);
+        }
+        if (workerPass.ruleFilter == null) {
+          pmdFactory.process(file, workerPass.rulesets, workerPass.context);
+        } else {
+          pmdFactory.process(file, workerPass.ruleFilter, workerPass.context);
+        }
+        if (preview != null) {
+          preview.covered(file);
+        }
+        return true;
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  private static class WorkerPass {
+    private final RuleContext context = new RuleContext();
+    private final PmdViolationStore report = new PmdViolationStore();
+    private final RuleSets rulesets;
+    private final PmdRuleFilter ruleFilter;
+
+    WorkerPass(PmdPass pass, int slot) {
+      context.setReport(report);
+      PmdViolationCaps.setRepository(context, pass.getRepositoryKey());
+      rulesets = pass.getRulesets(slot);
+      rulesets.start(context);
+      ruleFilter = pass.getRuleFilter() == null ? null : pass.getRuleFilter().forRulesets(rulesets);
+    }
+  }
+
+  private static class ResizableSemaphore extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    ResizableSemaphore() {
+      super(0);
+    }
+
+    void reduce(int reduction) {
+      reducePermits(reduction);
+    }
+  }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+
+import net.sourceforge.pmd.PMDConfiguration;
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.SourceCodeProcessor;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.LanguageVersion;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.sonar.api.utils.SonarException;
+import org.sonar.api.utils.ValidationMessages;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Estimates the cost of the XPath expressions of rules created from the {@link PmdConstants#XPATH_CLASS} template,
+ * with a static analysis of the expression and a benchmark on a bundled sample source. The benchmark is only meant for
+ * imports and profile validation, exports only run the static analysis.
+ */
+public class PmdXPathCostAnalyser {
+  private static final String SAMPLE_PATH = "/org/sonar/plugins/pmd/xpath/Sample.java";
+  private static final int WARM_UP_RUNS = 20;
+  private static final int BENCHMARK_RUNS = 10;
+  // Evaluation time on the sample, relative to its parse time. Timings are too noisy to tell LOW from MEDIUM.
+  private static final int HIGH_COST_PERCENT = 200;
+
+  public enum CostClass {
+    LOW, MEDIUM, HIGH
+  }
+
+  public static class Cost {
+    private final CostClass costClass;
+    private final List<String> reasons;
+    private final int benchmarkPercent;
+
+    Cost(CostClass costClass, List<String> reasons, int benchmarkPercent) {
+      this.costClass = costClass;
+      this.reasons = reasons;
+      this.benchmarkPercent = benchmarkPercent;
+    }
+
+    public CostClass getCostClass() {
+      return costClass;
+    }
+
+    public List<String> getReasons() {
+      return reasons;
+    }
+
+    public int getBenchmarkPercent() {
+      return benchmarkPercent;
+    }
+  }
+
+  private final Ticker ticker;
+  private String sample;
+
+  public PmdXPathCostAnalyser() {
+    this(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  PmdXPathCostAnalyser(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  public Cost analyse(String xpath) {
+    List<String> reasons = Lists.newArrayList();
+    CostClass costClass = staticCost(xpath, reasons);
+
+    int benchmarkPercent = benchmark(xpath);
+    if (benchmarkPercent >= HIGH_COST_PERCENT) {
+      costClass = CostClass.HIGH;
+      reasons.add("slow on the sample source");
+    }
+    return new Cost(costClass, reasons, benchmarkPercent);
+  }
+
+  /**
+   * Adds a warning to the messages when the expression of the rule is not cheap to evaluate.
+   */
+  public void validate(String ruleName, String xpath, ValidationMessages messages) {
+    try {
+      Cost cost = analyse(xpath);
+      if (cost.getCostClass() != CostClass.LOW) {
+        messages.addWarningText("PMD XPath rule '" + ruleName + "' has a " + cost.getCostClass() + " estimated cost ("
+          + Joiner.on(", ").join(cost.getReasons()) + "; " + cost.getBenchmarkPercent() + "% of the parse time on the sample source)");
+      }
+    } catch (SonarException e) {
+      messages.addWarningText("PMD XPath rule '" + ruleName + "' can't be evaluated: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Same as {@link #validate(String, String, ValidationMessages)}, without running the benchmark.
+   */
+  public void validateStatically(String ruleName, String xpath, ValidationMessages messages) {
+    List<String> reasons = Lists.newArrayList();
+    CostClass costClass = staticCost(xpath, reasons);
+    if (costClass != CostClass.LOW) {
+      messages.addWarningText("PMD XPath rule '" + ruleName + "' has a " + costClass + " estimated cost (" + Joiner.on(", ").join(reasons) + ")");
+    }
+  }
+
+  @VisibleForTesting
+  static CostClass staticCost(String xpath, List<String> reasons) {
+    String expression = removeLiterals(xpath).replaceAll("\\s+", "");
+    CostClass costClass = CostClass.LOW;
+
+    if (expression.contains("//*") || expression.contains("//node()") || expression.contains("descendant::*")
+      || expression.contains("descendant-or-self::*")) {
+      costClass = CostClass.HIGH;
+      reasons.add("wildcard descendant scan");
+    }
+    if (hasDescendantScanInPredicate(expression)) {
+      costClass = CostClass.HIGH;
+      reasons.add("nested descendant scan in a predicate");
+    }
+    if (expression.contains("preceding::") || expression.contains("following::")) {
+      costClass = CostClass.HIGH;
+      reasons.add("preceding or following axis");
+    }
+    if (!isRuleChainEligible(expression) && costClass == CostClass.LOW) {
+      costClass = CostClass.MEDIUM;
+      reasons.add("not eligible for the rule chain");
+    }
+    return costClass;
+  }
+
+  private static String removeLiterals(String xpath) {
+    return xpath.replaceAll("'[^']*'", "''").replaceAll("\"[^\"]*\"", "''");
+  }
+
+  private static boolean hasDescendantScanInPredicate(String expression) {
+    int depth = 0;
+    for (int i = 0; i < expression.length(); i++) {
+      char c = expression.charAt(i);
+      if (c == '[') {
+        depth++;
+      } else if (c == ']') {
+        depth--;
+      } else if (depth > 0 && (expression.startsWith("//", i) || expression.startsWith("descendant", i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isRuleChainEligible(String expression) {
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i <= expression.length(); i++) {
+      char c = i < expression.length() ? expression.charAt(i) : '|';
+      if (c == '[' || c == '(') {
+        depth++;
+      } else if (c == ']' || c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        if (!expression.substring(start, i).matches("//[A-Za-z]\\w*([\\[/].*)?")) {
+          return false;
+        }
+        start = i + 1;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the evaluation time of the expression on the sample source, as a percentage of the time needed to parse the sample
+   * and walk its AST.
+   */
+  @VisibleForTesting
+  int benchmark(String xpath) {
+    // The baseline includes the walk of the rule chain, which is shared by all rules
+    RuleSets baseline = new RuleSets(RuleSet.createFor("XPathCostBaseline", createRule("//CompilationUnit[false()]")));
+    RuleSets rulesets = new RuleSets(RuleSet.createFor("XPathCostBenchmark", createRule(xpath)));
+
+    // First runs warm up the parser and compile the expression
+    for (int i = 0; i < WARM_UP_RUNS; i++) {
+      run(baseline);
+      run(rulesets);
+    }
+    long baselineNanos = Long.MAX_VALUE;
+    long ruleNanos = Long.MAX_VALUE;
+    for (int i = 0; i < BENCHMARK_RUNS; i++) {
+      baselineNanos = Math.min(baselineNanos, run(baseline));
+      ruleNanos = Math.min(ruleNanos, run(rulesets));
+    }
+    return (int) (Math.max(0, ruleNanos - baselineNanos) * 100 / Math.max(1, baselineNanos));
+  }
+
+  private static XPathRule createRule(String xpath) {
+    XPathRule rule = new XPathRule(xpath);
+    rule.setName("XPathCostBenchmark");
+    rule.setMessage("XPath cost benchmark");
+    rule.setLanguage(Language.JAVA);
+    return rule;
+  }
+
+  private long run(RuleSets rulesets) {
+    PMDConfiguration configuration = new PMDConfiguration();
+    configuration.setDefaultLanguageVersion(LanguageVersion.JAVA_17);
+    RuleContext context = new RuleContext();
+    context.setReport(new Report());
+    context.setSourceCodeFilename("Sample.java");
+    context.setIgnoreExceptions(false);
+
+    long start = ticker.read();
+    try {
+      new SourceCodeProcessor(configuration).processSourceCode(new StringReader(sample()), rulesets, context);
+    } catch (Exception e) {
+      throw new SonarException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage(), e);
+    }
+    return ticker.read() - start;
+  }
+
+  private synchronized String sample() {
+    if (sample == null) {
+      InputStream input = null;
+      try {
+        input = PmdXPathCostAnalyser.class.getResourceAsStream(SAMPLE_PATH);
+        sample = new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
+      } catch (IOException e) {
+        throw new SonarException("Fail to load the XPath benchmark sample " + SAMPLE_PATH, e);
+      } finally {
+        Closeables.closeQuietly(input);
+      }
+    }
+    return sample;
+  }
+
+}
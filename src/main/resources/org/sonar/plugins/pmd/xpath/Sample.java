@@ -0,0 +1,190 @@
+/*
+ * Sample source used to benchmark the cost of XPath rules.
+ */
+package org.example.inventory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class Sample implements Comparable<Sample> {
+
+  public static final int DEFAULT_CAPACITY = 16;
+  private static final String SEPARATOR = ";";
+
+  private final String name;
+  private final Map<String, Item> items = new HashMap<String, Item>();
+  private final List<Listener> listeners = new ArrayList<Listener>();
+  private int version;
+
+  public Sample(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized void add(Item item) {
+    if (item == null) {
+      throw new IllegalArgumentException("Item must not be null");
+    }
+    Item previous = items.put(item.getKey(), item);
+    version++;
+    for (Listener listener : listeners) {
+      if (previous == null) {
+        listener.added(item);
+      } else {
+        listener.replaced(previous, item);
+      }
+    }
+  }
+
+  public synchronized boolean remove(String key) {
+    Item removed = items.remove(key);
+    if (removed != null) {
+      version++;
+      for (Iterator<Listener> it = listeners.iterator(); it.hasNext();) {
+        it.next().removed(removed);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  public List<Item> sortedItems() {
+    List<Item> result = new ArrayList<Item>(items.values());
+    Collections.sort(result);
+    return result;
+  }
+
+  public int totalQuantity() {
+    int total = 0;
+    for (Item item : items.values()) {
+      total += item.getQuantity();
+    }
+    return total;
+  }
+
+  public void load(Reader source) throws IOException {
+    BufferedReader reader = new BufferedReader(source);
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split(SEPARATOR);
+        if (fields.length != 3) {
+          throw new IOException("Invalid line " + lineNumber + ": " + line);
+        }
+        try {
+          add(new Item(fields[0], fields[1], Integer.parseInt(fields[2])));
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid quantity at line " + lineNumber, e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public String describe() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(name).append(" (").append(items.size()).append(" items)");
+    switch (items.size()) {
+      case 0:
+        sb.append(" is empty");
+        break;
+      case 1:
+        sb.append(" has a single item");
+        break;
+      default:
+        sb.append(" has ").append(totalQuantity()).append(" units");
+    }
+    return sb.toString();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public int compareTo(Sample other) {
+    return name.compareTo(other.name);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Sample)) {
+      return false;
+    }
+    return name.equals(((Sample) obj).name) && version == ((Sample) obj).version;
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode() * 31 + version;
+  }
+
+  public interface Listener {
+    void added(Item item);
+
+    void replaced(Item previous, Item current);
+
+    void removed(Item item);
+  }
+
+  public static class Item implements Comparable<Item> {
+    private final String key;
+    private final String label;
+    private int quantity;
+
+    public Item(String key, String label, int quantity) {
+      this.key = key;
+      this.label = label;
+      this.quantity = quantity;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public int getQuantity() {
+      return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+      if (quantity < 0) {
+        throw new IllegalArgumentException("Negative quantity: " + quantity);
+      }
+      this.quantity = quantity;
+    }
+
+    @Override
+    public int compareTo(Item other) {
+      int result = label.compareToIgnoreCase(other.label);
+      return result != 0 ? result : key.compareTo(other.key);
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + label + "x" + quantity;
+    }
+  }
+}
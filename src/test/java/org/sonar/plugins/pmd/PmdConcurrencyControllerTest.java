@@ -0,0 +1,92 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+import org.sonar.plugins.pmd.PmdConcurrencyController.Sample;
+
+public class PmdConcurrencyControllerTest {
+  static final long SECOND = 1000000000L;
+
+  @Test
+  public void should_start_with_half_of_the_workers() {
+    assertThat(new PmdConcurrencyController(8, 4).getWorkers()).isEqualTo(2);
+    assertThat(new PmdConcurrencyController(4, 8).getWorkers()).isEqualTo(2);
+    assertThat(new PmdConcurrencyController(2, 1).getWorkers()).isEqualTo(1);
+    assertThat(new PmdConcurrencyController(0, 8).getWorkers()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_remove_worker_on_heap_pressure() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(4, 8);
+
+    assertThat(controller.adjust(10, SECOND, new Sample(0.9, 0, 0.0))).isEqualTo(1);
+  }
+
+  @Test
+  public void should_remove_worker_on_gc_pressure() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(4, 8);
+
+    assertThat(controller.adjust(10, SECOND, new Sample(0.5, 500, 0.0))).isEqualTo(1);
+  }
+
+  @Test
+  public void should_keep_at_least_one_worker() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(1, 4);
+
+    assertThat(controller.adjust(10, SECOND, new Sample(0.9, 500, 0.0))).isEqualTo(1);
+  }
+
+  @Test
+  public void should_add_worker_while_cpu_is_idle_and_throughput_grows() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(3, 4);
+
+    assertThat(controller.adjust(10, SECOND, new Sample(0.5, 0, 0.5))).isEqualTo(2);
+    assertThat(controller.adjust(30, 2 * SECOND, new Sample(0.5, 0, 0.5))).isEqualTo(3);
+    assertThat(controller.adjust(50, 3 * SECOND, new Sample(0.5, 0, 0.5))).isEqualTo(3);
+  }
+
+  @Test
+  public void should_not_add_worker_when_throughput_drops() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(4, 4);
+
+    assertThat(controller.adjust(20, SECOND, new Sample(0.5, 0, 0.5))).isEqualTo(3);
+    assertThat(controller.adjust(30, 2 * SECOND, new Sample(0.5, 0, 0.5))).isEqualTo(3);
+  }
+
+  @Test
+  public void should_not_add_worker_when_cpu_is_busy() {
+    PmdConcurrencyController controller = new PmdConcurrencyController(4, 4);
+
+    assertThat(controller.adjust(10, SECOND, new Sample(0.5, 0, 0.9))).isEqualTo(2);
+    assertThat(controller.adjust(20, 2 * SECOND, new Sample(0.5, 0, -1))).isEqualTo(2);
+  }
+
+  @Test
+  public void should_sample_jvm() {
+    Sample sample = new PmdConcurrencyController(2).sample();
+
+    assertThat(sample.heapOccupancy).isGreaterThanOrEqualTo(0.0).isLessThanOrEqualTo(1.0);
+    assertThat(sample.gcMillis).isGreaterThanOrEqualTo(0);
+    assertThat(sample.cpuLoad).isLessThanOrEqualTo(1.0);
+  }
+}
@@ -24,12 +24,17 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.config.Settings;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.utils.SonarException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.google.common.base.Ticker;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.eq;
@@ -105,4 +110,56 @@ public class PmdConfigurationTest {
     assertThat(reportFile).isNull();
     verifyZeroInteractions(fs);
   }
+
+  @Test
+  public void should_dump_trace() throws IOException {
+    when(fs.writeToWorkingDirectory(matches("(?s)\\{\"traceEvents\":\\[.*\\].*\\}"), eq("pmd-trace.json"))).thenReturn(new File("/workingDir/pmd-trace.json"));
+
+    File traceFile = configuration.dumpTrace(new PmdTracer(true));
+
+    assertThat(traceFile).isEqualTo(new File("/workingDir/pmd-trace.json"));
+  }
+
+  @Test
+  public void should_ignore_trace_when_disabled() {
+    File traceFile = configuration.dumpTrace(new PmdTracer(false));
+
+    assertThat(traceFile).isNull();
+    verifyZeroInteractions(fs);
+  }
+
+  @Test
+  public void should_dump_preview_files() throws IOException {
+    PmdPreview preview = new PmdPreview(1000, Collections.<String>emptyList(), Ticker.systemTicker());
+    InputFile covered = mock(InputFile.class);
+    when(covered.relativePath()).thenReturn("src/Covered.java");
+    when(covered.file()).thenReturn(new File("src/Covered.java"));
+    InputFile skipped = mock(InputFile.class);
+    when(skipped.relativePath()).thenReturn("src/Skipped.java");
+    when(skipped.file()).thenReturn(new File("src/Skipped.java"));
+    preview.schedule(Arrays.asList(covered, skipped));
+    preview.covered(covered);
+    when(fs.writeToWorkingDirectory("# Analysed within the budget\nsrc/Covered.java\n# Not analysed\nsrc/Skipped.java\n", "pmd-preview-files.txt"))
+      .thenReturn(new File("/workingDir/pmd-preview-files.txt"));
+
+    File previewFile = configuration.dumpPreviewFiles(preview);
+
+    assertThat(previewFile).isEqualTo(new File("/workingDir/pmd-preview-files.txt"));
+  }
+
+  @Test
+  public void should_dump_slow_files() throws IOException {
+    PmdSlowFiles slowFiles = new PmdSlowFiles(10);
+    InputFile slow = mock(InputFile.class);
+    when(slow.relativePath()).thenReturn("src/Slow.java");
+    when(slow.file()).thenReturn(new File("src/Slow.java"));
+    when(slow.lines()).thenReturn(120);
+    slowFiles.record(slow, 5000000, new Report());
+    when(fs.writeToWorkingDirectory("# Time (ms)\tSize (bytes)\tLines\tViolations\tDominant rule\tFile\n5\t0\t120\t0\t-\tsrc/Slow.java\n",
+      "pmd-slow-files.txt")).thenReturn(new File("/workingDir/pmd-slow-files.txt"));
+
+    File slowFilesFile = configuration.dumpSlowFiles(slowFiles);
+
+    assertThat(slowFilesFile).isEqualTo(new File("/workingDir/pmd-slow-files.txt"));
+  }
 }
@@ -22,8 +22,11 @@ package org.sonar.plugins.pmd;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -32,6 +35,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Set;
 
 import net.sourceforge.pmd.Report;
 import net.sourceforge.pmd.RuleContext;
@@ -39,8 +43,12 @@ import net.sourceforge.pmd.RuleSets;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.ProjectClasspath;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
@@ -50,6 +58,7 @@ import org.sonar.api.resources.Project;
 import org.sonar.test.TestUtils;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Multimap;
 import com.google.common.io.Files;
 
 public class PmdExecutorTest {
@@ -57,18 +66,23 @@ public class PmdExecutorTest {
 
   Project project = mock(Project.class);
   FileSystem projectFileSystem = mock(FileSystem.class);
+  PmdFileIndex fileIndex = mock(PmdFileIndex.class);
   RulesProfile rulesProfile = mock(RulesProfile.class);
   PmdProfileExporter pmdProfileExporter = mock(PmdProfileExporter.class);
   PmdConfiguration pmdConfiguration = mock(PmdConfiguration.class);
   PmdTemplate pmdTemplate = mock(PmdTemplate.class);
   ProjectClasspath projectClasspath = mock(ProjectClasspath.class);
   Settings settings = mock(Settings.class);
+  PmdResultCache resultCache = new PmdResultCache(null, 0);
+  PmdShards shards = mock(PmdShards.class);
+  PmdRuleCosts ruleCosts = mock(PmdRuleCosts.class);
 
   @Before
   public void setUpPmdExecutor() {
-    pmdExecutor = Mockito.spy(new PmdExecutor(project, projectFileSystem, rulesProfile, pmdProfileExporter, pmdConfiguration, projectClasspath, settings));
+    pmdExecutor = Mockito.spy(new PmdExecutor(project, projectFileSystem, fileIndex, rulesProfile, pmdProfileExporter, pmdConfiguration, new PmdRuleSetCache(), new PmdMetrics(), new PmdTracer(false), resultCache, shards, ruleCosts, projectClasspath, settings));
 
     doReturn(pmdTemplate).when(pmdExecutor).createPmdTemplate();
+    when(projectClasspath.getElements()).thenReturn(Arrays.asList(new File("target/classes")));
   }
 
   @Test
@@ -79,8 +93,8 @@ public class PmdExecutorTest {
     setupPmdRuleSet(PmdConstants.TEST_REPOSITORY_KEY, "junit.xml");
 
     when(projectFileSystem.encoding()).thenReturn(Charsets.UTF_8);
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaFilePredicate.class))).thenReturn(Arrays.asList(srcFile));
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaTestFilePredicate.class))).thenReturn(Arrays.asList(tstFile));
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Arrays.asList(tstFile));
 
     Report report = pmdExecutor.execute();
 
@@ -90,6 +104,174 @@ public class PmdExecutorTest {
 
   }
 
+  @Test
+  public void should_execute_pmd_with_rule_filter() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(settings.getBoolean(PmdConfiguration.PROPERTY_RULE_FILTER)).thenReturn(true);
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    pmdExecutor.execute();
+
+    verify(pmdTemplate).process(eq(srcFile), any(PmdRuleFilter.class), any(RuleContext.class));
+    verifyNoMoreInteractions(pmdTemplate);
+  }
+
+  @Test
+  public void should_leave_out_rules_over_time_budget() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    Set<String> rulesOverBudget = Collections.singleton("CouplingBetweenObjects");
+    when(ruleCosts.rulesOverBudget(Matchers.anyMapOf(String.class, Long.class))).thenReturn(rulesOverBudget);
+    when(pmdProfileExporter.exportProfile(PmdConstants.REPOSITORY_KEY, rulesProfile, rulesOverBudget)).thenReturn(
+      Files.toString(new File("src/test/resources/org/sonar/plugins/pmd/simple.xml"), Charsets.UTF_8));
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    pmdExecutor.execute();
+
+    verify(pmdProfileExporter).exportProfile(PmdConstants.REPOSITORY_KEY, rulesProfile, rulesOverBudget);
+    verify(ruleCosts).rulesOverBudget(Matchers.anyMapOf(String.class, Long.class));
+    verify(ruleCosts).record(Matchers.anyMapOf(String.class, Long.class), Matchers.anyMapOf(String.class, Integer.class),
+      Matchers.<Multimap<String, String>>any(), Matchers.anyMapOf(String.class, Long.class));
+  }
+
+  @Test
+  public void should_stop_preview_when_budget_is_over() throws Exception {
+    InputFile firstFile = file("src/First.java");
+    InputFile secondFile = file("src/Second.java");
+    when(firstFile.relativePath()).thenReturn("src/First.java");
+    when(secondFile.relativePath()).thenReturn("src/Second.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(settings.getLong(PmdConfiguration.PROPERTY_PREVIEW_BUDGET)).thenReturn(1L);
+    when(settings.getString(CoreProperties.ANALYSIS_MODE)).thenReturn(CoreProperties.ANALYSIS_MODE_PREVIEW);
+    when(settings.getStringArray(PmdConfiguration.PROPERTY_PREVIEW_PRIORITIES)).thenReturn(new String[] {"src/Second.java"});
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(firstFile, secondFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws InterruptedException {
+        Thread.sleep(1100);
+        return null;
+      }
+    }).when(pmdTemplate).process(eq(secondFile), any(RuleSets.class), any(RuleContext.class));
+
+    pmdExecutor.execute();
+
+    verify(pmdTemplate).process(eq(secondFile), any(RuleSets.class), any(RuleContext.class));
+    verify(pmdTemplate, never()).process(eq(firstFile), any(RuleSets.class), any(RuleContext.class));
+    ArgumentCaptor<PmdPreview> preview = ArgumentCaptor.forClass(PmdPreview.class);
+    verify(pmdConfiguration).dumpPreviewFiles(preview.capture());
+    assertThat(preview.getValue().getCoveredFiles()).containsExactly(secondFile);
+    assertThat(preview.getValue().getSkippedFiles()).containsExactly(firstFile);
+  }
+
+  @Test
+  public void should_merge_partial_reports_of_shards() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(shards.isEnabled()).thenReturn(true);
+    when(shards.isMerge()).thenReturn(true);
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    Report report = pmdExecutor.execute();
+
+    verify(shards).mergePartialReports(eq(PmdConstants.REPOSITORY_KEY), any(RuleSets.class), eq(report), (PmdViolationCaps) Matchers.isNull());
+    verifyNoMoreInteractions(pmdTemplate);
+  }
+
+  @Test
+  public void should_write_partial_report_of_shard() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(shards.isEnabled()).thenReturn(true);
+    when(shards.select(Arrays.asList(srcFile))).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    pmdExecutor.execute();
+
+    verify(pmdTemplate).process(eq(srcFile), any(RuleSets.class), any(RuleContext.class));
+    verify(shards).writePartialReport(eq(PmdConstants.REPOSITORY_KEY), any(Report.class));
+  }
+
+  @Test
+  public void should_execute_pmd_with_several_threads() throws Exception {
+    InputFile firstFile = file("src/First.java");
+    InputFile secondFile = file("src/Second.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(settings.getInt(PmdConfiguration.PROPERTY_THREADS)).thenReturn(2);
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(firstFile, secondFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    Report report = pmdExecutor.execute();
+
+    verify(pmdTemplate).process(eq(firstFile), any(RuleSets.class), any(RuleContext.class));
+    verify(pmdTemplate).process(eq(secondFile), any(RuleSets.class), any(RuleContext.class));
+    assertThat(report).isNotNull();
+  }
+
+  @Test(expected = StackOverflowError.class)
+  public void should_fail_when_worker_fails_with_error() throws Exception {
+    InputFile firstFile = file("src/First.java");
+    InputFile secondFile = file("src/Second.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    when(settings.getInt(PmdConfiguration.PROPERTY_THREADS)).thenReturn(2);
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(firstFile, secondFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+    doThrow(new StackOverflowError()).when(pmdTemplate).process(eq(secondFile), any(RuleSets.class), any(RuleContext.class));
+
+    pmdExecutor.execute();
+  }
+
+  @Test
+  public void should_share_workers_between_source_files_and_test_files() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    InputFile tstFile = file("test/ClassTest.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
+    setupPmdRuleSet(PmdConstants.TEST_REPOSITORY_KEY, "junit.xml");
+    when(settings.getInt(PmdConfiguration.PROPERTY_THREADS)).thenReturn(2);
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Arrays.asList(tstFile));
+
+    pmdExecutor.execute();
+
+    ArgumentCaptor<RuleSets> srcRulesets = ArgumentCaptor.forClass(RuleSets.class);
+    ArgumentCaptor<RuleSets> tstRulesets = ArgumentCaptor.forClass(RuleSets.class);
+    verify(pmdTemplate).process(eq(srcFile), srcRulesets.capture(), any(RuleContext.class));
+    verify(pmdTemplate).process(eq(tstFile), tstRulesets.capture(), any(RuleContext.class));
+    assertThat(srcRulesets.getValue().getRuleByName("CouplingBetweenObjects")).isNotNull();
+    assertThat(tstRulesets.getValue().getRuleByName("CouplingBetweenObjects")).isNull();
+  }
+
+  @Test
+  public void should_leave_out_type_resolution_without_classpath() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "typeresolution.xml");
+    when(projectClasspath.getElements()).thenReturn(Collections.<File>emptyList());
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    pmdExecutor.execute();
+
+    verify(pmdTemplate).useTypeResolution(false);
+    verify(pmdTemplate).process(eq(srcFile), any(RuleSets.class), any(RuleContext.class));
+  }
+
+  @Test
+  public void should_keep_type_resolution_with_classpath() throws Exception {
+    InputFile srcFile = file("src/Class.java");
+    setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "typeresolution.xml");
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
+
+    pmdExecutor.execute();
+
+    verify(pmdTemplate, never()).useTypeResolution(false);
+  }
+
   @Test
   public void should_dump_configuration_as_xml() {
     when(pmdProfileExporter.exportProfile(PmdConstants.REPOSITORY_KEY, rulesProfile)).thenReturn(TestUtils.getResourceContent("/org/sonar/plugins/pmd/simple.xml"));
@@ -106,8 +288,8 @@ public class PmdExecutorTest {
     InputFile tstFile = file("test/ClassTest.java");
     setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
     setupPmdRuleSet(PmdConstants.TEST_REPOSITORY_KEY, "junit.xml");
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaFilePredicate.class))).thenReturn(Arrays.asList(srcFile));
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaTestFilePredicate.class))).thenReturn(Arrays.asList(tstFile));
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Arrays.asList(tstFile));
 
     pmdExecutor.execute();
 
@@ -121,8 +303,8 @@ public class PmdExecutorTest {
     doReturn(pmdTemplate).when(pmdExecutor).createPmdTemplate();
     setupPmdRuleSet(PmdConstants.REPOSITORY_KEY, "simple.xml");
     when(projectFileSystem.encoding()).thenReturn(Charsets.UTF_8);
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaFilePredicate.class))).thenReturn(Arrays.asList(srcFile));
-    when(projectFileSystem.inputFiles(Matchers.isA(JavaTestFilePredicate.class))).thenReturn(Collections.<InputFile>emptyList());
+    when(fileIndex.mainFiles()).thenReturn(Arrays.asList(srcFile));
+    when(fileIndex.testFiles()).thenReturn(Collections.<InputFile>emptyList());
 
     pmdExecutor.execute();
 
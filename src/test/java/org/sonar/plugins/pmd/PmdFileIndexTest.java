@@ -0,0 +1,112 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+
+public class PmdFileIndexTest {
+  DefaultFileSystem fileSystem = new DefaultFileSystem();
+  PmdFileIndex fileIndex;
+
+  @Before
+  public void setUpPmdFileIndex() {
+    fileIndex = new PmdFileIndex(fileSystem);
+  }
+
+  @Test
+  public void should_classify_java_files_in_one_pass() {
+    InputFile mainFile = file("src/ClassTest.java", "java");
+    InputFile testFile = file("src/Class.java", "java");
+    fileSystem.add(mainFile);
+    fileSystem.add(testFile);
+    fileSystem.add(file("src/Class.groovy", "grvy"));
+
+    assertThat(fileIndex.mainFiles()).containsOnly(mainFile);
+    assertThat(fileIndex.testFiles()).containsOnly(testFile);
+  }
+
+  @Test
+  public void should_keep_types_given_by_sonar() {
+    fileSystem.add(file("src/main/java/Class.java", "java").setType(InputFile.Type.MAIN));
+
+    assertThat(fileIndex.hasFiles(InputFile.Type.MAIN)).isTrue();
+    assertThat(fileIndex.hasFiles(InputFile.Type.TEST)).isFalse();
+  }
+
+  @Test
+  public void should_be_empty_without_java_files() {
+    fileSystem.add(file("src/Class.groovy", "grvy"));
+
+    assertThat(fileIndex.hasFiles(InputFile.Type.MAIN)).isFalse();
+    assertThat(fileIndex.hasFiles(InputFile.Type.TEST)).isFalse();
+    assertThat(fileIndex.mainBytes()).isEqualTo(0L);
+    assertThat(fileIndex.testBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void should_sum_file_sizes() {
+    File simple = new File("src/test/resources/org/sonar/plugins/pmd/simple.xml");
+    InputFile inputFile = new DefaultInputFile("simple.java").setFile(simple).setLanguage("java");
+    fileSystem.add(inputFile);
+
+    assertThat(fileIndex.testBytes()).isEqualTo(simple.length());
+    assertThat(fileIndex.bytes(inputFile)).isEqualTo(simple.length());
+  }
+
+  @Test
+  public void should_read_file_sizes_only_when_asked() {
+    File file = mock(File.class);
+    when(file.getName()).thenReturn("Class.java");
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.language()).thenReturn("java");
+    when(inputFile.file()).thenReturn(file);
+    when(inputFile.type()).thenReturn(InputFile.Type.MAIN);
+    fileSystem.add(inputFile);
+
+    assertThat(fileIndex.testFiles()).hasSize(1);
+    verify(file, never()).length();
+  }
+
+  @Test
+  public void should_classify_only_once() {
+    fileSystem.add(file("src/Class.java", "java"));
+    assertThat(fileIndex.testFiles()).hasSize(1);
+
+    fileSystem.add(file("src/Other.java", "java"));
+
+    assertThat(fileIndex.testFiles()).hasSize(1);
+  }
+
+  static DefaultInputFile file(String path, String language) {
+    return new DefaultInputFile(path).setFile(new File(path)).setLanguage(language);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+public class PmdGeneratedFileFilterTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  PmdGeneratedFileFilter filter = new PmdGeneratedFileFilter(new String[] {"DO NOT EDIT"}, Charsets.UTF_8);
+
+  @Test
+  public void should_be_disabled_by_default() {
+    assertThat(PmdGeneratedFileFilter.create(new Settings(), Charsets.UTF_8)).isNull();
+    assertThat(PmdGeneratedFileFilter.create(new Settings().setProperty(PmdConfiguration.PROPERTY_SKIP_GENERATED, true), Charsets.UTF_8)).isNotNull();
+  }
+
+  @Test
+  public void should_detect_generated_annotation_and_markers() throws IOException {
+    assertThat(filter.isGenerated(source("@Generated(\"jaxb\")\nclass Foo {}"))).isTrue();
+    assertThat(filter.isGenerated(source("// Generated by the protocol buffer compiler.  DO NOT EDIT!\nclass Foo {}"))).isTrue();
+    assertThat(filter.isGenerated(source("class Foo {}"))).isFalse();
+  }
+
+  @Test
+  public void should_detect_qualified_generated_annotation() throws IOException {
+    assertThat(filter.isGenerated(source("@javax.annotation.Generated(\"jaxb\")\nclass Foo {}"))).isTrue();
+    assertThat(filter.isGenerated(source("@javax.annotation.processing.Generated(\"dagger\")\nclass Foo {}"))).isTrue();
+  }
+
+  @Test
+  public void should_keep_file_which_only_mentions_generated_annotation() throws IOException {
+    assertThat(filter.isGenerated(source("/**\n * Unlike the {@code @Generated} classes, written by hand.\n */\nclass Foo {}"))).isFalse();
+    assertThat(filter.isGenerated(source("class Foo {\n  // Not @Generated\n  String bar = \"@Generated\";\n}"))).isFalse();
+    assertThat(filter.isGenerated(source("/* Header */\n@Generated(\"jaxb\")\nclass Foo {}"))).isTrue();
+  }
+
+  @Test
+  public void should_strip_comments_and_literals() {
+    assertThat(PmdGeneratedFileFilter.code("a /* b */ c // d\ne \"f\\\"g\" 'h' /** i")).isEqualTo("a   c \ne \"\" ''  ");
+  }
+
+  @Test
+  public void should_keep_jpa_entity() throws IOException {
+    File entity = source("import javax.persistence.*;\n@Entity\nclass Foo {\n  @Id @GeneratedValue(strategy = GenerationType.AUTO)\n  Long id;\n}");
+
+    assertThat(filter.isGenerated(entity)).isFalse();
+  }
+
+  @Test
+  public void should_only_scan_header() throws IOException {
+    File source = source("class Foo {\n" + Strings.repeat(" ", PmdGeneratedFileFilter.HEADER_BYTES) + "@Generated int bar; }");
+
+    assertThat(filter.isGenerated(source)).isFalse();
+  }
+
+  @Test
+  public void should_keep_unreadable_file() {
+    assertThat(filter.isGenerated(new File(temp.getRoot(), "Missing.java"))).isFalse();
+  }
+
+  @Test
+  public void should_drop_generated_files() throws IOException {
+    InputFile generated = inputFile(source("// DO NOT EDIT\nclass Foo {}"));
+    InputFile written = inputFile(source("class Bar {}"));
+
+    assertThat(filter.filter(Arrays.asList(generated, written), "pmd")).containsExactly(written);
+  }
+
+  private File source(String content) throws IOException {
+    File file = temp.newFile();
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static InputFile inputFile(File file) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.file()).thenReturn(file);
+    return inputFile;
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class PmdMetricsTest {
+  PmdMetrics metrics = new PmdMetrics();
+
+  @After
+  public void stopMetrics() {
+    metrics.stop();
+  }
+
+  @Test
+  public void should_count_files() {
+    metrics.filesQueued(3);
+    metrics.fileStarted();
+    metrics.fileDone(100, 2);
+    metrics.fileStarted();
+    metrics.parseFailed();
+    metrics.fileDone(50, 0);
+    metrics.fileStarted();
+
+    assertThat(metrics.getFilesQueued()).isEqualTo(0);
+    assertThat(metrics.getFilesInProgress()).isEqualTo(1);
+    assertThat(metrics.getFilesDone()).isEqualTo(2);
+    assertThat(metrics.getParseFailures()).isEqualTo(1);
+    assertThat(metrics.getViolations()).isEqualTo(2);
+    assertThat(metrics.getFilesPerSecond()).isGreaterThan(0.0);
+    assertThat(metrics.getLinesPerSecond()).isGreaterThan(metrics.getFilesPerSecond());
+  }
+
+  @Test
+  public void should_register_mbean() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(PmdMetrics.OBJECT_NAME);
+
+    metrics.start();
+    metrics.filesQueued(5);
+
+    assertThat(server.getAttribute(name, "FilesQueued")).isEqualTo(5L);
+    assertThat(server.getAttribute(name, "RuleHotSpots")).isInstanceOf(String[].class);
+
+    metrics.stop();
+
+    assertThat(server.isRegistered(name)).isFalse();
+  }
+
+  @Test
+  public void should_sort_hot_spots_by_time() {
+    String[] hotSpots = PmdMetrics.hotSpots(ImmutableMap.of("FastRule", 1000000L, "SlowRule", 30000000L));
+
+    assertThat(hotSpots).containsOnly("SlowRule: 30 ms", "FastRule: 1 ms");
+    assertThat(hotSpots[0]).isEqualTo("SlowRule: 30 ms");
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Settings;
+
+import com.google.common.base.Ticker;
+
+public class PmdPreviewTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void should_be_disabled_without_budget() {
+    assertThat(PmdPreview.create(new Settings())).isNull();
+    assertThat(PmdPreview.create(new Settings().setProperty(PmdConfiguration.PROPERTY_PREVIEW_BUDGET, 60)
+      .setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW))).isNotNull();
+  }
+
+  @Test
+  public void should_ignore_budget_of_publishing_analysis() {
+    Settings settings = new Settings().setProperty(PmdConfiguration.PROPERTY_PREVIEW_BUDGET, 60);
+
+    assertThat(PmdPreview.create(settings)).isNull();
+    assertThat(PmdPreview.create(settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_ANALYSIS))).isNull();
+    assertThat(PmdPreview.create(settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_INCREMENTAL))).isNotNull();
+    assertThat(PmdPreview.create(new Settings().setProperty(PmdConfiguration.PROPERTY_PREVIEW_BUDGET, 60)
+      .setProperty(CoreProperties.DRY_RUN, true))).isNotNull();
+  }
+
+  @Test
+  public void should_schedule_priority_files_then_recently_modified_files() throws IOException {
+    InputFile old = inputFile("Old.java", 1000000000000L);
+    InputFile recent = inputFile("Recent.java", 2000000000000L);
+    InputFile important = inputFile("Important.java", 1000000000000L);
+    InputFile urgent = inputFile("Urgent.java", 1000000000000L);
+    PmdPreview preview = new PmdPreview(60000, Arrays.asList("Urgent.java", "Important.java"), ticker);
+
+    assertThat(preview.schedule(Arrays.asList(old, important, recent, urgent))).containsExactly(urgent, important, recent, old);
+  }
+
+  @Test
+  public void should_be_over_after_budget() {
+    PmdPreview preview = new PmdPreview(60000, Collections.<String>emptyList(), ticker);
+    preview.start();
+
+    ticker.advance(59);
+    assertThat(preview.isOver()).isFalse();
+
+    ticker.advance(1);
+    assertThat(preview.isOver()).isTrue();
+  }
+
+  @Test
+  public void should_record_covered_and_skipped_files() throws IOException {
+    InputFile first = inputFile("First.java", 2000000000000L);
+    InputFile second = inputFile("Second.java", 1000000000000L);
+    PmdPreview preview = new PmdPreview(60000, Collections.<String>emptyList(), ticker);
+    preview.schedule(Arrays.asList(second, first));
+
+    preview.covered(first);
+
+    assertThat(preview.getCoveredFiles()).containsExactly(first);
+    assertThat(preview.getSkippedFiles()).containsExactly(second);
+    assertThat(preview.getSkippedFiles(Arrays.asList(first))).isEmpty();
+  }
+
+  private InputFile inputFile(String path, long lastModified) throws IOException {
+    File file = temp.newFile(path);
+    file.setLastModified(lastModified);
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.file()).thenReturn(file);
+    when(inputFile.relativePath()).thenReturn(path);
+    return inputFile;
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+}
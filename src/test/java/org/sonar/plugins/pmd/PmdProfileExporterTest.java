@@ -36,11 +36,15 @@ import org.sonar.plugins.pmd.xml.PmdRule;
 import org.sonar.test.TestUtils;
 
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.sonar.test.MoreConditions.equalsIgnoreEOL;
 
@@ -65,6 +69,22 @@ public class PmdProfileExporterTest {
 
   @Test
   public void should_export_xPath_rule() {
+    String exportedXml = exporter.exportProfile(PmdConstants.REPOSITORY_KEY, xpathRuleProfile());
+
+    assertThat(exportedXml).satisfies(equalsIgnoreEOL(TestUtils.getResourceContent("/org/sonar/plugins/pmd/export_xpath_rules.xml")));
+  }
+
+  @Test
+  public void should_not_benchmark_xPath_rule_on_export() {
+    PmdXPathCostAnalyser xpathCostAnalyser = mock(PmdXPathCostAnalyser.class);
+
+    new PmdProfileExporter(xpathCostAnalyser).exportProfile(xpathRuleProfile(), new StringWriter());
+
+    verify(xpathCostAnalyser).validateStatically(eq("MyOwnRule"), eq("//FieldDeclaration"), any(ValidationMessages.class));
+    verifyNoMoreInteractions(xpathCostAnalyser);
+  }
+
+  private static RulesProfile xpathRuleProfile() {
     Rule rule = Rule.create(PmdConstants.REPOSITORY_KEY, "MyOwnRule", "This is my own xpath rule.")
         .setConfigKey(PmdConstants.XPATH_CLASS)
         .setRepositoryKey(PmdConstants.REPOSITORY_KEY);
@@ -75,10 +95,7 @@ public class PmdProfileExporterTest {
     ActiveRule xpath = profile.activateRule(rule, null);
     xpath.setParameter(PmdConstants.XPATH_EXPRESSION_PARAM, "//FieldDeclaration");
     xpath.setParameter(PmdConstants.XPATH_MESSAGE_PARAM, "This is bad");
-
-    String exportedXml = exporter.exportProfile(PmdConstants.REPOSITORY_KEY, profile);
-
-    assertThat(exportedXml).satisfies(equalsIgnoreEOL(TestUtils.getResourceContent("/org/sonar/plugins/pmd/export_xpath_rules.xml")));
+    return profile;
   }
 
   @Test(expected = SonarException.class)
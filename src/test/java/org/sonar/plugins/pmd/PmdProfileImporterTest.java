@@ -82,6 +82,17 @@ public class PmdProfileImporterTest {
     assertThat(messages.hasWarnings()).isTrue();
   }
 
+  @Test
+  public void should_warn_about_expensive_xpath_rule() {
+    importer = new PmdProfileImporter(createRuleFinder(), new PmdXPathCostAnalyser(new PmdXPathCostAnalyserTest.StepTicker(100, 100)));
+    Reader reader = new StringReader(TestUtils.getResourceContent("/org/sonar/plugins/pmd/export_xpath_rules.xml").replace("//FieldDeclaration", "//*[@Image='foo']"));
+
+    importer.importProfile(reader, messages);
+
+    assertThat(messages.getWarnings()).hasSize(2);
+    assertThat(messages.getWarnings().get(0)).startsWith("PMD XPath rule 'MyOwnRule' has a HIGH estimated cost");
+  }
+
   @Test
   public void should_import_parameter() {
     Reader reader = read("/org/sonar/plugins/pmd/simple.xml");
@@ -0,0 +1,114 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+public class PmdProgressTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  PmdFileIndex fileIndex = mock(PmdFileIndex.class);
+
+  @Test
+  public void should_be_enabled_by_interval() throws IOException {
+    List<InputFile> files = Arrays.asList(inputFile("A.java"));
+
+    assertThat(PmdProgress.create(new Settings(), files, fileIndex)).isNull();
+    assertThat(PmdProgress.create(new Settings().setProperty(PmdConfiguration.PROPERTY_PROGRESS_INTERVAL, 10), files, fileIndex)).isNotNull();
+    assertThat(PmdProgress.create(new Settings().setProperty(PmdConfiguration.PROPERTY_PROGRESS_INTERVAL, 10),
+      Collections.<InputFile>emptyList(), fileIndex)).isNull();
+  }
+
+  @Test
+  public void should_describe_progress_and_remaining_time() throws IOException {
+    List<InputFile> files = Arrays.asList(inputFile("A.java"), inputFile("B.java"), inputFile("C.java"), inputFile("D.java"));
+    PmdProgress progress = new PmdProgress(files, fileIndex, TimeUnit.SECONDS.toNanos(60));
+
+    assertThat(progress.describe(System.nanoTime())).isEqualTo("PMD progress: 0/4 files (0%), 0/8 KB, 0.0 files/sec, remaining time unknown");
+
+    progress.fileStarted(files.get(0));
+    progress.fileDone(files.get(0));
+    progress.fileStarted(files.get(1));
+    progress.fileDone(files.get(1));
+
+    assertThat(progress.describe(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)))
+      .isEqualTo("PMD progress: 2/4 files (50%), 4/8 KB, 0.2 files/sec, about 10 s remaining");
+  }
+
+  @Test
+  public void should_tell_file_analysed_for_longer_than_interval() throws IOException {
+    List<InputFile> files = Arrays.asList(inputFile("A.java"), inputFile("B.java"));
+    PmdProgress progress = new PmdProgress(files, fileIndex, TimeUnit.SECONDS.toNanos(60));
+    progress.fileStarted(files.get(0));
+    progress.fileStarted(files.get(1));
+    progress.fileDone(files.get(1));
+
+    assertThat(progress.describe(System.nanoTime() + TimeUnit.SECONDS.toNanos(30))).doesNotContain("analysing");
+    assertThat(progress.describe(System.nanoTime() + TimeUnit.SECONDS.toNanos(200))).contains("about 3 min").contains(", analysing A.java for 3 min");
+  }
+
+  @Test
+  public void should_stop() throws IOException {
+    PmdProgress progress = new PmdProgress(Arrays.asList(inputFile("A.java")), fileIndex, TimeUnit.MILLISECONDS.toNanos(1));
+    progress.start();
+    progress.stop();
+  }
+
+  @Test
+  public void should_format_throughput_whatever_the_locale() throws IOException {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.FRENCH);
+    try {
+      List<InputFile> files = Arrays.asList(inputFile("A.java"), inputFile("B.java"));
+      PmdProgress progress = new PmdProgress(files, fileIndex, TimeUnit.SECONDS.toNanos(60));
+      progress.fileDone(files.get(0));
+
+      assertThat(progress.describe(System.nanoTime() + TimeUnit.SECONDS.toNanos(2))).contains("0.5 files/sec");
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  private InputFile inputFile(String relativePath) throws IOException {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.file()).thenReturn(new File(temp.getRoot(), relativePath));
+    when(inputFile.relativePath()).thenReturn(relativePath);
+    // Sizes are read from the index, not from the files
+    when(fileIndex.bytes(inputFile)).thenReturn(2048L);
+    return inputFile;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class PmdReadAheadTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void should_be_disabled_by_default() throws IOException {
+    List<InputFile> files = Arrays.asList(inputFile("class A {}"), inputFile("class B {}"));
+
+    assertThat(PmdReadAhead.create(new Settings(), files)).isNull();
+    assertThat(PmdReadAhead.create(new Settings().setProperty(PmdConfiguration.PROPERTY_READ_AHEAD_THREADS, 2), files)).isNotNull();
+    assertThat(PmdReadAhead.create(new Settings().setProperty(PmdConfiguration.PROPERTY_READ_AHEAD_THREADS, 2), files.subList(0, 1))).isNull();
+  }
+
+  @Test
+  public void should_give_content_of_files_once() throws IOException {
+    List<InputFile> files = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      files.add(inputFile("class A" + i + " {}"));
+    }
+    PmdReadAhead readAhead = new PmdReadAhead(files, 3, 1024);
+    readAhead.start();
+
+    for (int i = 0; i < 20; i++) {
+      byte[] content = readAhead.take(files.get(i));
+      if (content != null) {
+        assertThat(new String(content, Charsets.UTF_8)).isEqualTo("class A" + i + " {}");
+      }
+    }
+    assertThat(readAhead.take(files.get(0))).isNull();
+    assertThat(readAhead.getBufferedBytes()).isEqualTo(0);
+    readAhead.stop();
+  }
+
+  @Test
+  public void should_keep_buffered_content_below_maximum() throws Exception {
+    List<InputFile> files = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      files.add(inputFile("class A" + i + " {}"));
+    }
+    PmdReadAhead readAhead = new PmdReadAhead(files, 4, 30);
+    readAhead.start();
+    // Two files of 11 bytes fit
+    waitForBufferedBytes(readAhead, 22);
+    Thread.sleep(100);
+
+    assertThat(readAhead.getBufferedBytes()).isEqualTo(22);
+    assertThat(readAhead.take(files.get(0))).isNotNull();
+    readAhead.stop();
+  }
+
+  @Test
+  public void should_read_file_larger_than_maximum_alone() throws Exception {
+    InputFile large = inputFile("class Large { int field; }");
+    PmdReadAhead readAhead = new PmdReadAhead(Arrays.asList(large, inputFile("class A {}")), 1, 10);
+    readAhead.start();
+    waitForBufferedBytes(readAhead, large.file().length());
+    Thread.sleep(100);
+
+    assertThat(readAhead.getBufferedBytes()).isEqualTo(large.file().length());
+    assertThat(readAhead.take(large)).isNotNull();
+    readAhead.stop();
+  }
+
+  @Test
+  public void should_let_analysis_read_missing_or_unknown_files() throws Exception {
+    InputFile missing = mock(InputFile.class);
+    when(missing.file()).thenReturn(new File(temp.getRoot(), "Missing.java"));
+    PmdReadAhead readAhead = new PmdReadAhead(Collections.singletonList(missing), 1, 1024);
+    readAhead.start();
+    Thread.sleep(100);
+
+    assertThat(readAhead.take(missing)).isNull();
+    assertThat(readAhead.take(inputFile("class A {}"))).isNull();
+    readAhead.stop();
+  }
+
+  private static void waitForBufferedBytes(PmdReadAhead readAhead, long bytes) throws InterruptedException {
+    for (int i = 0; i < 100 && readAhead.getBufferedBytes() < bytes; i++) {
+      Thread.sleep(50);
+    }
+  }
+
+  private InputFile inputFile(String content) throws IOException {
+    File file = temp.newFile();
+    Files.write(content, file, Charsets.UTF_8);
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.file()).thenReturn(file);
+    return inputFile;
+  }
+
+}
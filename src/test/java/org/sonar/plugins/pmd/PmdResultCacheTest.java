@@ -0,0 +1,274 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+public class PmdResultCacheTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  File directory;
+  PmdResultCache cache;
+  RuleSets rulesets;
+  Map<String, String> fingerprints;
+
+  @Before
+  public void setUpCache() throws Exception {
+    directory = temp.newFolder("cache");
+    cache = new PmdResultCache(directory, 1024 * 1024);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("MyRule");
+    rule.setLanguage(Language.JAVA);
+    rulesets = new RuleSets(RuleSet.createFor("cached", rule));
+    fingerprints = PmdResultCache.ruleFingerprints(rulesets);
+  }
+
+  @Test
+  public void should_be_disabled_without_directory() {
+    assertThat(new PmdResultCache(new Settings()).isEnabled()).isFalse();
+    assertThat(new PmdResultCache(new Settings().setProperty(PmdConfiguration.PROPERTY_CACHE_DIR, directory.getPath())).isEnabled()).isTrue();
+  }
+
+  @Test
+  public void should_replay_violations_on_other_file() {
+    String key = PmdResultCache.key("class Foo {}".getBytes(Charsets.UTF_8), "fingerprint");
+
+    cache.put(key, fingerprints, Arrays.asList(violation("MyRule", 12)));
+    PmdResultCache.Result result = cache.get(key, rulesets, fingerprints, "/other/Foo.java");
+    List<RuleViolation> violations = result.getViolations();
+
+    assertThat(result.getStaleRules()).isEmpty();
+    assertThat(violations).hasSize(1);
+    RuleViolation violation = violations.get(0);
+    assertThat(violation.getRule()).isSameAs(rulesets.getRuleByName("MyRule"));
+    assertThat(violation.getFilename()).isEqualTo("/other/Foo.java");
+    assertThat(violation.getBeginLine()).isEqualTo(12);
+    assertThat(violation.getDescription()).isEqualTo("message");
+    assertThat(violation.getClassName()).isEqualTo("Foo");
+  }
+
+  @Test
+  public void should_replay_file_without_violations() {
+    cache.put("00ff", fingerprints, Collections.<RuleViolation>emptyList());
+
+    assertThat(cache.get("00ff", rulesets, fingerprints, "Foo.java").getViolations()).isEmpty();
+  }
+
+  @Test
+  public void should_miss_unknown_entry() {
+    cache.put("00ff", fingerprints, Arrays.asList(violation("MyRule", 1)));
+
+    assertThat(cache.get("00fe", rulesets, fingerprints, "Foo.java")).isNull();
+  }
+
+  @Test
+  public void should_skip_violations_of_removed_rules() {
+    Map<String, String> oldFingerprints = Maps.newHashMap(fingerprints);
+    oldFingerprints.put("RemovedRule", "removed");
+    cache.put("00ff", oldFingerprints, Arrays.asList(violation("RemovedRule", 1), violation("MyRule", 2)));
+
+    PmdResultCache.Result result = cache.get("00ff", rulesets, fingerprints, "Foo.java");
+
+    assertThat(result.getStaleRules()).isEmpty();
+    assertThat(result.getViolations()).hasSize(1);
+    assertThat(result.getViolations().get(0).getBeginLine()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_only_run_again_added_and_changed_rules() {
+    XPathRule changedRule = new XPathRule("//MethodDeclaration");
+    changedRule.setName("ChangedRule");
+    changedRule.setLanguage(Language.JAVA);
+    XPathRule addedRule = new XPathRule("//ClassOrInterfaceDeclaration");
+    addedRule.setName("AddedRule");
+    addedRule.setLanguage(Language.JAVA);
+    RuleSet ruleset = RuleSet.createFor("cached", rulesets.getRuleByName("MyRule"), changedRule);
+    cache.put("00ff", PmdResultCache.ruleFingerprints(new RuleSets(ruleset)), Arrays.asList(violation("MyRule", 1), violation("ChangedRule", 2)));
+    changedRule.setXPath("//ConstructorDeclaration");
+    ruleset.addRule(addedRule);
+    RuleSets newRulesets = new RuleSets(ruleset);
+
+    PmdResultCache.Result result = cache.get("00ff", newRulesets, PmdResultCache.ruleFingerprints(newRulesets), "Foo.java");
+
+    assertThat(result.getStaleRules()).containsOnly("ChangedRule", "AddedRule");
+    assertThat(result.getViolations()).hasSize(1);
+    assertThat(result.getViolations().get(0).getRule().getName()).isEqualTo("MyRule");
+  }
+
+  @Test
+  public void should_fingerprint_rule_properties() {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("MyRule");
+    String fingerprint = PmdResultCache.ruleFingerprint(rule);
+
+    assertThat(PmdResultCache.ruleFingerprint(rulesets.getRuleByName("MyRule"))).isEqualTo(fingerprint);
+
+    rule.setXPath("//MethodDeclaration");
+
+    assertThat(PmdResultCache.ruleFingerprint(rule)).isNotEqualTo(fingerprint);
+  }
+
+  @Test
+  public void should_miss_corrupted_entry() throws Exception {
+    cache.put("00ff", fingerprints, Arrays.asList(violation("MyRule", 1)));
+    Files.write(new byte[] {0, 0, 0, 1, 0}, new File(directory, "00/00ff" + PmdResultCache.ENTRY_SUFFIX));
+
+    assertThat(cache.get("00ff", rulesets, fingerprints, "Foo.java")).isNull();
+  }
+
+  @Test
+  public void should_support_concurrent_writers_of_same_entry() throws Exception {
+    List<Thread> writers = Lists.newArrayList();
+    for (int i = 0; i < 8; i++) {
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 20; j++) {
+            cache.put("00ff", fingerprints, Arrays.asList(violation("MyRule", 1)));
+          }
+        }
+      };
+      writers.add(writer);
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    assertThat(cache.get("00ff", rulesets, fingerprints, "Foo.java").getViolations()).hasSize(1);
+    assertThat(new File(directory, "00").list()).containsOnly("00ff" + PmdResultCache.ENTRY_SUFFIX);
+  }
+
+  @Test
+  public void should_remember_parse_failures_apart_from_results() {
+    assertThat(cache.isParseFailure("00ff", "Foo.java")).isFalse();
+
+    cache.putParseFailure("00ff", "Encountered \"}\" at line 3");
+
+    assertThat(cache.isParseFailure("00ff", "Foo.java")).isTrue();
+    assertThat(cache.get("00ff", rulesets, fingerprints, "Foo.java")).isNull();
+    assertThat(cache.getSkippedParseFailures()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_evict_least_recently_used_entries() {
+    cache.put("0001", fingerprints, Arrays.asList(violation("MyRule", 1)));
+    cache.put("0002", fingerprints, Arrays.asList(violation("MyRule", 2)));
+    cache.put("0003", fingerprints, Arrays.asList(violation("MyRule", 3)));
+    // Room for one entry and a half
+    cache = new PmdResultCache(directory, new File(directory, "00/0001" + PmdResultCache.ENTRY_SUFFIX).length() * 3 / 2);
+    new File(directory, "00/0001" + PmdResultCache.ENTRY_SUFFIX).setLastModified(1000000000000L);
+    new File(directory, "00/0002" + PmdResultCache.ENTRY_SUFFIX).setLastModified(3000000000000L);
+    new File(directory, "00/0003" + PmdResultCache.ENTRY_SUFFIX).setLastModified(2000000000000L);
+
+    cache.evict();
+
+    assertThat(new File(directory, "00").list()).containsOnly("0002" + PmdResultCache.ENTRY_SUFFIX);
+  }
+
+  @Test
+  public void should_fingerprint_classpath_without_absolute_paths() throws Exception {
+    File first = temp.newFolder("first", "classes");
+    File second = temp.newFolder("second", "classes");
+    Files.write("class", new File(first, "Foo.class"), Charsets.UTF_8);
+    Files.write("class", new File(second, "Foo.class"), Charsets.UTF_8);
+
+    assertThat(PmdResultCache.classpathFingerprint(Arrays.asList(first))).isEqualTo(PmdResultCache.classpathFingerprint(Arrays.asList(second)));
+
+    Files.write("other class", new File(second, "Foo.class"), Charsets.UTF_8);
+
+    assertThat(PmdResultCache.classpathFingerprint(Arrays.asList(first))).isNotEqualTo(PmdResultCache.classpathFingerprint(Arrays.asList(second)));
+
+    // Same size
+    Files.write("CLASS", new File(second, "Foo.class"), Charsets.UTF_8);
+
+    assertThat(PmdResultCache.classpathFingerprint(Arrays.asList(first))).isNotEqualTo(PmdResultCache.classpathFingerprint(Arrays.asList(second)));
+  }
+
+  @Test
+  public void should_fingerprint_content_of_archives() throws Exception {
+    File first = jar(temp.newFolder("first"), "class");
+    File second = jar(temp.newFolder("second"), "class");
+
+    assertThat(PmdResultCache.classpathFingerprint(Arrays.asList(first))).isEqualTo(PmdResultCache.classpathFingerprint(Arrays.asList(second)));
+
+    second = jar(temp.newFolder("third"), "CLASS");
+
+    assertThat(second.length()).isEqualTo(first.length());
+    assertThat(PmdResultCache.classpathFingerprint(Arrays.asList(first))).isNotEqualTo(PmdResultCache.classpathFingerprint(Arrays.asList(second)));
+  }
+
+  private static File jar(File directory, String content) throws Exception {
+    File jar = new File(directory, "foo.jar");
+    JarOutputStream output = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      ZipEntry entry = new ZipEntry("Foo.class");
+      entry.setTime(0);
+      output.putNextEntry(entry);
+      output.write(content.getBytes(Charsets.UTF_8));
+      output.closeEntry();
+    } finally {
+      output.close();
+    }
+    return jar;
+  }
+
+  private static RuleViolation violation(String ruleName, int line) {
+    net.sourceforge.pmd.Rule rule = mock(net.sourceforge.pmd.Rule.class);
+    when(rule.getName()).thenReturn(ruleName);
+    RuleViolation violation = mock(RuleViolation.class);
+    when(violation.getRule()).thenReturn(rule);
+    when(violation.getDescription()).thenReturn("message");
+    when(violation.getBeginLine()).thenReturn(line);
+    when(violation.getEndLine()).thenReturn(line);
+    when(violation.getPackageName()).thenReturn("org.foo");
+    when(violation.getClassName()).thenReturn("Foo");
+    return violation;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Collections;
+
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.java.ast.ASTFieldDeclaration;
+import net.sourceforge.pmd.lang.java.rule.AbstractJavaRule;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+public class PmdRuleBreakerTest {
+  FailingRule failingRule = new FailingRule();
+  XPathRule xpathRule = xpathRule("XPathRule");
+  RuleSets rulesets = new RuleSets(RuleSet.createFor("rules", failingRule, xpathRule));
+
+  @Test
+  public void should_be_configured_by_settings() {
+    assertThat(PmdRuleBreaker.create(new Settings())).isNull();
+    assertThat(PmdRuleBreaker.create(new Settings().setProperty(PmdConfiguration.PROPERTY_RULE_ERROR_THRESHOLD, 3))).isNotNull();
+  }
+
+  @Test
+  public void should_remove_rule_reaching_threshold() {
+    PmdRuleBreaker breaker = new PmdRuleBreaker(2);
+
+    breaker.ruleFailed(failingRule, "Foo.java", new IllegalStateException("broken rule"));
+    assertThat(breaker.getRemovedRules()).isEmpty();
+    assertThat(breaker.withoutRemovedRules(rulesets)).isSameAs(rulesets);
+
+    breaker.ruleFailed(failingRule, "Bar.java", new IllegalStateException("broken rule"));
+    assertThat(breaker.getRemovedRules()).containsOnly("FailingRule");
+    RuleSets withoutRemovedRules = breaker.withoutRemovedRules(rulesets);
+    assertThat(withoutRemovedRules.getAllRules()).containsOnly(xpathRule);
+    assertThat(breaker.withoutRemovedRules(rulesets)).isSameAs(withoutRemovedRules);
+  }
+
+  @Test
+  public void should_suspect_rules_from_stack_trace() {
+    PmdRuleBreaker breaker = new PmdRuleBreaker(1);
+
+    assertThat(breaker.suspects(errorIn(FailingRule.class.getName()), rulesets)).containsOnly(failingRule);
+    assertThat(breaker.suspects(new RuntimeException(errorIn(FailingRule.class.getName() + "$1")), rulesets)).containsOnly(failingRule);
+    assertThat(breaker.suspects(errorIn(XPathRule.class.getName()), rulesets)).containsOnly(xpathRule);
+    assertThat(breaker.suspects(errorIn("net.sourceforge.pmd.SourceCodeProcessor"), rulesets)).isEmpty();
+  }
+
+  @Test
+  public void should_suspect_all_rules_of_same_class() {
+    XPathRule otherXpathRule = xpathRule("OtherXPathRule");
+    RuleSets xpathRulesets = new RuleSets(RuleSet.createFor("rules", failingRule, xpathRule, otherXpathRule));
+
+    assertThat(new PmdRuleBreaker(1).suspects(errorIn(XPathRule.class.getName()), xpathRulesets)).containsOnly(xpathRule, otherXpathRule);
+  }
+
+  @Test
+  public void should_select_rules() {
+    assertThat(PmdRuleBreaker.only(rulesets, "XPathRule").getAllRules()).containsOnly(xpathRule);
+    assertThat(PmdRuleBreaker.without(rulesets, Collections.singleton("XPathRule")).getAllRules()).containsOnly(failingRule);
+  }
+
+  private static RuntimeException errorIn(String className) {
+    RuntimeException error = new IllegalStateException("broken rule");
+    error.setStackTrace(new StackTraceElement[] {
+      new StackTraceElement(className, "visit", null, 1),
+      new StackTraceElement("net.sourceforge.pmd.RuleChain", "apply", null, 1)
+    });
+    return error;
+  }
+
+  private static XPathRule xpathRule(String name) {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName(name);
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    return rule;
+  }
+
+  /**
+   * Rule of the rule chain which fails on every field.
+   */
+  static class FailingRule extends AbstractJavaRule {
+    FailingRule() {
+      setName("FailingRule");
+      setMessage("message");
+      setLanguage(Language.JAVA);
+      addRuleChainVisit(ASTFieldDeclaration.class);
+    }
+
+    @Override
+    public Object visit(ASTFieldDeclaration node, Object data) {
+      throw new IllegalStateException("broken rule");
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Settings;
+import org.sonar.api.profiles.RulesProfile;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+public class PmdRuleCostsTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  static final Multimap<String, String> SAME_KEYS = ImmutableSetMultimap.of("Slow", "Slow", "Useless", "Useless", "Cheap", "Cheap");
+
+  File historyFile;
+  Settings settings = new Settings();
+
+  @Before
+  public void setUpHistory() {
+    historyFile = new File(temp.getRoot(), "costs/" + PmdRuleCosts.HISTORY_FILE);
+    // 10 KLOC: Slow costs 100 ms/KLOC for 1 violation/KLOC, Useless 50 ms/KLOC for none, Cheap 1 ms/KLOC for 10 violations/KLOC
+    new PmdRuleCosts(historyFile, settings).record(
+      ImmutableMap.of("Slow", 1000000000L, "Useless", 500000000L, "Cheap", 10000000L),
+      ImmutableMap.of("Slow", 10, "Cheap", 100), SAME_KEYS, lines(10000, "Slow", "Useless", "Cheap"));
+  }
+
+  @Test
+  public void should_keep_history_across_analyses() {
+    assertThat(historyFile).exists();
+
+    settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+    // 100 + 50 + 1 ms for 1 KLOC within 1 s
+    assertThat(new PmdRuleCosts(historyFile, settings).rulesOverBudget(lines(1000, "Slow", "Useless", "Cheap"))).isEmpty();
+  }
+
+  @Test
+  public void should_roll_average_cost() {
+    PmdRuleCosts ruleCosts = new PmdRuleCosts(historyFile, settings);
+    ruleCosts.record(ImmutableMap.of("Useless", 1500000000L), ImmutableMap.<String, Integer>of(), SAME_KEYS, lines(10000, "Useless"));
+    settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+
+    // Useless now costs 0.7 * 50 + 0.3 * 150 = 80 ms/KLOC, so 10 KLOC take 800 ms
+    assertThat(new PmdRuleCosts(historyFile, settings).rulesOverBudget(lines(10000, "Useless"))).isEmpty();
+    assertThat(new PmdRuleCosts(historyFile, settings).rulesOverBudget(lines(13000, "Useless"))).containsOnly("Useless");
+  }
+
+  @Test
+  public void should_leave_out_rules_with_highest_cost_per_violation() {
+    settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 2);
+    PmdRuleCosts ruleCosts = new PmdRuleCosts(historyFile, settings);
+
+    // 10 KLOC take 1000 + 500 + 10 ms, 15 KLOC take 1500 + 750 + 15 ms
+    assertThat(ruleCosts.rulesOverBudget(lines(10000, "Slow", "Useless", "Cheap", "Unknown"))).isEmpty();
+    assertThat(ruleCosts.rulesOverBudget(lines(15000, "Slow", "Useless", "Cheap", "Unknown"))).containsOnly("Useless");
+    assertThat(ruleCosts.rulesOverBudget(lines(30000, "Slow", "Useless", "Cheap", "Unknown"))).containsOnly("Useless", "Slow");
+  }
+
+  @Test
+  public void should_not_leave_out_rules_of_full_analyses() {
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+
+    assertThat(new PmdRuleCosts(historyFile, settings).rulesOverBudget(lines(100000, "Slow", "Useless", "Cheap"))).isEmpty();
+  }
+
+  @Test
+  public void should_keep_cost_of_type_resolution_rules_apart() {
+    RulesProfile profile = RulesProfile.create();
+    profile.activateRule(rule("LooseCoupling", "rulesets/java/coupling.xml/LooseCoupling"), null);
+    profile.activateRule(rule("LooseCouplingWithTypeResolution", "rulesets/java/typeresolution.xml/LooseCoupling"), null);
+    profile.activateRule(rule("UnusedImportsWithTypeResolution", "rulesets/java/typeresolution.xml/UnusedImports"), null);
+    profile.activateRule(rule("MyXPathRule", PmdConstants.XPATH_CLASS), null);
+    Multimap<String, String> ruleKeys = PmdRuleCosts.ruleKeysByName(profile);
+    settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+
+    // 10 KLOC: UnusedImportsWithTypeResolution costs 200 ms/KLOC, and both LooseCoupling rules 50 ms/KLOC
+    new PmdRuleCosts(historyFile, settings).record(ImmutableMap.of("UnusedImports", 2000000000L, "LooseCoupling", 1000000000L, "MyXPathRule", 0L),
+      ImmutableMap.<String, Integer>of(), ruleKeys,
+      lines(10000, "LooseCoupling", "LooseCouplingWithTypeResolution", "UnusedImportsWithTypeResolution", "MyXPathRule"));
+
+    assertThat(ruleKeys.get("LooseCoupling")).containsOnly("LooseCoupling", "LooseCouplingWithTypeResolution");
+    assertThat(ruleKeys.get("MyXPathRule")).containsOnly("MyXPathRule");
+    PmdRuleCosts ruleCosts = new PmdRuleCosts(historyFile, settings);
+    assertThat(ruleCosts.rulesOverBudget(lines(6000, "UnusedImportsWithTypeResolution"))).containsOnly("UnusedImportsWithTypeResolution");
+    assertThat(ruleCosts.rulesOverBudget(lines(6000, "UnusedImports"))).isEmpty();
+    assertThat(ruleCosts.rulesOverBudget(lines(15000, "LooseCouplingWithTypeResolution"))).isEmpty();
+    assertThat(ruleCosts.rulesOverBudget(lines(25000, "LooseCouplingWithTypeResolution"))).containsOnly("LooseCouplingWithTypeResolution");
+  }
+
+  @Test
+  public void should_predict_on_lines_of_each_rule() {
+    Multimap<String, String> ruleKeys = ImmutableSetMultimap.of("MainRule", "MainRule", "TestRule", "TestRule");
+    settings.setProperty(CoreProperties.ANALYSIS_MODE, CoreProperties.ANALYSIS_MODE_PREVIEW);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+
+    // MainRule costs 100 ms/KLOC on 10 KLOC of main files, TestRule 100 ms/KLOC on 1 KLOC of test files
+    new PmdRuleCosts(historyFile, settings).record(ImmutableMap.of("MainRule", 1000000000L, "TestRule", 100000000L),
+      ImmutableMap.<String, Integer>of(), ruleKeys, ImmutableMap.of("MainRule", 10000L, "TestRule", 1000L));
+
+    PmdRuleCosts ruleCosts = new PmdRuleCosts(historyFile, settings);
+    // 800 + 100 ms within the single budget of the analysis
+    assertThat(ruleCosts.rulesOverBudget(ImmutableMap.of("MainRule", 8000L, "TestRule", 1000L))).isEmpty();
+    assertThat(ruleCosts.rulesOverBudget(ImmutableMap.of("MainRule", 8000L, "TestRule", 3000L))).hasSize(1);
+  }
+
+  @Test
+  public void should_start_new_history_when_corrupted() throws Exception {
+    com.google.common.io.Files.write("Slow=oops", historyFile, com.google.common.base.Charsets.UTF_8);
+    settings.setProperty(CoreProperties.DRY_RUN, true);
+    settings.setProperty(PmdConfiguration.PROPERTY_RULE_TIME_BUDGET, 1);
+
+    assertThat(new PmdRuleCosts(historyFile, settings).rulesOverBudget(lines(100000, "Slow"))).isEmpty();
+  }
+
+  private static Map<String, Long> lines(long lines, String... ruleKeys) {
+    Map<String, Long> linesByRule = Maps.newHashMap();
+    for (String ruleKey : ruleKeys) {
+      linesByRule.put(ruleKey, lines);
+    }
+    return linesByRule;
+  }
+
+  private static org.sonar.api.rules.Rule rule(String key, String configKey) {
+    return org.sonar.api.rules.Rule.create(PmdConstants.REPOSITORY_KEY, key, key).setConfigKey(configKey);
+  }
+
+}
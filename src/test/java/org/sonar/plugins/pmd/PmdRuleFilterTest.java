@@ -0,0 +1,156 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import net.sourceforge.pmd.PMDConfiguration;
+import net.sourceforge.pmd.PMDException;
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSetFactory;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.SourceCodeProcessor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+public class PmdRuleFilterTest {
+  RuleSets rulesets;
+  PmdRuleFilter ruleFilter;
+
+  @Before
+  public void setUpRuleFilter() throws Exception {
+    rulesets = new RuleSets(new RuleSetFactory().createRuleSet("src/test/resources/org/sonar/plugins/pmd/simple.xml"));
+    ruleFilter = PmdRuleFilter.create(rulesets);
+  }
+
+  @Test
+  public void should_skip_rules_without_their_tokens() {
+    RuleSets selection = ruleFilter.select("class Foo { void bar() { wait(); } }");
+
+    assertThat(selection.getAllRules()).hasSize(2);
+    assertThat(selection.getRuleByName("UseNotifyAllInsteadOfNotify")).isNull();
+    assertThat(selection.getRuleByName("CouplingBetweenObjects")).isSameAs(rulesets.getRuleByName("CouplingBetweenObjects"));
+  }
+
+  @Test
+  public void should_keep_all_rules_with_their_tokens() {
+    RuleSets selection = ruleFilter.select("class Foo { void bar() { notify(); } }");
+
+    assertThat(selection).isSameAs(rulesets);
+  }
+
+  @Test
+  public void should_reuse_selections() {
+    RuleSets selection = ruleFilter.select("class Foo {}");
+
+    assertThat(ruleFilter.select("class Bar {}")).isSameAs(selection);
+  }
+
+  @Test
+  public void should_count_rule_visits() {
+    ruleFilter.select("class Foo {}");
+    ruleFilter.select("class Foo { void bar() { notify(); } }");
+
+    assertThat(ruleFilter.getRuleVisits()).isEqualTo(6);
+    assertThat(ruleFilter.getSkippedRuleVisits()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_share_statistics_with_filter_of_other_rulesets() throws Exception {
+    RuleSets otherRulesets = new RuleSets(new RuleSetFactory().createRuleSet("src/test/resources/org/sonar/plugins/pmd/simple.xml"));
+    PmdRuleFilter otherFilter = ruleFilter.forRulesets(otherRulesets);
+
+    RuleSets selection = otherFilter.select("class Foo {}");
+
+    assertThat(selection.getRuleByName("CouplingBetweenObjects")).isSameAs(otherRulesets.getRuleByName("CouplingBetweenObjects"));
+    assertThat(ruleFilter.getSkippedRuleVisits()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_load_rule_tokens() {
+    Map<String, String[]> ruleTokens = PmdRuleFilter.loadRuleTokens();
+
+    assertThat(ruleTokens.get("OverrideBothEqualsAndHashcode")).isEqualTo(new String[] {"equals", "hashCode"});
+    assertThat(ruleTokens.get("CouplingBetweenObjects")).isNull();
+  }
+
+  @Test
+  public void should_keep_rules_on_sources_where_they_report_violations() throws Exception {
+    Map<String, String[]> ruleTokens = PmdRuleFilter.loadRuleTokens();
+    Properties javaRulesets = new Properties();
+    javaRulesets.load(getClass().getResourceAsStream("/rulesets/java/rulesets.properties"));
+    RuleSets allRulesets = new RuleSetFactory().createRuleSets(javaRulesets.getProperty("rulesets.filenames"));
+    SourceCodeProcessor processor = new SourceCodeProcessor(new PMDConfiguration());
+    List<String> tooNarrow = Lists.newArrayList();
+    for (Rule rule : allRulesets.getAllRules()) {
+      if (!ruleTokens.containsKey(rule.getName())) {
+        continue;
+      }
+      List<String> sources = Lists.newArrayList(rule.getExamples());
+      sources.addAll(EXTRA_SOURCES.get(rule.getName()));
+      RuleSets ruleRulesets = new RuleSets(RuleSet.createFor(rule.getName(), rule));
+      PmdRuleFilter filter = new PmdRuleFilter(ruleRulesets, ruleTokens);
+      for (String source : sources) {
+        if (violations(processor, ruleRulesets, source) > 0 && filter.select(source).getAllRules().isEmpty()) {
+          tooNarrow.add(rule.getName() + ": " + source);
+        }
+      }
+    }
+
+    assertThat(tooNarrow).isEmpty();
+  }
+
+  /**
+   * Sources on which the rules report violations, beyond the examples of their documentation.
+   */
+  private static final Multimap<String, String> EXTRA_SOURCES = ImmutableMultimap.<String, String>builder()
+    .put("UseIndexOfChar", "class Foo { int bar(String s) { return s.lastIndexOf(\"x\"); } }")
+    .put("InefficientStringBuffering", "class Foo { Object bar(String b) { return new StringBuffer(\"a\" + b); } }")
+    .put("InefficientStringBuffering", "class Foo { Object bar(String b) { return new StringBuilder(\"a\" + b); } }")
+    .build();
+
+  private static int violations(SourceCodeProcessor processor, RuleSets rulesets, String source) {
+    RuleContext context = new RuleContext();
+    context.setSourceCodeFilename("Example.java");
+    context.setReport(new Report());
+    try {
+      rulesets.start(context);
+      processor.processSourceCode(new StringReader(source), rulesets, context);
+      rulesets.end(context);
+    } catch (PMDException e) {
+      // Examples which are only fragments of code do not parse
+      return 0;
+    }
+    return context.getReport().size();
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSets;
+
+import org.junit.Test;
+import org.sonar.api.utils.SonarException;
+
+public class PmdRuleSetCacheTest {
+  static final File SIMPLE = new File("src/test/resources/org/sonar/plugins/pmd/simple.xml");
+  static final File XPATH = new File("src/test/resources/org/sonar/plugins/pmd/export_xpath_rules.xml");
+
+  PmdRuleSetCache cache = new PmdRuleSetCache();
+
+  @Test
+  public void should_reuse_rulesets_of_same_configuration() {
+    RuleSets rulesets = cache.getRulesets("<simple/>", SIMPLE);
+
+    assertThat(rulesets.getAllRules()).hasSize(3);
+    assertThat(cache.getRulesets("<simple/>", SIMPLE)).isSameAs(rulesets);
+  }
+
+  @Test
+  public void should_create_rulesets_of_other_configuration() {
+    RuleSets rulesets = cache.getRulesets("<simple/>", SIMPLE);
+
+    assertThat(cache.getRulesets("<xpath/>", XPATH)).isNotSameAs(rulesets);
+  }
+
+  @Test
+  public void should_create_rulesets_per_slot() {
+    RuleSets rulesets = cache.getRulesets("<simple/>", SIMPLE);
+    RuleSets slot2 = cache.getRulesets("<simple/>", SIMPLE, 2);
+
+    assertThat(slot2).isNotSameAs(rulesets);
+    assertThat(slot2.getRuleByName("ExcessiveImports")).isNotSameAs(rulesets.getRuleByName("ExcessiveImports"));
+    assertThat(cache.getRulesets("<simple/>", SIMPLE, 0)).isSameAs(rulesets);
+    assertThat(cache.getRulesets("<simple/>", SIMPLE, 2)).isSameAs(slot2);
+  }
+
+  @Test
+  public void should_put_xpath_rule_on_rule_chain() {
+    Rule rule = cache.getRulesets("<xpath/>", XPATH).getRuleByName("MyOwnRule");
+
+    assertThat(rule.usesRuleChain()).isTrue();
+    assertThat(rule.getRuleChainVisits()).contains("FieldDeclaration");
+  }
+
+  @Test(expected = SonarException.class)
+  public void should_fail_on_unknown_ruleset() {
+    cache.getRulesets("<unknown/>", new File("unknown.xml"));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+
+public class PmdRuleSubsetsTest {
+  XPathRule first = xpathRule("First");
+  XPathRule second = xpathRule("Second");
+  XPathRule third = xpathRule("Third");
+
+  @Test
+  public void should_select_rules_of_each_rule_set() {
+    RuleSet main = RuleSet.createFor("main", first, second);
+    main.setFileName("main.xml");
+    main.addExcludePattern(".*/generated/.*");
+    RuleSets rulesets = new RuleSets(main);
+    rulesets.addRuleSet(RuleSet.createFor("other", third));
+
+    RuleSets subset = PmdRuleSubsets.select(rulesets, PmdRuleSubsets.named(Arrays.asList("Second", "Third")));
+
+    assertThat(subset.getAllRuleSets()).hasSize(2);
+    RuleSet selected = subset.getAllRuleSets()[0];
+    assertThat(selected.getName()).isEqualTo("main");
+    assertThat(selected.getFileName()).isEqualTo("main.xml");
+    assertThat(selected.getExcludePatterns()).containsOnly(".*/generated/.*");
+    assertThat(selected.getRules()).containsOnly(second);
+    assertThat(subset.getAllRules()).containsOnly(second, third);
+  }
+
+  @Test
+  public void should_keep_empty_rule_sets() {
+    RuleSets subset = PmdRuleSubsets.select(new RuleSets(RuleSet.createFor("main", first)), Predicates.not(Predicates.<Rule>equalTo(first)));
+
+    assertThat(subset.getAllRuleSets()).hasSize(1);
+    assertThat(subset.getAllRules()).isEmpty();
+  }
+
+  private static XPathRule xpathRule(String name) {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName(name);
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    return rule;
+  }
+}
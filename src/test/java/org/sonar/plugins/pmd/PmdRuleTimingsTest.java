@@ -0,0 +1,61 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.StringReader;
+
+import net.sourceforge.pmd.PMDConfiguration;
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.SourceCodeProcessor;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.LanguageVersion;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Test;
+
+public class PmdRuleTimingsTest {
+
+  @Test
+  public void should_read_time_of_rules() throws Exception {
+    XPathRule rule = new XPathRule("/CompilationUnit[false()]");
+    rule.setName("TimedRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    PMDConfiguration configuration = new PMDConfiguration();
+    configuration.setDefaultLanguageVersion(LanguageVersion.JAVA_16);
+    RuleContext context = new RuleContext();
+    context.setReport(new Report());
+    context.setSourceCodeFilename("Timed.java");
+
+    PmdRuleTimings.reset();
+    new SourceCodeProcessor(configuration).processSourceCode(new StringReader("class Timed {}"), new RuleSets(RuleSet.createFor("timed", rule)), context);
+
+    assertThat(PmdRuleTimings.snapshot().keySet()).containsOnly("TimedRule");
+
+    PmdRuleTimings.reset();
+
+    assertThat(PmdRuleTimings.snapshot()).isEmpty();
+  }
+}
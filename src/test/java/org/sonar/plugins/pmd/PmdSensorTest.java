@@ -22,9 +22,13 @@ package org.sonar.plugins.pmd;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
 import net.sourceforge.pmd.Report;
 import net.sourceforge.pmd.RuleViolation;
 
@@ -33,11 +37,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.profiles.RulesProfile;
 import org.sonar.api.resources.Project;
+import org.sonar.api.resources.Resource;
 import org.sonar.api.rules.Violation;
 import org.sonar.api.utils.XmlParserException;
-import org.sonar.plugins.java.Java;
 
 import com.google.common.collect.Iterators;
 
@@ -47,21 +52,23 @@ public class PmdSensorTest {
   Project project = mock(Project.class, RETURNS_DEEP_STUBS);
   RulesProfile profile = mock(RulesProfile.class, RETURNS_DEEP_STUBS);
   PmdExecutor executor = mock(PmdExecutor.class);
+  PmdFileIndex fileIndex = mock(PmdFileIndex.class);
   PmdViolationToRuleViolation pmdViolationToRuleViolation = mock(PmdViolationToRuleViolation.class);
   SensorContext sensorContext = mock(SensorContext.class);
-  Violation violation = mock(Violation.class);
+  Resource resource = mock(Resource.class);
+  Violation violation = Violation.create(org.sonar.api.rules.Rule.create("pmd", "RULE"), resource);
 
   @Rule
   public ExpectedException exception = ExpectedException.none();
 
   @Before
   public void setUpPmdSensor() {
-    pmdSensor = new PmdSensor(profile, executor, pmdViolationToRuleViolation);
+    pmdSensor = new PmdSensor(profile, executor, fileIndex, pmdViolationToRuleViolation, mock(PmdConfiguration.class), new PmdTracer(false));
   }
 
   @Test
   public void should_execute_on_project_without_main_files() {
-    when(project.getFileSystem().mainFiles(Java.KEY).isEmpty()).thenReturn(true);
+    when(fileIndex.hasFiles(InputFile.Type.TEST)).thenReturn(true);
 
     boolean shouldExecute = pmdSensor.shouldExecuteOnProject(project);
 
@@ -70,7 +77,7 @@ public class PmdSensorTest {
 
   @Test
   public void should_execute_on_project_without_test_files() {
-    when(project.getFileSystem().testFiles(Java.KEY).isEmpty()).thenReturn(true);
+    when(fileIndex.hasFiles(InputFile.Type.MAIN)).thenReturn(true);
 
     boolean shouldExecute = pmdSensor.shouldExecuteOnProject(project);
 
@@ -79,8 +86,8 @@ public class PmdSensorTest {
 
   @Test
   public void should_not_execute_on_project_without_any_files() {
-    when(project.getFileSystem().mainFiles(Java.KEY).isEmpty()).thenReturn(true);
-    when(project.getFileSystem().testFiles(Java.KEY).isEmpty()).thenReturn(true);
+    when(fileIndex.hasFiles(InputFile.Type.MAIN)).thenReturn(false);
+    when(fileIndex.hasFiles(InputFile.Type.TEST)).thenReturn(false);
 
     boolean shouldExecute = pmdSensor.shouldExecuteOnProject(project);
 
@@ -89,6 +96,8 @@ public class PmdSensorTest {
 
   @Test
   public void should_not_execute_on_project_without_active_rules() {
+    when(fileIndex.hasFiles(InputFile.Type.MAIN)).thenReturn(true);
+    when(fileIndex.hasFiles(InputFile.Type.TEST)).thenReturn(true);
     when(profile.getActiveRulesByRepository(PmdConstants.REPOSITORY_KEY).isEmpty()).thenReturn(true);
     when(profile.getActiveRulesByRepository(PmdConstants.TEST_REPOSITORY_KEY).isEmpty()).thenReturn(true);
 
@@ -102,11 +111,34 @@ public class PmdSensorTest {
     RuleViolation pmdViolation = violation();
     Report report = report(pmdViolation);
     when(executor.execute()).thenReturn(report);
-    when(pmdViolationToRuleViolation.toViolation(pmdViolation, sensorContext)).thenReturn(violation);
+    when(pmdViolationToRuleViolation.findResource("Foo.java", sensorContext)).thenReturn(resource);
+    when(pmdViolationToRuleViolation.toViolation(pmdViolation, resource)).thenReturn(violation);
+
+    pmdSensor.analyse(project, sensorContext);
+
+    verify(sensorContext).saveViolations(Arrays.asList(violation));
+  }
+
+  @Test
+  public void should_resolve_each_file_once_and_drop_duplicates() {
+    RuleViolation first = violation();
+    RuleViolation duplicate = violation();
+    RuleViolation other = violation();
+    Report report = report(first, duplicate, other);
+    when(executor.execute()).thenReturn(report);
+    when(pmdViolationToRuleViolation.findResource("Foo.java", sensorContext)).thenReturn(resource);
+    org.sonar.api.rules.Rule rule = org.sonar.api.rules.Rule.create("pmd", "RULE");
+    Violation firstViolation = Violation.create(rule, resource).setLineId(1).setMessage("message");
+    Violation duplicateViolation = Violation.create(rule, resource).setLineId(1).setMessage("message");
+    Violation otherViolation = Violation.create(rule, resource).setLineId(2).setMessage("message");
+    when(pmdViolationToRuleViolation.toViolation(first, resource)).thenReturn(firstViolation);
+    when(pmdViolationToRuleViolation.toViolation(duplicate, resource)).thenReturn(duplicateViolation);
+    when(pmdViolationToRuleViolation.toViolation(other, resource)).thenReturn(otherViolation);
 
     pmdSensor.analyse(project, sensorContext);
 
-    verify(sensorContext).saveViolation(violation);
+    verify(pmdViolationToRuleViolation, times(1)).findResource("Foo.java", sensorContext);
+    verify(sensorContext).saveViolations(Arrays.asList(firstViolation, otherViolation));
   }
 
   @Test
@@ -125,7 +157,8 @@ public class PmdSensorTest {
     Report report = report(pmdViolation);
     when(executor.execute()).thenReturn(report);
     when(report.iterator()).thenReturn(Iterators.forArray(pmdViolation));
-    when(pmdViolationToRuleViolation.toViolation(pmdViolation, sensorContext)).thenReturn(null);
+    when(pmdViolationToRuleViolation.findResource("Foo.java", sensorContext)).thenReturn(resource);
+    when(pmdViolationToRuleViolation.toViolation(pmdViolation, resource)).thenReturn(null);
 
     pmdSensor.analyse(project, sensorContext);
 
@@ -149,7 +182,9 @@ public class PmdSensorTest {
   }
 
   static RuleViolation violation() {
-    return mock(RuleViolation.class);
+    RuleViolation violation = mock(RuleViolation.class);
+    when(violation.getFilename()).thenReturn("Foo.java");
+    return violation;
   }
 
   static Report report(RuleViolation... violations) {
@@ -0,0 +1,199 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sourceforge.pmd.PMDConfiguration;
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
+import net.sourceforge.pmd.SourceCodeProcessor;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.LanguageVersion;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Project;
+import org.sonar.api.utils.SonarException;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class PmdShardsTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  Project project = new Project("org.foo:bar");
+  FileSystem fileSystem = mock(FileSystem.class);
+  Settings settings = new Settings();
+  PmdShards shards = new PmdShards(project, fileSystem, settings);
+  RuleSets rulesets;
+  File baseDir;
+
+  @Before
+  public void setUp() throws Exception {
+    baseDir = temp.newFolder("base");
+    when(fileSystem.baseDir()).thenReturn(baseDir);
+    when(fileSystem.workDir()).thenReturn(temp.newFolder("work"));
+    XPathRule rule = new XPathRule("//ClassOrInterfaceDeclaration");
+    rule.setName("ClassRule");
+    rule.setMessage("Class found");
+    rule.setLanguage(Language.JAVA);
+    rulesets = new RuleSets(RuleSet.createFor("shards", rule));
+  }
+
+  @Test
+  public void should_be_disabled_by_default() {
+    assertThat(shards.isEnabled()).isFalse();
+    assertThat(shards.isMerge()).isFalse();
+  }
+
+  @Test
+  public void should_assign_each_file_to_one_shard() {
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_COUNT, 3);
+    List<InputFile> files = Lists.newArrayList();
+    for (int i = 0; i < 30; i++) {
+      files.add(new DefaultInputFile("src/Foo" + i + ".java"));
+    }
+
+    List<InputFile> selected = Lists.newArrayList();
+    for (int shardIndex = 0; shardIndex < 3; shardIndex++) {
+      settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, shardIndex);
+      List<InputFile> shardFiles = shards.select(files);
+      assertThat(shardFiles).isNotEmpty();
+      selected.addAll(shardFiles);
+    }
+
+    assertThat(selected).hasSize(30);
+    assertThat(selected).containsOnly(files.toArray());
+  }
+
+  @Test
+  public void should_use_same_shard_on_every_platform() {
+    assertThat(PmdShards.shardOf("src/main/Foo.java", 4)).isEqualTo(PmdShards.shardOf("src\\main\\Foo.java", 4));
+    assertThat(PmdShards.shardOf("src/main/Foo.java", 4)).isEqualTo(("src/main/Foo.java".hashCode() & Integer.MAX_VALUE) % 4);
+  }
+
+  @Test
+  public void should_fail_on_invalid_shard_index() {
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_COUNT, 2);
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 2);
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("PMD shard index must be between 0 and 1: 2");
+
+    shards.select(Arrays.<InputFile>asList(new DefaultInputFile("src/Foo.java")));
+  }
+
+  @Test
+  public void should_merge_partial_reports_deterministically() throws Exception {
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_COUNT, 2);
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_DIR, temp.newFolder("shards").getPath());
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 1);
+    shards.writePartialReport("pmd", analyse("src/B.java", "src/C.java"));
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 0);
+    shards.writePartialReport("pmd", analyse("src/A.java"));
+
+    Report merged = new Report();
+    shards.mergePartialReports("pmd", rulesets, merged, null);
+    Report mergedAgain = new Report();
+    shards.mergePartialReports("pmd", rulesets, mergedAgain, null);
+
+    assertThat(filenames(merged)).containsExactly(
+      new File(baseDir, "src/A.java").getAbsolutePath(),
+      new File(baseDir, "src/B.java").getAbsolutePath(),
+      new File(baseDir, "src/C.java").getAbsolutePath());
+    assertThat(filenames(mergedAgain)).isEqualTo(filenames(merged));
+    assertThat(merged.iterator().next().getRule()).isSameAs(rulesets.getRuleByName("ClassRule"));
+    assertThat(shards.partialReport("pmd", 0).getParentFile().getName()).isEqualTo("org.foo_bar");
+  }
+
+  @Test
+  public void should_cap_violations_of_partial_reports() throws Exception {
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_COUNT, 2);
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_DIR, temp.newFolder("shards").getPath());
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 1);
+    shards.writePartialReport("pmd", analyse("src/B.java", "src/C.java"));
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 0);
+    shards.writePartialReport("pmd", analyse("src/A.java"));
+    PmdViolationCaps caps = new PmdViolationCaps(0, 2);
+
+    Report merged = new Report();
+    shards.mergePartialReports("pmd", rulesets, merged, caps);
+
+    assertThat(filenames(merged)).containsExactly(
+      new File(baseDir, "src/A.java").getAbsolutePath(),
+      new File(baseDir, "src/B.java").getAbsolutePath());
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:ClassRule", 1));
+  }
+
+  @Test
+  public void should_fail_to_merge_missing_partial_report() throws Exception {
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_COUNT, 2);
+    settings.setProperty(PmdConfiguration.PROPERTY_SHARD_INDEX, 0);
+    shards.writePartialReport("pmd", analyse("src/A.java"));
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("Missing PMD partial report of shard 1");
+
+    shards.mergePartialReports("pmd", rulesets, new Report(), null);
+  }
+
+  private Report analyse(String... relativePaths) throws Exception {
+    PMDConfiguration configuration = new PMDConfiguration();
+    configuration.setDefaultLanguageVersion(LanguageVersion.JAVA_16);
+    RuleContext context = new RuleContext();
+    context.setReport(new Report());
+    for (String relativePath : relativePaths) {
+      context.setSourceCodeFilename(new File(baseDir, relativePath).getAbsolutePath());
+      new SourceCodeProcessor(configuration).processSourceCode(new StringReader("class Foo {}"), rulesets, context);
+    }
+    return context.getReport();
+  }
+
+  private static List<String> filenames(Report report) {
+    List<String> filenames = Lists.newArrayList();
+    for (RuleViolation violation : report) {
+      filenames.add(violation.getFilename());
+    }
+    return filenames;
+  }
+}
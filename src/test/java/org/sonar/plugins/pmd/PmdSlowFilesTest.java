@@ -0,0 +1,102 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.config.Settings;
+
+public class PmdSlowFilesTest {
+
+  @Test
+  public void should_be_configured_by_settings() {
+    assertThat(PmdSlowFiles.create(new Settings())).isNull();
+    assertThat(PmdSlowFiles.create(new Settings().setProperty(PmdConfiguration.PROPERTY_SLOW_FILES, 5))).isNotNull();
+  }
+
+  @Test
+  public void should_keep_slowest_files_first() {
+    PmdSlowFiles slowFiles = new PmdSlowFiles(2);
+    slowFiles.record(inputFile("Fast.java"), millis(10), new Report());
+    slowFiles.record(inputFile("Slowest.java"), millis(300), new Report());
+    slowFiles.record(inputFile("Faster.java"), millis(1), new Report());
+    slowFiles.record(inputFile("Slow.java"), millis(200), new Report());
+
+    assertThat(slowFiles.getSlowestFiles()).onProperty("path").containsExactly("Slowest.java", "Slow.java");
+    assertThat(slowFiles.getSlowestFiles()).onProperty("millis").containsExactly(300L, 200L);
+  }
+
+  @Test
+  public void should_describe_file() {
+    PmdSlowFiles slowFiles = new PmdSlowFiles(1);
+    Rule noisy = rule("Noisy");
+    Rule quiet = rule("Quiet");
+    Report report = new Report();
+    report.addRuleViolation(violation(quiet, 1));
+    report.addRuleViolation(violation(noisy, 2));
+    report.addRuleViolation(violation(noisy, 3));
+
+    slowFiles.record(inputFile("Foo.java"), millis(42), report);
+
+    PmdSlowFiles.Entry entry = slowFiles.getSlowestFiles().get(0);
+    assertThat(entry.getLines()).isEqualTo(10);
+    assertThat(entry.getViolations()).isEqualTo(3);
+    assertThat(entry.getDominantRule()).isEqualTo("Noisy");
+    assertThat(entry.toString()).isEqualTo("Foo.java: 42 ms, 0 bytes, 10 lines, 3 violations, mostly Noisy");
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private static InputFile inputFile(String relativePath) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.relativePath()).thenReturn(relativePath);
+    when(inputFile.file()).thenReturn(new File("target/unknown/" + relativePath));
+    when(inputFile.lines()).thenReturn(10);
+    return inputFile;
+  }
+
+  private static Rule rule(String name) {
+    Rule rule = mock(Rule.class);
+    when(rule.getName()).thenReturn(name);
+    return rule;
+  }
+
+  private static RuleViolation violation(Rule rule, int line) {
+    RuleViolation violation = mock(RuleViolation.class);
+    when(violation.getFilename()).thenReturn("Foo.java");
+    when(violation.getRule()).thenReturn(rule);
+    when(violation.getDescription()).thenReturn("message");
+    when(violation.getBeginLine()).thenReturn(line);
+    return violation;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Generates a Java project of realistic size and complexity, always the same for a given number of files and seed.
+ * Each file is generated from its own seed, so the first files of a large project are the files of a smaller one.
+ * Classes mix the constructs PMD rules look at, including some usual defects, and one file in five is a unit test.
+ */
+public class PmdSyntheticProject {
+  public static final long DEFAULT_SEED = 20140301L;
+  private static final int CLASSES_PER_PACKAGE = 50;
+  private static final String[] TYPES = {"int", "long", "String", "boolean", "double", "List<String>", "Map<String, Integer>"};
+
+  private final int fileCount;
+  private final long seed;
+
+  public PmdSyntheticProject(int fileCount) {
+    this(fileCount, DEFAULT_SEED);
+  }
+
+  public PmdSyntheticProject(int fileCount, long seed) {
+    this.fileCount = fileCount;
+    this.seed = seed;
+  }
+
+  /**
+   * Writes the sources under the base directory and returns a file system indexing them.
+   */
+  public DefaultFileSystem generate(File baseDir) throws IOException {
+    DefaultFileSystem fileSystem = new DefaultFileSystem();
+    fileSystem.setBaseDir(baseDir);
+    fileSystem.setWorkDir(new File(baseDir, "work"));
+    fileSystem.setEncoding(Charsets.UTF_8);
+    for (int index = 0; index < fileCount; index++) {
+      String packageName = "org.example.synthetic.p" + (index / CLASSES_PER_PACKAGE);
+      boolean test = index % 5 == 4;
+      String className = test ? "Class" + (index - 1) + "Test" : "Class" + index;
+      String relativePath = "src/" + packageName.replace('.', '/') + "/" + className + ".java";
+      String source = source(packageName, className, test, new Random(seed * 31 + index));
+      File file = new File(baseDir, relativePath);
+      Files.createParentDirs(file);
+      Files.write(source, file, Charsets.UTF_8);
+      fileSystem.add(new DefaultInputFile(relativePath)
+        .setFile(file)
+        .setLanguage("java")
+        .setType(test ? InputFile.Type.TEST : InputFile.Type.MAIN)
+        .setLines(lines(source)));
+    }
+    return fileSystem;
+  }
+
+  static String source(String packageName, String className, boolean test, Random random) {
+    StringBuilder source = new StringBuilder();
+    source.append("package ").append(packageName).append(";\n\n");
+    source.append("import java.io.*;\n");
+    source.append("import java.util.ArrayList;\n");
+    source.append("import java.util.HashMap;\n");
+    source.append("import java.util.List;\n");
+    source.append("import java.util.Map;\n");
+    if (test) {
+      source.append("import junit.framework.TestCase;\n\n");
+      appendTestClass(source, className, random);
+    } else {
+      source.append('\n');
+      appendClass(source, className, random);
+    }
+    return source.toString();
+  }
+
+  private static void appendClass(StringBuilder source, String className, Random random) {
+    source.append("/**\n * Synthetic class ").append(className).append(".\n */\n");
+    source.append("public class ").append(className).append(random.nextBoolean() ? " implements Serializable" : "").append(" {\n");
+    source.append("  private static final int LIMIT = ").append(random.nextInt(1000)).append(";\n");
+    int fields = 2 + random.nextInt(8);
+    for (int i = 0; i < fields; i++) {
+      source.append("  private ").append(type(random)).append(" field").append(i).append(";\n");
+    }
+    source.append("  public String name;\n\n");
+    source.append("  public ").append(className).append("(String name) {\n    this.name = name;\n  }\n\n");
+    for (int i = 0; i < fields; i++) {
+      appendAccessors(source, "field" + i, i, random);
+    }
+    int methods = 3 + random.nextInt(10);
+    for (int i = 0; i < methods; i++) {
+      appendMethod(source, i, random);
+    }
+    if (random.nextInt(3) == 0) {
+      source.append("  private static class Holder {\n    private Object value;\n\n    Object get() {\n      return value;\n    }\n  }\n\n");
+    }
+    if (random.nextInt(4) == 0) {
+      source.append("  public void finalize() {\n  }\n\n");
+    }
+    source.append("  public Runnable task() {\n    return new Runnable() {\n      public void run() {\n        System.out.println(name);\n      }\n    };\n  }\n");
+    source.append("}\n");
+  }
+
+  private static void appendAccessors(StringBuilder source, String field, int index, Random random) {
+    String type = index % 2 == 0 ? "Object" : "String";
+    String getter = "get" + Character.toUpperCase(field.charAt(0)) + field.substring(1);
+    if (random.nextBoolean()) {
+      source.append("  public ").append(type).append(' ').append(getter).append("() {\n    return String.valueOf(").append(field).append(");\n  }\n\n");
+    }
+  }
+
+  private static void appendMethod(StringBuilder source, int index, Random random) {
+    source.append("  public int compute").append(index).append("(List<String> items, int threshold) {\n");
+    source.append("    int result = 0;\n");
+    source.append("    String text = \"\";\n");
+    if (random.nextBoolean()) {
+      source.append("    int unused = threshold * 2;\n");
+    }
+    int statements = 2 + random.nextInt(6);
+    for (int i = 0; i < statements; i++) {
+      appendStatement(source, i, random, 2);
+    }
+    source.append("    if (text.equals(\"\")) {\n      return result;\n    }\n");
+    source.append("    return result + text.length();\n");
+    source.append("  }\n\n");
+  }
+
+  private static void appendStatement(StringBuilder source, int index, Random random, int depth) {
+    String indent = indent(depth);
+    switch (random.nextInt(7)) {
+      case 0:
+        String i = "i" + depth;
+        source.append(indent).append("for (int ").append(i).append(" = 0; ").append(i).append(" < items.size(); ").append(i).append("++) {\n");
+        source.append(indent).append("  text = text + items.get(").append(i).append(");\n");
+        if (depth < 4) {
+          appendStatement(source, index, random, depth + 1);
+        }
+        source.append(indent).append("}\n");
+        break;
+      case 1:
+        source.append(indent).append("if (threshold > ").append(index).append(") {\n");
+        source.append(indent).append("  result += threshold;\n");
+        source.append(indent).append("} else if (threshold == LIMIT) {\n");
+        source.append(indent).append("  result -= 1;\n");
+        source.append(indent).append("} else {\n");
+        if (depth < 4) {
+          appendStatement(source, index, random, depth + 1);
+        }
+        source.append(indent).append("}\n");
+        break;
+      case 2:
+        source.append(indent).append("try {\n");
+        source.append(indent).append("  result += Integer.parseInt(items.get(").append(index).append("));\n");
+        source.append(indent).append("} catch (NumberFormatException e) {\n");
+        source.append(indent).append("} catch (Exception e) {\n");
+        source.append(indent).append("  e.printStackTrace();\n");
+        source.append(indent).append("}\n");
+        break;
+      case 3:
+        source.append(indent).append("switch (threshold) {\n");
+        source.append(indent).append("  case 1:\n").append(indent).append("    result++;\n");
+        source.append(indent).append("  case 2:\n").append(indent).append("    result += 2;\n").append(indent).append("    break;\n");
+        source.append(indent).append("  default:\n").append(indent).append("    result = 0;\n");
+        source.append(indent).append("}\n");
+        break;
+      case 4:
+        source.append(indent).append("Map<String, Integer> counts").append(index).append(depth).append(" = new HashMap<String, Integer>();\n");
+        source.append(indent).append("for (String item : items) {\n");
+        source.append(indent).append("  Integer count = counts").append(index).append(depth).append(".get(item);\n");
+        source.append(indent).append("  counts").append(index).append(depth).append(".put(item, count == null ? 1 : count + 1);\n");
+        source.append(indent).append("}\n");
+        break;
+      case 5:
+        source.append(indent).append("StringBuffer buffer").append(index).append(depth).append(" = new StringBuffer();\n");
+        source.append(indent).append("buffer").append(index).append(depth).append(".append(\"a\").append(text).append(\"b\");\n");
+        source.append(indent).append("text = buffer").append(index).append(depth).append(".toString();\n");
+        break;
+      default:
+        source.append(indent).append("while (result < threshold && result < LIMIT) {\n");
+        source.append(indent).append("  result = result + ").append(1 + random.nextInt(9)).append(";\n");
+        source.append(indent).append("}\n");
+        break;
+    }
+  }
+
+  private static void appendTestClass(StringBuilder source, String className, Random random) {
+    source.append("public class ").append(className).append(" extends TestCase {\n");
+    int tests = 2 + random.nextInt(8);
+    for (int i = 0; i < tests; i++) {
+      source.append("  public void testCase").append(i).append("() {\n");
+      source.append("    List<String> items = new ArrayList<String>();\n");
+      source.append("    items.add(\"").append(random.nextInt(100)).append("\");\n");
+      switch (random.nextInt(3)) {
+        case 0:
+          source.append("    assertTrue(items.size() == 1);\n");
+          break;
+        case 1:
+          source.append("    assertEquals(true, items.isEmpty());\n");
+          break;
+        default:
+          source.append("    assertEquals(\"size\", 1, items.size());\n");
+          break;
+      }
+      source.append("  }\n\n");
+    }
+    source.append("}\n");
+  }
+
+  private static String type(Random random) {
+    return TYPES[random.nextInt(TYPES.length)];
+  }
+
+  private static String indent(int depth) {
+    StringBuilder indent = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      indent.append("  ");
+    }
+    return indent.toString();
+  }
+
+  private static int lines(String source) {
+    int lines = 1;
+    for (int i = 0; i < source.length(); i++) {
+      if (source.charAt(i) == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.List;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.rule.XPathRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class PmdSyntheticProjectTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void should_generate_same_project_for_same_seed() throws Exception {
+    List<InputFile> first = files(new PmdSyntheticProject(20).generate(temp.newFolder("first")));
+    List<InputFile> second = files(new PmdSyntheticProject(20).generate(temp.newFolder("second")));
+
+    assertThat(first).hasSize(20);
+    for (int i = 0; i < first.size(); i++) {
+      assertThat(second.get(i).relativePath()).isEqualTo(first.get(i).relativePath());
+      assertThat(Files.toString(second.get(i).file(), Charsets.UTF_8)).isEqualTo(Files.toString(first.get(i).file(), Charsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void should_start_larger_project_with_files_of_smaller_one() throws Exception {
+    List<InputFile> small = files(new PmdSyntheticProject(5).generate(temp.newFolder("small")));
+    List<InputFile> large = files(new PmdSyntheticProject(10).generate(temp.newFolder("large")));
+
+    assertThat(Files.toString(large.get(4).file(), Charsets.UTF_8)).isEqualTo(Files.toString(small.get(4).file(), Charsets.UTF_8));
+  }
+
+  @Test
+  public void should_mix_main_and_test_files() throws Exception {
+    List<InputFile> files = files(new PmdSyntheticProject(10).generate(temp.newFolder()));
+
+    int tests = 0;
+    for (InputFile file : files) {
+      tests += file.type() == InputFile.Type.TEST ? 1 : 0;
+      assertThat(file.lines()).isGreaterThan(10);
+    }
+    assertThat(tests).isEqualTo(2);
+  }
+
+  @Test
+  public void should_generate_files_that_pmd_can_parse() throws Exception {
+    DefaultFileSystem fileSystem = new PmdSyntheticProject(10).generate(temp.newFolder());
+    PmdMetrics metrics = new PmdMetrics();
+    PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8, metrics, new PmdTracer(false));
+    XPathRule emptyCatch = new XPathRule("//CatchStatement[count(Block/BlockStatement) = 0]");
+    emptyCatch.setName("EmptyCatch");
+    emptyCatch.setMessage("Empty catch block");
+    emptyCatch.setLanguage(Language.JAVA);
+    RuleSets rulesets = new RuleSets(RuleSet.createFor("synthetic", emptyCatch));
+    RuleContext context = new RuleContext();
+    context.setReport(new Report());
+
+    for (InputFile file : files(fileSystem)) {
+      template.process(file, rulesets, context);
+    }
+
+    assertThat(metrics.getParseFailures()).isEqualTo(0);
+    assertThat(context.getReport().size()).isGreaterThan(0);
+  }
+
+  private static List<InputFile> files(DefaultFileSystem fileSystem) {
+    return Lists.newArrayList(fileSystem.inputFiles(fileSystem.predicates().all()));
+  }
+}
@@ -20,32 +20,56 @@
 package org.sonar.plugins.pmd;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
 
 import net.sourceforge.pmd.PMDConfiguration;
 import net.sourceforge.pmd.PMDException;
+import net.sourceforge.pmd.Report;
 import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
 import net.sourceforge.pmd.RuleSets;
+import net.sourceforge.pmd.RuleViolation;
 import net.sourceforge.pmd.SourceCodeProcessor;
+import net.sourceforge.pmd.lang.Language;
 import net.sourceforge.pmd.lang.LanguageVersion;
+import net.sourceforge.pmd.lang.rule.XPathRule;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.utils.SonarException;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 
 public class PmdTemplateTest {
+  // Sample.java, 190 lines, with the rules of simple.xml: 1.3 MB when written
+  static final long MAX_BYTES_PER_FILE = 1600000;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   InputFile inputFile = mock(InputFile.class);
   RuleSets rulesets = mock(RuleSets.class);
   RuleContext ruleContext = mock(RuleContext.class);
@@ -64,6 +88,34 @@ public class PmdTemplateTest {
     verify(processor, times(0)).processSourceCode(Matchers.isA(BufferedInputStream.class), Matchers.eq(rulesets), Matchers.eq(ruleContext));
   }
 
+  @Test
+  public void should_process_input_file_with_selected_rules() throws PMDException {
+    PmdRuleFilter ruleFilter = mock(PmdRuleFilter.class);
+    RuleSets selection = mock(RuleSets.class);
+    when(inputFile.file()).thenReturn(new File("src/test/resources/org/sonar/plugins/pmd/simple.xml"));
+    when(configuration.getSourceEncoding()).thenReturn("UTF-8");
+    when(ruleFilter.select(Matchers.anyString())).thenReturn(selection);
+
+    new PmdTemplate(configuration, processor).process(inputFile, ruleFilter, ruleContext);
+
+    verify(processor).processSourceCode(Matchers.isA(StringReader.class), Matchers.eq(selection), Matchers.eq(ruleContext));
+  }
+
+  @Test
+  public void should_process_content_from_read_ahead() throws Exception {
+    File source = temp.newFile("Source.java");
+    Files.write("class Source {}", source, Charsets.UTF_8);
+    when(inputFile.file()).thenReturn(source);
+    PmdReadAhead readAhead = mock(PmdReadAhead.class);
+    when(readAhead.take(inputFile)).thenReturn("class Source {}".getBytes(Charsets.UTF_8));
+    PmdTemplate template = new PmdTemplate(configuration, processor);
+    template.useReadAhead(readAhead);
+
+    template.process(inputFile, rulesets, ruleContext);
+
+    verify(processor).processSourceCode(Matchers.isA(ByteArrayInputStream.class), Matchers.eq(rulesets), Matchers.eq(ruleContext));
+  }
+
   @Test
   public void should_ignore_PMD_error() throws PMDException, FileNotFoundException {
     when(inputFile.file()).thenReturn(new File("source.java"));
@@ -72,6 +124,308 @@ public class PmdTemplateTest {
     new PmdTemplate(configuration, processor).process(inputFile, rulesets, ruleContext);
   }
 
+  @Test
+  public void should_count_ignored_files_in_metrics() {
+    PmdMetrics metrics = new PmdMetrics();
+    metrics.filesQueued(1);
+    when(inputFile.file()).thenReturn(new File("source.java"));
+    when(inputFile.lines()).thenReturn(10);
+
+    new PmdTemplate(configuration, processor, metrics, new PmdTracer(false)).process(inputFile, rulesets, ruleContext);
+
+    assertThat(metrics.getFilesQueued()).isEqualTo(0);
+    assertThat(metrics.getFilesInProgress()).isEqualTo(0);
+    assertThat(metrics.getFilesDone()).isEqualTo(1);
+    assertThat(metrics.getParseFailures()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_trace_parse_and_rules_phases() throws IOException {
+    PmdTracer tracer = new PmdTracer(true);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("TracedRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    when(inputFile.relativePath()).thenReturn("Sample.java");
+    RuleContext context = new RuleContext();
+    context.setReport(new Report());
+
+    PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8, new PmdMetrics(), tracer)
+      .process(inputFile, new RuleSets(RuleSet.createFor("traced", rule)), context);
+
+    StringWriter trace = new StringWriter();
+    tracer.write(trace);
+    assertThat(trace.toString())
+      .contains("\"name\":\"parse\",\"cat\":\"file\"")
+      .contains("\"name\":\"rules\",\"cat\":\"file\"")
+      .contains("\"args\":{\"file\":\"Sample.java\"}");
+    assertThat(context.getReport().size()).isGreaterThan(0);
+  }
+
+  @Test
+  public void should_not_trace_parse_of_cached_file() throws Exception {
+    PmdResultCache resultCache = new PmdResultCache(temp.newFolder("cache"), 1024 * 1024);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("CachedRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    RuleSets cachedRulesets = new RuleSets(RuleSet.createFor("cached", rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    when(inputFile.relativePath()).thenReturn("Sample.java");
+    PmdTracer tracer = new PmdTracer(true);
+    for (int i = 0; i < 2; i++) {
+      PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8, new PmdMetrics(), tracer);
+      template.useResultCache(resultCache, "fingerprint");
+      RuleContext context = new RuleContext();
+      context.setReport(new Report());
+      template.process(inputFile, cachedRulesets, context);
+      StringWriter trace = new StringWriter();
+      tracer.write(trace);
+
+      if (i == 0) {
+        assertThat(trace.toString()).contains("\"name\":\"parse\",\"cat\":\"file\"");
+      } else {
+        assertThat(trace.toString()).excludes("\"name\":\"parse\"");
+      }
+    }
+  }
+
+  @Test
+  public void should_replay_violations_from_result_cache() throws Exception {
+    PmdResultCache resultCache = new PmdResultCache(temp.newFolder("cache"), 1024 * 1024);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("CachedRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    RuleSets cachedRulesets = new RuleSets(RuleSet.createFor("cached", rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate firstTemplate = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    firstTemplate.useResultCache(resultCache, "fingerprint");
+    RuleContext firstContext = new RuleContext();
+    firstContext.setReport(new Report());
+    firstTemplate.process(inputFile, cachedRulesets, firstContext);
+
+    PMDConfiguration secondConfiguration = new PMDConfiguration();
+    secondConfiguration.setDefaultLanguageVersion(LanguageVersion.JAVA_16);
+    PmdTemplate secondTemplate = new PmdTemplate(secondConfiguration, processor);
+    secondTemplate.useResultCache(resultCache, "fingerprint");
+    RuleContext secondContext = new RuleContext();
+    secondContext.setReport(new Report());
+    secondTemplate.process(inputFile, cachedRulesets, secondContext);
+
+    verifyZeroInteractions(processor);
+    assertThat(firstContext.getReport().size()).isGreaterThan(0);
+    assertThat(secondContext.getReport().size()).isEqualTo(firstContext.getReport().size());
+    assertThat(secondContext.getReport().iterator().next().getBeginLine()).isEqualTo(firstContext.getReport().iterator().next().getBeginLine());
+  }
+
+  @Test
+  public void should_only_run_rules_added_since_cached_analysis() throws Exception {
+    PmdResultCache resultCache = new PmdResultCache(temp.newFolder("cache"), 1024 * 1024);
+    XPathRule cachedRule = new XPathRule("//FieldDeclaration");
+    cachedRule.setName("CachedRule");
+    cachedRule.setMessage("message");
+    cachedRule.setLanguage(Language.JAVA);
+    XPathRule addedRule = new XPathRule("//MethodDeclaration");
+    addedRule.setName("AddedRule");
+    addedRule.setMessage("message");
+    addedRule.setLanguage(Language.JAVA);
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate firstTemplate = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    firstTemplate.useResultCache(resultCache, "fingerprint");
+    RuleContext firstContext = new RuleContext();
+    firstContext.setReport(new Report());
+    firstTemplate.process(inputFile, new RuleSets(RuleSet.createFor("cached", cachedRule)), firstContext);
+
+    PMDConfiguration secondConfiguration = new PMDConfiguration();
+    secondConfiguration.setDefaultLanguageVersion(LanguageVersion.JAVA_16);
+    PmdTemplate secondTemplate = new PmdTemplate(secondConfiguration, processor);
+    secondTemplate.useResultCache(resultCache, "fingerprint");
+    RuleContext secondContext = new RuleContext();
+    secondContext.setReport(new Report());
+    secondTemplate.process(inputFile, new RuleSets(RuleSet.createFor("cached", cachedRule, addedRule)), secondContext);
+
+    ArgumentCaptor<RuleSets> executed = ArgumentCaptor.forClass(RuleSets.class);
+    verify(processor).processSourceCode(Matchers.any(InputStream.class), executed.capture(), Matchers.eq(secondContext));
+    assertThat(executed.getValue().getAllRules()).containsOnly(addedRule);
+    assertThat(secondContext.getReport().size()).isEqualTo(firstContext.getReport().size());
+  }
+
+  @Test
+  public void should_cap_violations_of_each_repository_apart() {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("NoisyRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    RuleSets noisyRulesets = new RuleSets(RuleSet.createFor("noisy", rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    template.useViolationCaps(new PmdViolationCaps(0, 1));
+    RuleContext mainContext = new RuleContext();
+    mainContext.setReport(new Report());
+    PmdViolationCaps.setRepository(mainContext, PmdConstants.REPOSITORY_KEY);
+    RuleContext testContext = new RuleContext();
+    testContext.setReport(new Report());
+    PmdViolationCaps.setRepository(testContext, PmdConstants.TEST_REPOSITORY_KEY);
+
+    template.process(inputFile, noisyRulesets, mainContext);
+    template.process(inputFile, noisyRulesets, testContext);
+    template.process(inputFile, noisyRulesets, mainContext);
+
+    assertThat(mainContext.getReport().size()).isEqualTo(1);
+    assertThat(testContext.getReport().size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_cap_violations_but_cache_all_of_them() throws Exception {
+    PmdResultCache resultCache = new PmdResultCache(temp.newFolder("cache"), 1024 * 1024);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("NoisyRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    RuleSets noisyRulesets = new RuleSets(RuleSet.createFor("noisy", rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    template.useResultCache(resultCache, "fingerprint");
+    template.useViolationCaps(new PmdViolationCaps(1, 0));
+    RuleContext cappedContext = new RuleContext();
+    cappedContext.setReport(new Report());
+    template.process(inputFile, noisyRulesets, cappedContext);
+
+    template.useViolationCaps(null);
+    RuleContext replayedContext = new RuleContext();
+    replayedContext.setReport(new Report());
+    template.process(inputFile, noisyRulesets, replayedContext);
+
+    assertThat(cappedContext.getReport().size()).isEqualTo(1);
+    assertThat(replayedContext.getReport().size()).isGreaterThan(1);
+  }
+
+  @Test
+  public void should_keep_violations_of_other_rules_when_rule_fails() throws Exception {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("WorkingRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    PmdRuleBreakerTest.FailingRule failingRule = new PmdRuleBreakerTest.FailingRule();
+    RuleSets failingRulesets = new RuleSets(RuleSet.createFor("failing", failingRule, rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    when(inputFile.relativePath()).thenReturn("Sample.java");
+    PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    RuleContext withoutBreaker = new RuleContext();
+    withoutBreaker.setReport(new Report());
+    template.process(inputFile, failingRulesets, withoutBreaker);
+
+    PmdRuleBreaker breaker = new PmdRuleBreaker(1);
+    template.useRuleBreaker(breaker);
+    RuleContext firstContext = new RuleContext();
+    firstContext.setReport(new Report());
+    template.process(inputFile, failingRulesets, firstContext);
+    RuleContext secondContext = new RuleContext();
+    secondContext.setReport(new Report());
+    template.process(inputFile, failingRulesets, secondContext);
+
+    assertThat(withoutBreaker.getReport().size()).isEqualTo(0);
+    assertThat(breaker.getRemovedRules()).containsOnly("FailingRule");
+    assertThat(firstContext.getReport().size()).isGreaterThan(0);
+    assertThat(secondContext.getReport().size()).isEqualTo(firstContext.getReport().size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void should_cache_violations_of_rules_which_were_not_removed() throws Exception {
+    PmdResultCache resultCache = spy(new PmdResultCache(temp.newFolder("cache"), 1024 * 1024));
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("WorkingRule");
+    rule.setMessage("message");
+    rule.setLanguage(Language.JAVA);
+    RuleSets failingRulesets = new RuleSets(RuleSet.createFor("failing", new PmdRuleBreakerTest.FailingRule(), rule));
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    when(inputFile.relativePath()).thenReturn("Sample.java");
+    PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    template.useResultCache(resultCache, "fingerprint");
+    template.useRuleBreaker(new PmdRuleBreaker(1));
+    RuleContext firstContext = new RuleContext();
+    firstContext.setReport(new Report());
+    template.process(inputFile, failingRulesets, firstContext);
+    RuleContext secondContext = new RuleContext();
+    secondContext.setReport(new Report());
+    template.process(inputFile, failingRulesets, secondContext);
+
+    ArgumentCaptor<Map> fingerprints = ArgumentCaptor.forClass(Map.class);
+    verify(resultCache).put(Matchers.anyString(), fingerprints.capture(), Matchers.anyCollectionOf(RuleViolation.class));
+    assertThat(fingerprints.getValue().keySet()).containsOnly("WorkingRule");
+  }
+
+  @Test
+  public void should_leave_out_type_resolution() throws Exception {
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("TypedRule");
+    rule.setLanguage(Language.JAVA);
+    rule.setUsesTypeResolution();
+    when(inputFile.file()).thenReturn(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate template = new PmdTemplate(configuration, processor);
+    template.useTypeResolution(false);
+
+    template.process(inputFile, new RuleSets(RuleSet.createFor("typed", rule)), ruleContext);
+
+    ArgumentCaptor<RuleSets> executed = ArgumentCaptor.forClass(RuleSets.class);
+    verify(processor).processSourceCode(Matchers.any(InputStream.class), executed.capture(), Matchers.eq(ruleContext));
+    assertThat(executed.getValue().getAllRules()).containsOnly(rule);
+    assertThat(executed.getValue().usesTypeResolution(Language.JAVA)).isFalse();
+  }
+
+  @Test
+  public void should_skip_file_which_failed_to_parse_before() throws Exception {
+    PmdResultCache resultCache = new PmdResultCache(temp.newFolder("cache"), 1024 * 1024);
+    File source = temp.newFile("Broken.java");
+    Files.write("class Broken {", source, Charsets.UTF_8);
+    when(inputFile.file()).thenReturn(source);
+    XPathRule rule = new XPathRule("//FieldDeclaration");
+    rule.setName("AnyRule");
+    rule.setLanguage(Language.JAVA);
+    RuleSets brokenRulesets = new RuleSets(RuleSet.createFor("broken", rule));
+    PmdTemplate firstTemplate = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    firstTemplate.useResultCache(resultCache, "fingerprint");
+    RuleContext firstContext = new RuleContext();
+    firstContext.setReport(new Report());
+    firstTemplate.process(inputFile, brokenRulesets, firstContext);
+
+    PMDConfiguration secondConfiguration = new PMDConfiguration();
+    secondConfiguration.setDefaultLanguageVersion(LanguageVersion.JAVA_16);
+    PmdMetrics metrics = new PmdMetrics();
+    PmdTemplate secondTemplate = new PmdTemplate(secondConfiguration, processor, metrics, new PmdTracer(false));
+    // Other rules do not matter
+    secondTemplate.useResultCache(resultCache, "other fingerprint");
+    RuleContext secondContext = new RuleContext();
+    secondContext.setReport(new Report());
+    secondTemplate.process(inputFile, brokenRulesets, secondContext);
+
+    verifyZeroInteractions(processor);
+    assertThat(resultCache.getSkippedParseFailures()).isEqualTo(1);
+    assertThat(metrics.getParseFailures()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_not_allocate_more_per_file() {
+    assumeTrue(PmdAllocations.isSupported());
+    final InputFile sample = new DefaultInputFile("Sample.java").setFile(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    final PmdTemplate template = PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8);
+    final RuleSets simpleRulesets = new PmdRuleSetCache().getRulesets("simple", new File("src/test/resources/org/sonar/plugins/pmd/simple.xml"));
+
+    long bytesPerFile = PmdAllocations.bytesPerRun(20, 50, new Runnable() {
+      @Override
+      public void run() {
+        RuleContext context = new RuleContext();
+        context.setReport(new Report());
+        template.process(sample, simpleRulesets, context);
+      }
+    });
+
+    assertThat(bytesPerFile).isLessThan(MAX_BYTES_PER_FILE);
+  }
+
   @Test
   public void java11_version() {
     assertThat(PmdTemplate.languageVersion("1.1")).isEqualTo(LanguageVersion.JAVA_13);
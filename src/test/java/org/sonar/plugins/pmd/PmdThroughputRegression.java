@@ -0,0 +1,284 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import net.sourceforge.pmd.Report;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.batch.ProjectClasspath;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.config.Settings;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.profiles.RulesProfile;
+import org.sonar.api.resources.Project;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.api.rules.RuleRepository;
+import org.sonar.api.rules.XMLRuleParser;
+import org.sonar.check.Cardinality;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * End-to-end throughput of {@link PmdExecutor} on a {@link PmdSyntheticProject}, with all the rules of the catalogue.
+ * Not part of the default build: run it with {@code mvn test -Pthroughput}, and choose the numbers of files among
+ * {@link #SIZES} with {@code -Dpmd.throughput.files}, comma-separated. Files per second, peak heap and GC time are
+ * compared to the baseline stored for each number of files, within {@code -Dpmd.throughput.tolerance}. A missing
+ * baseline fails, and {@code -Dpmd.throughput.updateBaseline=true} records the baselines again. Baselines only hold
+ * on the machine which recorded them, which is stored with them.
+ */
+public class PmdThroughputRegression {
+  static final String BASELINE = "src/test/resources/org/sonar/plugins/pmd/throughput-baseline.properties";
+  static final List<Integer> SIZES = ImmutableList.of(1000, 5000, 10000, 50000);
+  static final int WARM_UP_FILES = 200;
+  // A few collections more or less make a large relative difference on short runs
+  static final long GC_SLACK_MILLIS = 200;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void should_not_regress() throws IOException {
+    List<Integer> sizes = sizes(System.getProperty("pmd.throughput.files", "1000"));
+    double tolerance = Double.parseDouble(System.getProperty("pmd.throughput.tolerance", "0.25"));
+    boolean updateBaseline = Boolean.getBoolean("pmd.throughput.updateBaseline");
+    File baselineFile = new File(System.getProperty("pmd.throughput.baseline", BASELINE));
+    Properties baseline = load(baselineFile);
+    String machine = machine();
+    if (!updateBaseline) {
+      for (int files : sizes) {
+        assertThat(baseline.containsKey(files + ".filesPerSecond"))
+          .overridingErrorMessage("No PMD throughput baseline for " + files + " files in " + baselineFile
+            + ", record it with -Dpmd.throughput.updateBaseline=true")
+          .isTrue();
+      }
+    }
+
+    // Class loading and JIT compilation are left out of the measure
+    execute(new PmdSyntheticProject(WARM_UP_FILES).generate(temp.newFolder("warmup")));
+    List<String> regressions = Lists.newArrayList();
+    List<String> measures = Lists.newArrayList();
+    for (int files : sizes) {
+      Measure measure = measure(new PmdSyntheticProject(files).generate(temp.newFolder("project" + files)), files);
+      measures.add(files + " files: " + measure);
+      String prefix = files + ".";
+      if (updateBaseline) {
+        baseline.setProperty(prefix + "filesPerSecond", String.valueOf(Math.round(measure.filesPerSecond)));
+        baseline.setProperty(prefix + "peakHeapMb", String.valueOf(measure.peakHeapMb));
+        baseline.setProperty(prefix + "gcMillis", String.valueOf(measure.gcMillis));
+      } else {
+        regressions.addAll(regressions(files, measure, baseline, tolerance));
+      }
+    }
+    if (updateBaseline) {
+      baseline.setProperty("machine", machine);
+      // The recorded measures are reviewed in the diff of the baseline
+      store(baseline, baselineFile);
+      return;
+    }
+
+    String recordedOn = baseline.getProperty("machine", "an unknown machine");
+    assertThat(regressions)
+      .overridingErrorMessage("PMD throughput regressed: " + regressions + ". Measured " + measures + " on " + machine
+        + (recordedOn.equals(machine) ? "" : ", baseline recorded on " + recordedOn))
+      .isEmpty();
+  }
+
+  private static List<String> regressions(int files, Measure measure, Properties baseline, double tolerance) {
+    String prefix = files + ".";
+    List<String> regressions = Lists.newArrayList();
+    double filesPerSecond = Double.parseDouble(baseline.getProperty(prefix + "filesPerSecond"));
+    if (measure.filesPerSecond < filesPerSecond * (1 - tolerance)) {
+      regressions.add(files + " files: files/sec " + Math.round(measure.filesPerSecond) + " < " + Math.round(filesPerSecond));
+    }
+    long peakHeapMb = Long.parseLong(baseline.getProperty(prefix + "peakHeapMb"));
+    if (measure.peakHeapMb > peakHeapMb * (1 + tolerance)) {
+      regressions.add(files + " files: peak heap " + measure.peakHeapMb + " MB > " + peakHeapMb + " MB");
+    }
+    long gcMillis = Long.parseLong(baseline.getProperty(prefix + "gcMillis"));
+    if (measure.gcMillis > gcMillis * (1 + tolerance) + GC_SLACK_MILLIS) {
+      regressions.add(files + " files: GC time " + measure.gcMillis + " ms > " + gcMillis + " ms");
+    }
+    return regressions;
+  }
+
+  private static List<Integer> sizes(String property) {
+    List<Integer> sizes = Lists.newArrayList();
+    for (String size : Splitter.on(',').trimResults().omitEmptyStrings().split(property)) {
+      int files = Integer.parseInt(size);
+      if (!SIZES.contains(files)) {
+        throw new IllegalArgumentException("Unsupported number of files " + files + ", expected one of " + SIZES);
+      }
+      sizes.add(files);
+    }
+    return sizes;
+  }
+
+  /**
+   * Throughput depends on the processors, the heap and the JVM, so baselines are only comparable on the same machine.
+   */
+  private static String machine() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.availableProcessors() + " processors, " + runtime.maxMemory() / (1024 * 1024) + " MB max heap, Java "
+      + System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch");
+  }
+
+  private Measure measure(DefaultFileSystem fileSystem, int files) {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    long gcMillisBefore = gcMillis();
+    long start = System.nanoTime();
+
+    Report report = execute(fileSystem);
+
+    Measure measure = new Measure();
+    measure.violations = report.size();
+    measure.filesPerSecond = files * 1e9 / (System.nanoTime() - start);
+    measure.gcMillis = gcMillis() - gcMillisBefore;
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+    measure.peakHeapMb = peakHeap / (1024 * 1024);
+    return measure;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, collector.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static Report execute(final DefaultFileSystem fileSystem) {
+    Settings settings = new Settings();
+    settings.setProperty("sonar.java.source", "1.6");
+    Project project = new Project("synthetic");
+    ProjectFileSystem projectFileSystem = mock(ProjectFileSystem.class);
+    try {
+      when(projectFileSystem.writeToWorkingDirectory(anyString(), anyString())).then(new Answer<File>() {
+        @Override
+        public File answer(InvocationOnMock invocation) throws IOException {
+          File file = new File(fileSystem.workDir(), (String) invocation.getArguments()[1]);
+          Files.createParentDirs(file);
+          Files.write((String) invocation.getArguments()[0], file, Charsets.UTF_8);
+          return file;
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    ProjectClasspath classpath = mock(ProjectClasspath.class);
+    when(classpath.getElements()).thenReturn(Collections.<File>emptyList());
+    when(classpath.getClassloader()).thenReturn(new URLClassLoader(new URL[0], PmdThroughputRegression.class.getClassLoader()));
+
+    PmdExecutor executor = new PmdExecutor(project, fileSystem, new PmdFileIndex(fileSystem), profile(), new PmdProfileExporter(),
+      new PmdConfiguration(projectFileSystem, settings), new PmdRuleSetCache(), new PmdMetrics(), new PmdTracer(false),
+      new PmdResultCache(null, 0), new PmdShards(project, fileSystem, settings), new PmdRuleCosts(fileSystem, settings), classpath, settings);
+    return executor.execute();
+  }
+
+  /**
+   * All the rules of both repositories, except the templates which cannot run without parameters.
+   */
+  static RulesProfile profile() {
+    RulesProfile profile = RulesProfile.create("all", "java");
+    activate(profile, new PmdRuleRepository(mock(ServerFileSystem.class), new XMLRuleParser()));
+    activate(profile, new PmdUnitTestsRuleRepository(new XMLRuleParser()));
+    return profile;
+  }
+
+  private static void activate(RulesProfile profile, RuleRepository repository) {
+    for (org.sonar.api.rules.Rule rule : repository.createRules()) {
+      if (rule.getCardinality() != Cardinality.MULTIPLE) {
+        profile.activateRule(rule.setRepositoryKey(repository.getKey()), null);
+      }
+    }
+  }
+
+  private static Properties load(File file) throws IOException {
+    Properties properties = new Properties();
+    if (file.isFile()) {
+      InputStream input = new FileInputStream(file);
+      try {
+        properties.load(input);
+      } finally {
+        Closeables.closeQuietly(input);
+      }
+    }
+    return properties;
+  }
+
+  private static void store(Properties properties, File file) throws IOException {
+    Files.createParentDirs(file);
+    OutputStream output = new FileOutputStream(file);
+    try {
+      properties.store(output, "PMD throughput baseline, by number of files, on the machine below. Recorded with PmdThroughputRegression.");
+    } finally {
+      Closeables.closeQuietly(output);
+    }
+  }
+
+  private static class Measure {
+    private double filesPerSecond;
+    private long peakHeapMb;
+    private long gcMillis;
+    private int violations;
+
+    @Override
+    public String toString() {
+      return Math.round(filesPerSecond) + " files/sec, peak heap " + peakHeapMb + " MB, GC " + gcMillis + " ms, " + violations + " violations";
+    }
+  }
+}
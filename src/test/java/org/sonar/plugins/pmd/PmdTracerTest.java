@@ -0,0 +1,89 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class PmdTracerTest {
+
+  @Test
+  public void should_write_events_in_chrome_trace_format() throws IOException {
+    PmdTracer tracer = new PmdTracer(true);
+
+    tracer.begin("createRulesets", "rulesets").arg("repository", "pmd").end();
+    String json = write(tracer);
+
+    assertThat(json).startsWith("{\"traceEvents\":[");
+    assertThat(json).contains("\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + Thread.currentThread().getId());
+    assertThat(json).contains("\"name\":\"createRulesets\",\"cat\":\"rulesets\",\"ph\":\"X\"");
+    assertThat(json).contains("\"tid\":" + Thread.currentThread().getId() + ",\"args\":{\"repository\":\"pmd\"}");
+  }
+
+  @Test
+  public void should_record_thread_of_each_event() throws Exception {
+    final PmdTracer tracer = new PmdTracer(true);
+
+    Thread worker = new Thread("PMD worker 0") {
+      @Override
+      public void run() {
+        tracer.begin("parse", "file").end();
+      }
+    };
+    worker.start();
+    worker.join();
+
+    assertThat(write(tracer)).contains("\"tid\":" + worker.getId()).contains("\"name\":\"PMD worker 0\"");
+  }
+
+  @Test
+  public void should_only_write_events_recorded_since_previous_write() throws IOException {
+    PmdTracer tracer = new PmdTracer(true);
+    tracer.begin("firstModule", "report").end();
+    write(tracer);
+
+    tracer.begin("secondModule", "report").end();
+    String json = write(tracer);
+
+    assertThat(json).contains("\"name\":\"secondModule\"").excludes("\"name\":\"firstModule\"");
+    assertThat(json).contains("\"name\":\"thread_name\"");
+    assertThat(write(tracer)).isEqualTo("{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}");
+  }
+
+  @Test
+  public void should_not_record_events_when_disabled() throws IOException {
+    PmdTracer tracer = new PmdTracer(false);
+
+    tracer.begin("parse", "file").arg("file", "Foo.java").end();
+
+    assertThat(tracer.isEnabled()).isFalse();
+    assertThat(write(tracer)).isEqualTo("{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}");
+  }
+
+  private static String write(PmdTracer tracer) throws IOException {
+    StringWriter writer = new StringWriter();
+    tracer.write(writer);
+    return writer.toString();
+  }
+}
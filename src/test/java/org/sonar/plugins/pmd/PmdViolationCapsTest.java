@@ -0,0 +1,177 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class PmdViolationCapsTest {
+  Rule noisy = rule("Noisy");
+  Rule quiet = rule("Quiet");
+
+  @Test
+  public void should_not_cap_by_default() {
+    assertThat(PmdViolationCaps.create(new Settings())).isNull();
+  }
+
+  @Test
+  public void should_create_from_settings() {
+    Settings settings = new Settings();
+    settings.setProperty(PmdConfiguration.PROPERTY_MAX_VIOLATIONS_PER_MODULE, 10);
+
+    assertThat(PmdViolationCaps.create(settings)).isNotNull();
+  }
+
+  @Test
+  public void should_keep_report_within_caps() {
+    PmdViolationCaps caps = new PmdViolationCaps(2, 10);
+    Report report = report("Foo.java", noisy, noisy, quiet);
+
+    assertThat((Object) caps.cap(report, "pmd")).isSameAs(report);
+    assertThat(caps.getDroppedViolations()).isEmpty();
+  }
+
+  @Test
+  public void should_cap_violations_of_each_rule_in_file() {
+    PmdViolationCaps caps = new PmdViolationCaps(2, 0);
+    Report report = report("Foo.java", noisy, noisy, quiet, noisy, noisy);
+    report.addError(new Report.ProcessingError("error", "Foo.java"));
+
+    Report capped = caps.cap(report, "pmd");
+
+    assertThat(Lists.newArrayList(capped.iterator())).onProperty("rule").containsExactly(noisy, noisy, quiet);
+    assertThat(capped.hasErrors()).isTrue();
+    assertThat(caps.cap(report("Bar.java", noisy, noisy), "pmd").size()).isEqualTo(2);
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:Noisy", 2));
+  }
+
+  @Test
+  public void should_cap_violations_of_each_rule_in_module() {
+    PmdViolationCaps caps = new PmdViolationCaps(0, 3);
+
+    assertThat(caps.cap(report("Foo.java", noisy, noisy, quiet), "pmd").size()).isEqualTo(3);
+    assertThat(Lists.newArrayList(caps.cap(report("Bar.java", noisy, noisy, quiet), "pmd").iterator())).onProperty("rule").containsExactly(noisy, quiet);
+    assertThat(caps.cap(report("Baz.java", noisy), "pmd").size()).isEqualTo(0);
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:Noisy", 2));
+  }
+
+  @Test
+  public void should_cap_violations_of_each_repository_apart() {
+    PmdViolationCaps caps = new PmdViolationCaps(0, 2);
+
+    assertThat(caps.cap(report("Foo.java", noisy, noisy), PmdConstants.REPOSITORY_KEY).size()).isEqualTo(2);
+    assertThat(caps.cap(report("FooTest.java", noisy, noisy, noisy), PmdConstants.TEST_REPOSITORY_KEY).size()).isEqualTo(2);
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of(PmdConstants.TEST_REPOSITORY_KEY + ":Noisy", 1));
+  }
+
+  @Test
+  public void should_only_count_violations_beyond_cap_in_file_report() {
+    PmdViolationCaps caps = new PmdViolationCaps(2, 0);
+    Report report = caps.newFileReport("pmd");
+    report.suppress(ImmutableMap.of(4, "NOPMD"));
+
+    addViolations(report("Foo.java", noisy, noisy, quiet, noisy, noisy), report);
+
+    assertThat(Lists.newArrayList(report.iterator())).onProperty("beginLine").containsExactly(1, 2, 3);
+    assertThat(report.getSuppressedRuleViolations()).hasSize(1);
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:Noisy", 1));
+  }
+
+  @Test
+  public void should_only_count_violations_of_file_report_once_module_cap_is_reached() {
+    PmdViolationCaps caps = new PmdViolationCaps(0, 2);
+    caps.cap(report("Foo.java", noisy, noisy), "pmd");
+    Report report = caps.newFileReport("pmd");
+
+    addViolations(report("Bar.java", noisy, quiet), report);
+
+    assertThat(Lists.newArrayList(report.iterator())).onProperty("rule").containsExactly(quiet);
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:Noisy", 1));
+  }
+
+  @Test
+  public void should_apply_module_cap_in_order_of_files_when_merging_worker_reports() {
+    PmdViolationCaps caps = new PmdViolationCaps(1, 2);
+    PmdViolationCaps fileCaps = caps.withoutModuleCap();
+    PmdViolationStore firstWorker = new PmdViolationStore();
+    firstWorker.merge(fileCaps.cap(report("Baz.java", noisy), "pmd"));
+    firstWorker.merge(fileCaps.cap(report("Foo.java", noisy, noisy), "pmd"));
+    PmdViolationStore secondWorker = new PmdViolationStore();
+    secondWorker.merge(fileCaps.cap(report("Bar.java", noisy), "pmd"));
+    Report merged = new Report();
+
+    caps.merge(Arrays.asList(firstWorker, secondWorker), Arrays.asList("Foo.java", "Bar.java", "Baz.java"), "pmd", merged);
+
+    assertThat(Lists.newArrayList(merged.iterator())).onProperty("filename").containsOnly("Foo.java", "Bar.java");
+    assertThat(caps.getDroppedViolations()).isEqualTo(ImmutableMap.of("pmd:Noisy", 2));
+  }
+
+  @Test
+  public void should_keep_repository_in_rule_context() {
+    RuleContext context = new RuleContext();
+    assertThat(PmdViolationCaps.getRepository(context)).isNull();
+
+    PmdViolationCaps.setRepository(context, PmdConstants.TEST_REPOSITORY_KEY);
+
+    assertThat(PmdViolationCaps.getRepository(context)).isEqualTo(PmdConstants.TEST_REPOSITORY_KEY);
+  }
+
+  private static void addViolations(Report from, Report to) {
+    for (RuleViolation violation : from) {
+      to.addRuleViolation(violation);
+    }
+  }
+
+  private static Report report(String filename, Rule... rules) {
+    Report report = new Report();
+    int line = 1;
+    for (Rule rule : rules) {
+      RuleViolation violation = mock(RuleViolation.class);
+      when(violation.getFilename()).thenReturn(filename);
+      when(violation.getRule()).thenReturn(rule);
+      when(violation.getDescription()).thenReturn("message");
+      when(violation.getBeginLine()).thenReturn(line);
+      when(violation.getEndLine()).thenReturn(line);
+      line++;
+      report.addRuleViolation(violation);
+    }
+    return report;
+  }
+
+  private static Rule rule(String name) {
+    Rule rule = mock(Rule.class);
+    when(rule.getName()).thenReturn(name);
+    return rule;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.RuleViolation;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class PmdViolationStoreTest {
+  Rule rule = rule("MyRule", "Rule message");
+
+  @Test
+  public void should_keep_violations_file_by_file() {
+    PmdViolationStore store = new PmdViolationStore();
+    store.addRuleViolation(violation("Foo.java", rule, "first", 1));
+    store.addRuleViolation(violation("Bar.java", rule, "second", 2));
+    store.addRuleViolation(violation("Foo.java", rule, "third", 3));
+
+    List<RuleViolation> violations = Lists.newArrayList(store);
+
+    assertThat(store.size()).isEqualTo(3);
+    assertThat(violations).onProperty("description").containsExactly("first", "third", "second");
+    assertThat(violations).onProperty("filename").containsExactly("Foo.java", "Foo.java", "Bar.java");
+    assertThat(violations).onProperty("beginLine").containsExactly(1, 3, 2);
+  }
+
+  @Test
+  public void should_read_violations_of_one_file() {
+    PmdViolationStore store = new PmdViolationStore();
+    store.addRuleViolation(violation("Foo.java", rule, "first", 1));
+    store.addRuleViolation(violation("Bar.java", rule, "second", 2));
+    store.addRuleViolation(violation("Foo.java", rule, "third", 3));
+
+    assertThat(Lists.newArrayList(store.iterator("Foo.java"))).onProperty("description").containsExactly("first", "third");
+    assertThat(Lists.newArrayList(store.iterator("Bar.java"))).onProperty("description").containsExactly("second");
+    assertThat(store.iterator("Baz.java").hasNext()).isFalse();
+  }
+
+  @Test
+  public void should_read_all_fields_back() {
+    PmdViolationStore store = new PmdViolationStore();
+    store.addRuleViolation(violation("Foo.java", rule, "message", 4));
+
+    RuleViolation violation = store.iterator().next();
+
+    assertThat(violation.getRule()).isSameAs(rule);
+    assertThat(violation.getDescription()).isEqualTo("message");
+    assertThat(violation.getBeginLine()).isEqualTo(4);
+    assertThat(violation.getEndLine()).isEqualTo(5);
+    assertThat(violation.getBeginColumn()).isEqualTo(1);
+    assertThat(violation.getEndColumn()).isEqualTo(10);
+    assertThat(violation.getPackageName()).isEqualTo("org.foo");
+    assertThat(violation.getClassName()).isEqualTo("Foo");
+    assertThat(violation.getMethodName()).isNull();
+    assertThat(violation.getVariableName()).isEqualTo("bar");
+    assertThat(violation.isSuppressed()).isFalse();
+  }
+
+  @Test
+  public void should_share_strings_and_rule_messages() {
+    PmdViolationStore store = new PmdViolationStore();
+    store.addRuleViolation(violation(new String("Foo.java"), rule, "Rule message", 1));
+    store.addRuleViolation(violation(new String("Foo.java"), rule, "Rule message", 2));
+
+    List<RuleViolation> violations = Lists.newArrayList(store);
+
+    assertThat(violations.get(1).getFilename()).isSameAs(violations.get(0).getFilename());
+    assertThat(violations.get(0).getDescription()).isSameAs(rule.getMessage());
+  }
+
+  @Test
+  public void should_merge_reports() {
+    Report report = new Report();
+    report.addRuleViolation(violation("Foo.java", rule, "first", 1));
+    report.addError(new Report.ProcessingError("error", "Foo.java"));
+    PmdViolationStore other = new PmdViolationStore();
+    other.addRuleViolation(violation("Bar.java", rule, "second", 2));
+
+    PmdViolationStore store = new PmdViolationStore();
+    store.merge(report);
+    store.merge(other);
+
+    assertThat(Lists.newArrayList(store)).onProperty("description").containsExactly("first", "second");
+    assertThat(store.hasErrors()).isTrue();
+    assertThat(store.isEmpty()).isFalse();
+  }
+
+  @Test
+  public void should_skip_suppressed_violations() {
+    RuleViolation suppressed = violation("Foo.java", rule, "message", 1);
+    when(suppressed.isSuppressed()).thenReturn(true);
+
+    PmdViolationStore store = new PmdViolationStore();
+    store.addRuleViolation(suppressed);
+
+    assertThat(store.size()).isEqualTo(0);
+    assertThat(store.isEmpty()).isTrue();
+    assertThat(store.iterator().hasNext()).isFalse();
+  }
+
+  @Test
+  public void should_grow() {
+    PmdViolationStore store = new PmdViolationStore();
+    for (int i = 0; i < 1000; i++) {
+      store.addRuleViolation(violation("File" + (i % 7) + ".java", rule, "message", i));
+    }
+
+    assertThat(store.size()).isEqualTo(1000);
+    assertThat(Lists.newArrayList(store)).hasSize(1000);
+  }
+
+  private static Rule rule(String name, String message) {
+    Rule rule = mock(Rule.class);
+    when(rule.getName()).thenReturn(name);
+    when(rule.getMessage()).thenReturn(message);
+    return rule;
+  }
+
+  private static RuleViolation violation(String filename, Rule rule, String description, int line) {
+    RuleViolation violation = mock(RuleViolation.class);
+    when(violation.getFilename()).thenReturn(filename);
+    when(violation.getRule()).thenReturn(rule);
+    when(violation.getDescription()).thenReturn(description);
+    when(violation.getBeginLine()).thenReturn(line);
+    when(violation.getEndLine()).thenReturn(line + 1);
+    when(violation.getBeginColumn()).thenReturn(1);
+    when(violation.getEndColumn()).thenReturn(10);
+    when(violation.getPackageName()).thenReturn("org.foo");
+    when(violation.getClassName()).thenReturn("Foo");
+    when(violation.getVariableName()).thenReturn("bar");
+    return violation;
+  }
+}
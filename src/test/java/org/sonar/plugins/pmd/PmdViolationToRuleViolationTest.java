@@ -19,24 +19,42 @@
  */
 package org.sonar.plugins.pmd;
 
+import net.sourceforge.pmd.Report;
+import net.sourceforge.pmd.RuleContext;
+import net.sourceforge.pmd.RuleSet;
+import net.sourceforge.pmd.RuleSets;
 import net.sourceforge.pmd.RuleViolation;
 import net.sourceforge.pmd.Rule;
+import net.sourceforge.pmd.lang.Language;
+import net.sourceforge.pmd.lang.rule.XPathRule;
 import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.resources.Project;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.rules.RuleFinder;
 import org.sonar.api.rules.Violation;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
 import java.io.File;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sonar.test.MoreConditions.reflectionEqualTo;
 
 public class PmdViolationToRuleViolationTest {
+  // The violation itself, 60 bytes when written
+  static final long MAX_BYTES_PER_VIOLATION = 150;
+
   private org.sonar.api.rules.Rule sonarRule = org.sonar.api.rules.Rule.create("pmd", "RULE");
   private ProjectFileSystem projectFileSystem = mock(ProjectFileSystem.class);
   private Project project = when(mock(Project.class).getFileSystem()).thenReturn(projectFileSystem).getMock();
@@ -67,6 +85,52 @@ public class PmdViolationToRuleViolationTest {
     assertThat(violation.getMessage()).isEqualTo("Description");
   }
 
+  @Test
+  public void should_find_each_rule_once() {
+    when(pmdViolation.getRule()).thenReturn(rule);
+    when(rule.getName()).thenReturn("RULE");
+    when(ruleFinder.findByKey("pmd", "RULE")).thenReturn(sonarRule);
+    org.sonar.api.resources.File file = new org.sonar.api.resources.File("source.java");
+
+    PmdViolationToRuleViolation pmdViolationToRuleViolation = new PmdViolationToRuleViolation(project, ruleFinder);
+    pmdViolationToRuleViolation.toViolation(pmdViolation, file);
+    Violation violation = pmdViolationToRuleViolation.toViolation(pmdViolation, file);
+
+    assertThat(violation.getRule()).isEqualTo(sonarRule);
+    verify(ruleFinder, times(1)).findByKey("pmd", "RULE");
+  }
+
+  @Test
+  public void should_not_allocate_more_per_violation() {
+    assumeTrue(PmdAllocations.isSupported());
+    XPathRule xpathRule = new XPathRule("//Name");
+    xpathRule.setName("RULE");
+    xpathRule.setMessage("Description");
+    xpathRule.setLanguage(Language.JAVA);
+    RuleContext ruleContext = new RuleContext();
+    ruleContext.setReport(new Report());
+    InputFile sample = new DefaultInputFile("Sample.java").setFile(new File("src/main/resources/org/sonar/plugins/pmd/xpath/Sample.java"));
+    PmdTemplate.create("6", getClass().getClassLoader(), Charsets.UTF_8).process(sample, new RuleSets(RuleSet.createFor("all", xpathRule)), ruleContext);
+    final List<RuleViolation> pmdViolations = Lists.newArrayList(ruleContext.getReport());
+    when(ruleFinder.findByKey("pmd", "RULE")).thenReturn(sonarRule);
+    final org.sonar.api.resources.File file = new org.sonar.api.resources.File("source.java");
+    final PmdViolationToRuleViolation pmdViolationToRuleViolation = new PmdViolationToRuleViolation(project, ruleFinder);
+    // Kept, so that the JIT cannot leave out the allocation of unused violations
+    final Violation[] violations = new Violation[pmdViolations.size()];
+
+    long bytesPerRun = PmdAllocations.bytesPerRun(200, 1000, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < violations.length; i++) {
+          violations[i] = pmdViolationToRuleViolation.toViolation(pmdViolations.get(i), file);
+        }
+      }
+    });
+
+    assertThat(pmdViolations.size()).isGreaterThan(50);
+    assertThat(bytesPerRun / pmdViolations.size()).isLessThan(MAX_BYTES_PER_VIOLATION);
+  }
+
   @Test
   public void should_ignore_violation_on_unknown_resource() {
     when(projectFileSystem.getBasedir()).thenReturn(new File("src"));
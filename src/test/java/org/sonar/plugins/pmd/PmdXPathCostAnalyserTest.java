@@ -0,0 +1,161 @@
+/*
+ * SonarQube PMD Plugin
+ * Copyright (C) 2012 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.pmd;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonar.api.utils.ValidationMessages;
+import org.sonar.plugins.pmd.PmdXPathCostAnalyser.CostClass;
+
+import com.google.common.base.Ticker;
+
+public class PmdXPathCostAnalyserTest {
+  // The baseline and the rule both run in 100ns on the sample
+  PmdXPathCostAnalyser analyser = new PmdXPathCostAnalyser(new StepTicker(100, 100));
+  List<String> reasons = new ArrayList<String>();
+
+  @Test
+  public void should_consider_rule_chain_expression_as_cheap() {
+    assertThat(PmdXPathCostAnalyser.staticCost("//FieldDeclaration[@Final='true']", reasons)).isEqualTo(CostClass.LOW);
+    assertThat(PmdXPathCostAnalyser.staticCost("//FieldDeclaration | //LocalVariableDeclaration/Type", reasons)).isEqualTo(CostClass.LOW);
+    assertThat(reasons).isEmpty();
+  }
+
+  @Test
+  public void should_detect_expression_outside_rule_chain() {
+    CostClass cost = PmdXPathCostAnalyser.staticCost("/CompilationUnit/TypeDeclaration", reasons);
+
+    assertThat(cost).isEqualTo(CostClass.MEDIUM);
+    assertThat(reasons).containsOnly("not eligible for the rule chain");
+  }
+
+  @Test
+  public void should_detect_wildcard_descendant_scan() {
+    CostClass cost = PmdXPathCostAnalyser.staticCost("//*[@Image='foo']", reasons);
+
+    assertThat(cost).isEqualTo(CostClass.HIGH);
+    assertThat(reasons).containsOnly("wildcard descendant scan");
+  }
+
+  @Test
+  public void should_detect_nested_descendant_scan() {
+    CostClass cost = PmdXPathCostAnalyser.staticCost("//MethodDeclaration[.//PrimaryExpression[//Name]]", reasons);
+
+    assertThat(cost).isEqualTo(CostClass.HIGH);
+    assertThat(reasons).containsOnly("nested descendant scan in a predicate");
+  }
+
+  @Test
+  public void should_ignore_literals() {
+    assertThat(PmdXPathCostAnalyser.staticCost("//Name[@Image='//*']", reasons)).isEqualTo(CostClass.LOW);
+  }
+
+  @Test
+  public void should_benchmark_expression_on_sample() {
+    assertThat(new PmdXPathCostAnalyser().benchmark("//FieldDeclaration")).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void should_compare_evaluation_time_with_baseline() {
+    assertThat(analyser.benchmark("//FieldDeclaration")).isEqualTo(0);
+    assertThat(new PmdXPathCostAnalyser(new StepTicker(100, 250)).benchmark("//FieldDeclaration")).isEqualTo(150);
+  }
+
+  @Test
+  public void should_warn_about_slow_expression() {
+    ValidationMessages messages = ValidationMessages.create();
+
+    new PmdXPathCostAnalyser(new StepTicker(100, 300)).validate("MyRule", "//FieldDeclaration", messages);
+
+    assertThat(messages.getWarnings()).containsOnly(
+      "PMD XPath rule 'MyRule' has a HIGH estimated cost (slow on the sample source; 200% of the parse time on the sample source)");
+  }
+
+  @Test
+  public void should_warn_about_expensive_expression() {
+    ValidationMessages messages = ValidationMessages.create();
+
+    analyser.validate("MyRule", "//*[@Image='foo']", messages);
+
+    assertThat(messages.getWarnings()).hasSize(1);
+    assertThat(messages.getWarnings().get(0)).startsWith("PMD XPath rule 'MyRule' has a HIGH estimated cost (wildcard descendant scan");
+  }
+
+  @Test
+  public void should_not_warn_about_cheap_expression() {
+    ValidationMessages messages = ValidationMessages.create();
+
+    analyser.validate("MyRule", "//FieldDeclaration", messages);
+
+    assertThat(messages.getWarnings()).isEmpty();
+  }
+
+  @Test
+  public void should_validate_statically_without_benchmark() {
+    ValidationMessages messages = ValidationMessages.create();
+    PmdXPathCostAnalyser staticAnalyser = new PmdXPathCostAnalyser(new UnusedTicker());
+
+    staticAnalyser.validateStatically("MyRule", "//FieldDeclaration", messages);
+    staticAnalyser.validateStatically("OtherRule", "//*[@Image='foo']", messages);
+
+    assertThat(messages.getWarnings()).containsOnly("PMD XPath rule 'OtherRule' has a HIGH estimated cost (wildcard descendant scan)");
+  }
+
+  @Test
+  public void should_warn_about_invalid_expression() {
+    ValidationMessages messages = ValidationMessages.create();
+
+    analyser.validate("MyRule", "//FieldDeclaration[", messages);
+
+    assertThat(messages.getWarnings()).hasSize(1);
+    assertThat(messages.getWarnings().get(0)).startsWith("PMD XPath rule 'MyRule' can't be evaluated");
+  }
+
+  /**
+   * Runs the baseline in {@code baselineNanos} and the benchmarked rule in {@code ruleNanos}.
+   */
+  static class StepTicker extends Ticker {
+    private final long[] steps;
+    private long nanos;
+    private int reads;
+
+    StepTicker(long baselineNanos, long ruleNanos) {
+      // Each run reads the ticker twice, and the runs of the baseline and of the rule alternate
+      this.steps = new long[] {0, baselineNanos, 0, ruleNanos};
+    }
+
+    @Override
+    public long read() {
+      nanos += steps[reads++ % steps.length];
+      return nanos;
+    }
+  }
+
+  static class UnusedTicker extends Ticker {
+    @Override
+    public long read() {
+      throw new AssertionError("The benchmark must not run");
+    }
+  }
+}